@@ -0,0 +1,51 @@
+package com.siteminder.email;
+
+import com.siteminder.email.model.Email;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emails shaped like production traffic: most are sent to a handful of recipients, notifications go to hundreds,
+ * and contents range from short plain text to large digests.
+ */
+public final class BenchmarkEmails {
+
+    private BenchmarkEmails() {
+    }
+
+    /**
+     * @param recipients number of to addresses, cc and bcc get a tenth each
+     * @param contentSize content length in characters
+     * @return email
+     */
+    public static Email create(int recipients, int contentSize) {
+        Email email = new Email();
+        email.setFrom("Reservations reservations@hotel-example.com");
+        email.setTo(addresses("guest", recipients));
+        email.setCc(addresses("manager", recipients / 10));
+        email.setBcc(addresses("audit", recipients / 10));
+        email.setSubject("Your booking confirmation #48213");
+        email.setContent(content(contentSize));
+        return email;
+    }
+
+    private static List<String> addresses(String prefix, int count) {
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String address = prefix + i + "@" + (i % 3 == 0 ? "gmail.com" : "example-" + (i % 17) + ".com");
+            addresses.add(i % 2 == 0 ? "Guest" + i + " " + address : address);
+        }
+        return addresses;
+    }
+
+    private static String content(int size) {
+        String line = "Dear guest, thank you for booking with us. Check-in from 2pm, check-out by 11am.\n";
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            builder.append(line);
+        }
+        builder.setLength(size);
+        return builder.toString();
+    }
+}
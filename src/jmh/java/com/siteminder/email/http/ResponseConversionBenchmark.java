@@ -0,0 +1,70 @@
+package com.siteminder.email.http;
+
+import com.siteminder.email.model.EmailHandlerResult;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of convertResponseToEmailResult for the responses providers actually send back
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseConversionBenchmark {
+
+    private static final byte[] MAILGUN_ACCEPTED =
+            "{\"id\":\"<20180301.1@example.com>\",\"message\":\"Queued. Thank you.\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SENDGRID_BAD_REQUEST = ("{\"errors\":[{"
+            + "\"message\":\"Does not contain a valid address.\","
+            + "\"field\":\"personalizations.0.to.0.email\",\"help\":\"http://sendgrid.com/docs/API_Reference/"
+            + "Web_API_v3/Mail/errors.html#message.personalizations.to\"}]}").getBytes(StandardCharsets.UTF_8);
+
+    private EmailHandler emailHandler;
+
+    @Setup
+    public void setup() {
+        this.emailHandler = new MailgunEmailHandler();
+    }
+
+    @Benchmark
+    public EmailHandlerResult mailgunAccepted() throws IOException {
+        return emailHandler.convertResponseToEmailResult(EmailHandler.Type.Mailgun, response(200, MAILGUN_ACCEPTED));
+    }
+
+    @Benchmark
+    public EmailHandlerResult sendGridAccepted() throws IOException {
+        return emailHandler.convertResponseToEmailResult(EmailHandler.Type.SendGrid, response(202, new byte[0]));
+    }
+
+    @Benchmark
+    public EmailHandlerResult sendGridBadRequest() throws IOException {
+        return emailHandler.convertResponseToEmailResult(EmailHandler.Type.SendGrid,
+                response(400, SENDGRID_BAD_REQUEST));
+    }
+
+    private HttpResponse response(int status, byte[] body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+}
@@ -0,0 +1,84 @@
+package com.siteminder.email.http;
+
+import com.siteminder.email.BenchmarkEmails;
+import com.siteminder.email.model.Email;
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building provider request bodies, including writing the entity as the http client does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1", "50", "500"})
+    private int recipients;
+
+    @Param({"2048", "65536"})
+    private int contentSize;
+
+    private SendGridEmailHandler sendGridEmailHandler;
+    private MailgunEmailHandler mailgunEmailHandler;
+    private Email email;
+
+    @Setup
+    public void setup() {
+        this.sendGridEmailHandler = new SendGridEmailHandler();
+        this.mailgunEmailHandler = new MailgunEmailHandler();
+        this.email = BenchmarkEmails.create(recipients, contentSize);
+    }
+
+    @Benchmark
+    public void sendGridSetPostJsonEntity(Blackhole blackhole) throws IOException {
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+        sendGridEmailHandler.setPostJsonEntity(post, email);
+        post.getEntity().writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public void mailgunSetPostFormEntity(Blackhole blackhole) throws IOException {
+        HttpPost post = new HttpPost("http://localhost/example.com/messages");
+        mailgunEmailHandler.setPostFormEntity(post, email);
+        post.getEntity().writeTo(new BlackholeOutputStream(blackhole));
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+            blackhole.consume(len);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.BenchmarkEmails;
+import com.siteminder.email.model.Email;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailServiceBenchmark {
+
+    @Param({"1", "50", "500"})
+    private int recipients;
+
+    private EmailService emailService;
+    private Email email;
+
+    @Setup
+    public void setup() {
+        this.emailService = new EmailService(Collections.emptyList());
+        this.email = BenchmarkEmails.create(recipients, 2048);
+    }
+
+    @Benchmark
+    public Email validEmail() {
+        emailService.validEmail(email);
+        return email;
+    }
+}
@@ -0,0 +1,113 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.BenchmarkEmails;
+import com.siteminder.email.config.VirtualThreads;
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking sends to a provider answering in 20ms, issued concurrently on a pool of 200 platform threads (the default
+ * Tomcat maxThreads) or on a virtual thread each. Virtual threads need Java 21, add -prof gc to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadModeBenchmark {
+
+    private static final long PROVIDER_LATENCY = 20;
+
+    @Param({"platform", "virtual"})
+    private String threads;
+
+    @Param({"200", "2000"})
+    private int concurrentSends;
+
+    private ExecutorService executor;
+    private EmailService emailService;
+    private Email email;
+
+    @Setup
+    public void setup() {
+        if (threads.equals("virtual")) {
+            executor = VirtualThreads.newThreadPerTaskExecutor("send-");
+            if (executor == null) {
+                throw new IllegalStateException("Virtual threads need Java 21 or later");
+            }
+        } else {
+            executor = Executors.newFixedThreadPool(200);
+        }
+        // Limits high enough to measure threads rather than the provider limiter
+        ProviderLimiter providerLimiter = new ProviderLimiter(100000, 1, 100000, 0.9, 60000);
+        emailService = new EmailService(Collections.singletonList(new SleepingEmailHandler()));
+        emailService.setProviderLimiter(providerLimiter);
+        email = BenchmarkEmails.create(1, 256);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int send() throws InterruptedException, ExecutionException {
+        CompletionService<EmailHandlerResult> completionService = new ExecutorCompletionService<>(executor);
+        for (int i = 0; i < concurrentSends; i++) {
+            completionService.submit(() -> emailService.send(email));
+        }
+        int succeeded = 0;
+        for (int i = 0; i < concurrentSends; i++) {
+            if (completionService.take().get().getType() == EmailHandlerResult.Type.SUCCESS) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    private static class SleepingEmailHandler extends EmailHandler {
+
+        @Override
+        public Type getType() {
+            return Type.Mailgun;
+        }
+
+        @Override
+        public EmailHandlerResult send(Email email) {
+            try {
+                Thread.sleep(PROVIDER_LATENCY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS);
+        }
+
+        @Override
+        public CompletableFuture<EmailHandlerResult> sendAsync(Email email) {
+            return CompletableFuture.completedFuture(send(email));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.siteminder.email.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Base64 encoding of another stream, without line breaks, read through a fixed buffer
+ */
+public class Base64InputStream extends InputStream {
+
+    // A multiple of 3, so that only the last block is padded
+    private static final int BLOCK_SIZE = 3 * 4096;
+
+    private final InputStream source;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] encoded = new byte[BLOCK_SIZE / 3 * 4];
+    private int encodedLength;
+    private int encodedPosition;
+    private boolean end;
+
+    public Base64InputStream(InputStream source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return encoded[encodedPosition++];
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int read = Math.min(length, encodedLength - encodedPosition);
+        System.arraycopy(encoded, encodedPosition, buffer, offset, read);
+        encodedPosition += read;
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private boolean fill() throws IOException {
+        if (encodedPosition < encodedLength) {
+            return true;
+        }
+        if (end) {
+            return false;
+        }
+        int length = 0;
+        while (length < BLOCK_SIZE) {
+            int read = source.read(block, length, BLOCK_SIZE - length);
+            if (read < 0) {
+                end = true;
+                break;
+            }
+            length += read;
+        }
+        if (length == 0) {
+            return false;
+        }
+        byte[] input = length == BLOCK_SIZE ? block : Arrays.copyOf(block, length);
+        encodedLength = Base64.getEncoder().encode(input, encoded);
+        encodedPosition = 0;
+        return true;
+    }
+}
@@ -0,0 +1,72 @@
+package com.siteminder.email.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file through memory-mapped windows, so bytes are copied from the page cache straight into the caller's
+ * buffer without a read call or a heap buffer of its own. At most one window is mapped at a time.
+ */
+public class MappedFileInputStream extends InputStream {
+
+    private static final long WINDOW_SIZE = 4 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+    private MappedByteBuffer window;
+
+    public MappedFileInputStream(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextWindow()) {
+            return -1;
+        }
+        position++;
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextWindow()) {
+            return -1;
+        }
+        int read = Math.min(length, window.remaining());
+        window.get(buffer, offset, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private boolean nextWindow() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+        if (position >= size) {
+            return false;
+        }
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, size - position));
+        return true;
+    }
+}
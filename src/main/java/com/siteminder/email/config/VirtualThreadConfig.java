@@ -0,0 +1,48 @@
+package com.siteminder.email.config;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * With email.virtualThreads.enabled=true on Java 21 or later, Tomcat runs each request on a new virtual thread
+ * instead of its bounded worker pool, and POST /email sends on the blocking path on that thread.
+ */
+@Configuration
+public class VirtualThreadConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Bean
+    public EmbeddedServletContainerCustomizer virtualThreadCustomizer() {
+        return container -> {
+            if (!Boolean.parseBoolean(applicationProperties.getProperty("email.virtualThreads.enabled"))
+                    || !(container instanceof TomcatEmbeddedServletContainerFactory)) {
+                return;
+            }
+            if (!VirtualThreads.isSupported()) {
+                logger.warn("email.virtualThreads.enabled needs Java 21 or later, running on platform threads");
+                return;
+            }
+            ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(connector -> {
+                ProtocolHandler protocolHandler = connector.getProtocolHandler();
+                if (protocolHandler instanceof AbstractProtocol) {
+                    ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+                    ((AbstractProtocol<?>) protocolHandler).setExecutor(executor);
+                    logger.info("Tomcat runs requests on virtual threads");
+                }
+            });
+        };
+    }
+}
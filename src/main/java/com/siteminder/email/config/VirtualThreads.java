@@ -0,0 +1,81 @@
+package com.siteminder.email.config;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads of Java 21 for code compiled for Java 8. The methods are looked up reflectively once; on older
+ * runtimes isSupported() is false and callers keep platform threads.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+    // Java 19 and 20 have the methods but throw unless preview features are enabled
+    private static final boolean SUPPORTED = IS_VIRTUAL != null && newThreadFactory("probe") != null;
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * @param thread
+     * @return true when thread is a virtual thread, false on runtimes without them
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (!SUPPORTED) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Executor starting a new virtual thread for each task
+     * @param prefix of thread names, followed by a counter
+     * @return executor, null on runtimes without virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory threadFactory = SUPPORTED ? newThreadFactory(prefix) : null;
+        if (threadFactory == null) {
+            return null;
+        }
+        try {
+            Method newThreadPerTaskExecutor =
+                    Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup()
+                    .findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.RateLimit;
+import com.siteminder.email.service.AdmissionControl;
+import com.siteminder.email.type.ErrorType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * Rate limits of AdmissionControl, changed without restart. Key * is the default limit of a scope.
+ */
+@RestController
+public class AdmissionController {
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    public AdmissionController() {
+    }
+
+    public AdmissionController(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @GetMapping("/admission/limits")
+    public Map<AdmissionControl.Scope, Map<String, RateLimit>> getLimits() {
+        return admissionControl.getLimits();
+    }
+
+    /**
+     * @param scope tenant or domain
+     * @param key
+     * @param rateLimit
+     * @return limits of every scope, or ILLEGAL_ARGUMENT when scope is unknown
+     */
+    @PutMapping("/admission/limits/{scope}/{key:.+}")
+    public ResponseEntity<?> setLimit(@PathVariable String scope, @PathVariable String key,
+                                      @RequestBody RateLimit rateLimit) {
+        AdmissionControl.Scope parsed = parseScope(scope);
+        if (parsed == null) {
+            return invalidScope();
+        }
+        admissionControl.setLimit(parsed, key, rateLimit);
+        return ResponseEntity.ok(admissionControl.getLimits());
+    }
+
+    @DeleteMapping("/admission/limits/{scope}/{key:.+}")
+    public ResponseEntity<?> removeLimit(@PathVariable String scope, @PathVariable String key) {
+        AdmissionControl.Scope parsed = parseScope(scope);
+        if (parsed == null) {
+            return invalidScope();
+        }
+        admissionControl.setLimit(parsed, key, null);
+        return ResponseEntity.ok(admissionControl.getLimits());
+    }
+
+    /**
+     * @return scope named in any case, null when unknown
+     */
+    private static AdmissionControl.Scope parseScope(String scope) {
+        try {
+            return AdmissionControl.Scope.valueOf(scope.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ResponseEntity<EmailHandlerResult> invalidScope() {
+        return new ResponseEntity<>(new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT,
+                ErrorType.SCOPE_INVALID.getMessage()), HttpStatus.BAD_REQUEST);
+    }
+}
@@ -1,13 +1,49 @@
 package com.siteminder.email.controller;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
+import com.siteminder.email.config.VirtualThreads;
+import com.siteminder.email.model.AddressValidationResult;
+import com.siteminder.email.model.Attachment;
+import com.siteminder.email.model.DeliveryStatus;
 import com.siteminder.email.model.Email;
 import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.service.AdmissionControl;
+import com.siteminder.email.service.AttachmentService;
+import com.siteminder.email.service.EmailAddressValidator;
+import com.siteminder.email.service.EmailMetrics;
 import com.siteminder.email.service.EmailService;
+import com.siteminder.email.service.IdempotencyCache;
+import com.siteminder.email.service.OutboxService;
+import com.siteminder.email.service.RetryScheduler;
+import com.siteminder.email.service.ScheduledDeliveryService;
+import com.siteminder.email.type.ErrorType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 public class EmailController {
@@ -15,6 +51,34 @@ public class EmailController {
     @Autowired
     private EmailService emailService;
 
+    @Autowired
+    private OutboxService outboxService;
+
+    @Autowired
+    private ScheduledDeliveryService scheduledDeliveryService;
+
+    @Autowired
+    private RetryScheduler retryScheduler;
+
+    @Autowired
+    private EmailAddressValidator emailAddressValidator = new EmailAddressValidator();
+
+    @Autowired
+    private IdempotencyCache idempotencyCache;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private EmailMetrics emailMetrics = new EmailMetrics();
+
+    @Autowired
+    private AttachmentService attachmentService = new AttachmentService();
+
+    private ObjectReader emailReader = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(Email.class);
+
     public EmailController() {
     }
 
@@ -22,9 +86,212 @@ public class EmailController {
         this.emailService = emailService;
     }
 
+    // Features left null in tests are skipped on the request path
+
+    void setIdempotencyCache(IdempotencyCache idempotencyCache) {
+        this.idempotencyCache = idempotencyCache;
+    }
+
+    void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    void setRetryScheduler(RetryScheduler retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Send an email, or schedule it when it has a sendAt. A failed send is retried on the server when enabled, see
+     * RetryScheduler. Requests repeating an Idempotency-Key get the result of the first request of their tenant with
+     * that key instead of sending again. Requests over the rate limit of their tenant or sender domain get 429 with
+     * Retry-After.
+     * @param email
+     * @param idempotencyKey optional
+     * @param tenant optional
+     * @return deferred emailHandlerResult
+     */
     @PostMapping("/email")
-    public ResponseEntity<EmailHandlerResult> sendEmail(@RequestBody Email email) {
-        EmailHandlerResult emailSendingResult = emailService.send(email);
-        return new ResponseEntity<>(emailSendingResult, emailSendingResult.getType().getHttpStatus());
+    public DeferredResult<ResponseEntity<EmailHandlerResult>> sendEmail(
+            @RequestBody Email email,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "X-Tenant-Id", required = false) String tenant) {
+        DeferredResult<ResponseEntity<EmailHandlerResult>> deferredResult = new DeferredResult<>();
+        long retryAfter = admissionControl == null
+                ? 0
+                : admissionControl.tryAcquire(tenant,
+                        email.getFromAddress() == null ? null : email.getFromAddress().getDomain());
+        if (retryAfter > 0) {
+            EmailHandlerResult emailHandlerResult = new EmailHandlerResult(
+                    EmailHandlerResult.Type.TOO_MANY_REQUESTS, ErrorType.RATE_LIMITED.getMessage());
+            emailMetrics.recordResult(emailHandlerResult.getType());
+            releaseAttachments(email);
+            deferredResult.setResult(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf((retryAfter + 999) / 1000))
+                    .body(emailHandlerResult));
+            return deferredResult;
+        }
+
+        CompletableFuture<EmailHandlerResult> future =
+                idempotencyCache == null || idempotencyKey == null || idempotencyKey.isEmpty()
+                ? send(email)
+                : idempotencyCache.execute(tenant, idempotencyKey, () -> send(email));
+
+        future.whenComplete((emailSendingResult, throwable) -> {
+            releaseAttachments(email);
+            if (throwable != null) {
+                deferredResult.setErrorResult(throwable);
+            } else {
+                emailMetrics.recordResult(emailSendingResult.getType());
+                deferredResult.setResult(
+                        new ResponseEntity<>(emailSendingResult, emailSendingResult.getType().getHttpStatus()));
+            }
+        });
+        return deferredResult;
+    }
+
+    /**
+     * Send an email with attachments, as a multipart request of an email part in JSON and attachments parts. The
+     * attachments are spooled to disk and deleted once the email is sent. Emails with attachments are sent on the
+     * request path even in outbox mode.
+     * @param email
+     * @param files attachments
+     * @param idempotencyKey optional
+     * @param tenant optional
+     * @return deferred emailHandlerResult
+     * @throws IOException when an attachment can not be spooled
+     */
+    @PostMapping(value = "/email", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public DeferredResult<ResponseEntity<EmailHandlerResult>> sendEmailWithAttachments(
+            @RequestPart("email") Email email,
+            @RequestPart(value = "attachments", required = false) MultipartFile[] files,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "X-Tenant-Id", required = false) String tenant) throws IOException {
+        List<Attachment> attachments = new ArrayList<>();
+        try {
+            for (MultipartFile file : files == null ? new MultipartFile[0] : files) {
+                attachments.add(attachmentService.spool(file));
+            }
+        } catch (IOException | RuntimeException e) {
+            attachmentService.release(attachments);
+            throw e;
+        }
+        email.setAttachments(attachments);
+        return sendEmail(email, idempotencyKey, tenant);
+    }
+
+    private void releaseAttachments(Email email) {
+        if (email != null) {
+            attachmentService.release(email.getAttachments());
+        }
+    }
+
+    private CompletableFuture<EmailHandlerResult> send(Email email) {
+        if (scheduledDeliveryService != null && email.getSendAt() != null) {
+            return CompletableFuture.completedFuture(scheduledDeliveryService.schedule(email));
+        }
+        // The outbox journal does not hold attachments
+        if (outboxService != null && outboxService.isEnabled() && email.getAttachments().isEmpty()) {
+            return CompletableFuture.completedFuture(outboxService.submit(email));
+        }
+        CompletableFuture<EmailHandlerResult> future = VirtualThreads.isVirtual(Thread.currentThread())
+                // Blocking only parks a virtual thread
+                ? CompletableFuture.completedFuture(emailService.send(email))
+                : emailService.sendAsync(email);
+        if (retryScheduler != null && retryScheduler.isEnabled()) {
+            return future.thenApply(result -> retryScheduler.onResult(email, result));
+        }
+        return future;
+    }
+
+    /**
+     * Status of an email which was retried after its send failed
+     * @param id messageId returned with the ACCEPTED or PARTIAL result of the send
+     * @return deliveryStatus, or 404 when the id is unknown or the status is past retention
+     */
+    @GetMapping("/email/{id}/status")
+    public ResponseEntity<DeliveryStatus> getStatus(@PathVariable String id) {
+        DeliveryStatus deliveryStatus = retryScheduler == null ? null : retryScheduler.getStatus(id);
+        if (deliveryStatus == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(deliveryStatus, HttpStatus.OK);
+    }
+
+    /**
+     * Send many emails given as a JSON array or as newline delimited JSON. Each email takes a token from its tenant
+     * and sender domain like a single send, and emails over the rate limit get a TOO_MANY_REQUESTS result. The
+     * response has Retry-After when any email was rejected, and is 429 when all of them were.
+     * @param inputStream request body
+     * @param tenant optional
+     * @return emailHandlerResults in the order of emails
+     * @throws IOException
+     */
+    @PostMapping("/emails")
+    public ResponseEntity<List<EmailHandlerResult>> sendEmails(
+            InputStream inputStream,
+            @RequestHeader(value = "X-Tenant-Id", required = false) String tenant) throws IOException {
+        try (MappingIterator<Email> emails = emailReader.readValues(inputStream)) {
+            List<Email> admittedEmails = new ArrayList<>();
+            List<EmailHandlerResult> emailHandlerResults = new ArrayList<>();
+            long retryAfter = 0;
+            while (emails.hasNext()) {
+                Email email = emails.next();
+                long wait = admissionControl == null || email == null
+                        ? 0
+                        : admissionControl.tryAcquire(tenant,
+                                email.getFromAddress() == null ? null : email.getFromAddress().getDomain());
+                if (wait > 0) {
+                    retryAfter = Math.max(retryAfter, wait);
+                    emailHandlerResults.add(new EmailHandlerResult(
+                            EmailHandlerResult.Type.TOO_MANY_REQUESTS, ErrorType.RATE_LIMITED.getMessage()));
+                } else {
+                    admittedEmails.add(email);
+                    // Filled in with the results of the admitted emails, in order
+                    emailHandlerResults.add(null);
+                }
+            }
+
+            Iterator<EmailHandlerResult> sentResults = emailService.sendBulk(admittedEmails.iterator()).iterator();
+            for (int i = 0; i < emailHandlerResults.size(); i++) {
+                if (emailHandlerResults.get(i) == null) {
+                    emailHandlerResults.set(i, sentResults.next());
+                }
+                emailMetrics.recordResult(emailHandlerResults.get(i).getType());
+            }
+            if (retryAfter == 0) {
+                return new ResponseEntity<>(emailHandlerResults, HttpStatus.OK);
+            }
+            return ResponseEntity.status(admittedEmails.isEmpty() ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.OK)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf((retryAfter + 999) / 1000))
+                    .body(emailHandlerResults);
+        } catch (JsonProcessingException e) {
+            return malformedBody();
+        } catch (RuntimeException e) {
+            // MappingIterator wraps parsing errors met while iterating
+            if (e instanceof RuntimeJsonMappingException || e.getCause() instanceof JsonProcessingException) {
+                return malformedBody();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Validate many addresses without sending anything
+     * @param addresses addresses with optional display names
+     * @return addressValidationResults in the order of addresses
+     */
+    @PostMapping("/email/validate")
+    public List<AddressValidationResult> validateAddresses(@RequestBody List<String> addresses) {
+        List<AddressValidationResult> addressValidationResults = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            addressValidationResults.add(new AddressValidationResult(address, emailAddressValidator.check(address)));
+        }
+        return addressValidationResults;
+    }
+
+    private ResponseEntity<List<EmailHandlerResult>> malformedBody() {
+        EmailHandlerResult emailHandlerResult =
+                new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, ErrorType.BODY_MALFORMED.getMessage());
+        return new ResponseEntity<>(Collections.singletonList(emailHandlerResult), HttpStatus.BAD_REQUEST);
     }
 }
@@ -0,0 +1,44 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.service.WarmupService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Probes for rolling deploys: live as soon as requests are served, ready once WarmupService is done.
+ */
+@RestController
+public class HealthController {
+
+    @Autowired
+    private WarmupService warmupService;
+
+    public HealthController() {
+    }
+
+    public HealthController(WarmupService warmupService) {
+        this.warmupService = warmupService;
+    }
+
+    @GetMapping("/health/live")
+    public Map<String, Object> getLive() {
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("status", "UP");
+        return health;
+    }
+
+    @GetMapping("/health/ready")
+    public ResponseEntity<Map<String, Object>> getReady() {
+        boolean ready = warmupService.isReady();
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("status", ready ? "UP" : "WARMING_UP");
+        health.put("providers", warmupService.getProviders());
+        return new ResponseEntity<>(health, ready ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
@@ -0,0 +1,195 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.service.ConcurrencyLimiter;
+import com.siteminder.email.service.EmailMetrics;
+import com.siteminder.email.service.EmailService;
+import com.siteminder.email.service.HedgingPolicy;
+import com.siteminder.email.service.LatencyHistogram;
+import com.siteminder.email.service.PriorityLanes;
+import com.siteminder.email.service.ProviderLimiter;
+import com.siteminder.email.service.RetryScheduler;
+import com.siteminder.email.service.ScheduledDeliveryService;
+import com.siteminder.email.type.ErrorType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Metrics in the Prometheus text format. Latencies are histograms, so quantiles such as p99 can be computed over any
+ * window with histogram_quantile.
+ */
+@RestController
+public class MetricsController {
+
+    private static final double[] LATENCY_BUCKETS =
+            {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    @Autowired
+    private EmailMetrics emailMetrics;
+
+    @Autowired
+    private HedgingPolicy hedgingPolicy;
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private ProviderLimiter providerLimiter;
+
+    @Autowired
+    private ScheduledDeliveryService scheduledDeliveryService;
+
+    @Autowired
+    private PriorityLanes priorityLanes;
+
+    @Autowired
+    private RetryScheduler retryScheduler;
+
+    public MetricsController() {
+    }
+
+    public MetricsController(EmailMetrics emailMetrics) {
+        this.emailMetrics = emailMetrics;
+    }
+
+    @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4; charset=utf-8")
+    public String getMetrics() {
+        StringBuilder metrics = new StringBuilder(8192);
+
+        header(metrics, "email_provider_latency_seconds", "histogram", "Latency of calls to email providers");
+        for (EmailHandler.Type provider : EmailHandler.Type.values()) {
+            histogram(metrics, "email_provider_latency_seconds", "provider=\"" + provider + "\"",
+                    emailMetrics.getLatencies(provider));
+        }
+
+        header(metrics, "email_provider_calls_total", "counter", "Calls to email providers by result, ERROR when "
+                + "the call threw");
+        for (EmailHandler.Type provider : EmailHandler.Type.values()) {
+            for (EmailHandlerResult.Type result : EmailHandlerResult.Type.values()) {
+                sample(metrics, "email_provider_calls_total",
+                        "provider=\"" + provider + "\",result=\"" + result + "\"",
+                        emailMetrics.getCalls(provider, result));
+            }
+            sample(metrics, "email_provider_calls_total", "provider=\"" + provider + "\",result=\"ERROR\"",
+                    emailMetrics.getCalls(provider, null));
+        }
+
+        header(metrics, "email_failovers_total", "counter", "Sends moved to a provider after another one failed");
+        for (EmailHandler.Type provider : EmailHandler.Type.values()) {
+            sample(metrics, "email_failovers_total", "provider=\"" + provider + "\"",
+                    emailMetrics.getFailovers(provider));
+        }
+
+        header(metrics, "email_results_total", "counter", "Results returned to clients");
+        for (EmailHandlerResult.Type result : EmailHandlerResult.Type.values()) {
+            sample(metrics, "email_results_total", "result=\"" + result + "\"", emailMetrics.getResults(result));
+        }
+
+        header(metrics, "email_validation_rejections_total", "counter", "Emails rejected by validation");
+        for (ErrorType errorType : ErrorType.values()) {
+            sample(metrics, "email_validation_rejections_total", "error=\"" + errorType + "\"",
+                    emailMetrics.getValidationRejections(errorType));
+        }
+
+        if (hedgingPolicy != null) {
+            header(metrics, "email_hedges_total", "counter", "Hedged requests by outcome");
+            sample(metrics, "email_hedges_total", "outcome=\"sent\"", hedgingPolicy.getHedges());
+            sample(metrics, "email_hedges_total", "outcome=\"won\"", hedgingPolicy.getHedgeWins());
+            sample(metrics, "email_hedges_total", "outcome=\"denied\"", hedgingPolicy.getHedgesDenied());
+        }
+
+        if (emailService != null && providerLimiter != null) {
+            header(metrics, "email_provider_concurrency_limit", "gauge", "Adaptive concurrency limit of providers");
+            StringBuilder inFlight = new StringBuilder();
+            StringBuilder rejected = new StringBuilder();
+            for (EmailHandler emailHandler : emailService.getEmailHandlers()) {
+                ConcurrencyLimiter.Snapshot limit = providerLimiter.getLimiter(emailHandler).snapshot();
+                String labels = "provider=\"" + emailHandler.getType() + "\"";
+                sample(metrics, "email_provider_concurrency_limit", labels, limit.getLimit());
+                sample(inFlight, "email_provider_in_flight", labels, limit.getInFlight());
+                sample(rejected, "email_provider_limit_rejections_total", labels, limit.getRejected());
+            }
+            header(metrics, "email_provider_in_flight", "gauge", "Calls in flight to providers");
+            metrics.append(inFlight);
+            header(metrics, "email_provider_limit_rejections_total", "counter", "Calls skipped at the concurrency "
+                    + "limit");
+            metrics.append(rejected);
+        }
+
+        if (scheduledDeliveryService != null && scheduledDeliveryService.isEnabled()) {
+            header(metrics, "email_scheduled", "gauge", "Scheduled emails not sent yet, held in memory when due "
+                    + "within the horizon and only on disk otherwise");
+            int memoryCount = scheduledDeliveryService.getMemoryCount();
+            sample(metrics, "email_scheduled", "store=\"memory\"", memoryCount);
+            sample(metrics, "email_scheduled", "store=\"disk\"",
+                    Math.max(0, scheduledDeliveryService.getPendingCount() - memoryCount));
+            header(metrics, "email_scheduled_dead_lettered_total", "counter", "Scheduled emails given up on after "
+                    + "their last attempt");
+            sample(metrics, "email_scheduled_dead_lettered_total", "", scheduledDeliveryService.getDeadLettered());
+        }
+
+        if (priorityLanes != null) {
+            header(metrics, "email_lane_queue_depth", "gauge", "Sends waiting for a slot of their priority lane");
+            StringBuilder inFlight = new StringBuilder();
+            StringBuilder rejected = new StringBuilder();
+            for (Email.Priority priority : Email.Priority.values()) {
+                PriorityLanes.Snapshot lane = priorityLanes.snapshot(priority);
+                String labels = "priority=\"" + priority + "\"";
+                sample(metrics, "email_lane_queue_depth", labels, lane.getQueued());
+                sample(inFlight, "email_lane_in_flight", labels, lane.getInFlight());
+                sample(rejected, "email_lane_rejections_total", labels, lane.getRejected());
+            }
+            header(metrics, "email_lane_in_flight", "gauge", "Sends holding a slot of their priority lane");
+            metrics.append(inFlight);
+            header(metrics, "email_lane_rejections_total", "counter", "Sends rejected as their lane queue was full");
+            metrics.append(rejected);
+            header(metrics, "email_lane_wait_seconds", "histogram", "Time sends waited for a slot of their lane");
+            for (Email.Priority priority : Email.Priority.values()) {
+                histogram(metrics, "email_lane_wait_seconds", "priority=\"" + priority + "\"",
+                        priorityLanes.getWaits(priority));
+            }
+        }
+
+        if (retryScheduler != null && retryScheduler.isEnabled()) {
+            header(metrics, "email_retries_total", "counter", "Failed sends by retry outcome, denied when out of "
+                    + "retry budget");
+            sample(metrics, "email_retries_total", "outcome=\"scheduled\"", retryScheduler.getScheduled());
+            sample(metrics, "email_retries_total", "outcome=\"sent\"", retryScheduler.getSent());
+            sample(metrics, "email_retries_total", "outcome=\"failed\"", retryScheduler.getFailed());
+            sample(metrics, "email_retries_total", "outcome=\"denied\"", retryScheduler.getDenied());
+            header(metrics, "email_retries_pending", "gauge", "Emails waiting for a retry or in one");
+            sample(metrics, "email_retries_pending", "", retryScheduler.getPendingCount());
+        }
+        return metrics.toString();
+    }
+
+    private static void histogram(StringBuilder metrics, String name, String labels, LatencyHistogram histogram) {
+        long count = 0;
+        for (double bucket : LATENCY_BUCKETS) {
+            count = histogram.getCountAtOrBelow((long) (bucket * 1000000));
+            sample(metrics, name + "_bucket", labels + ",le=\"" + bucket + "\"", count);
+        }
+        count = Math.max(count, histogram.getCount());
+        sample(metrics, name + "_bucket", labels + ",le=\"+Inf\"", count);
+        sample(metrics, name + "_sum", labels, histogram.getSum() / 1000000.0);
+        sample(metrics, name + "_count", labels, count);
+    }
+
+    private static void header(StringBuilder metrics, String name, String type, String help) {
+        metrics.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        metrics.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder metrics, String name, String labels, double value) {
+        metrics.append(name).append('{').append(labels).append("} ");
+        if (value == Math.rint(value)) {
+            metrics.append((long) value);
+        } else {
+            metrics.append(value);
+        }
+        metrics.append('\n');
+    }
+}
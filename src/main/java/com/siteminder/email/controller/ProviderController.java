@@ -0,0 +1,80 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.CircuitEvent;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.service.ConcurrencyLimiter;
+import com.siteminder.email.service.EmailService;
+import com.siteminder.email.service.PriorityLanes;
+import com.siteminder.email.service.ProviderHealth;
+import com.siteminder.email.service.ProviderLimiter;
+import com.siteminder.email.service.ProviderRouter;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+public class ProviderController {
+
+    @Autowired
+    private EmailService emailService;
+
+    @Autowired
+    private ProviderRouter providerRouter;
+
+    @Autowired
+    private ProviderLimiter providerLimiter;
+
+    @Autowired
+    private PriorityLanes priorityLanes;
+
+    @GetMapping("/providers/pool")
+    public Map<EmailHandler.Type, Map<String, PoolStats>> getPoolStats() {
+        Map<EmailHandler.Type, Map<String, PoolStats>> poolStats = new LinkedHashMap<>();
+        for (EmailHandler emailHandler : emailService.getEmailHandlers()) {
+            Map<String, PoolStats> handlerPoolStats = new LinkedHashMap<>();
+            handlerPoolStats.put("blocking", emailHandler.getPoolStats());
+            handlerPoolStats.put("async", emailHandler.getAsyncPoolStats());
+            poolStats.put(emailHandler.getType(), handlerPoolStats);
+        }
+        return poolStats;
+    }
+
+    @GetMapping("/providers/circuits")
+    public Map<EmailHandler.Type, ProviderHealth.Snapshot> getCircuits() {
+        long now = System.currentTimeMillis();
+        Map<EmailHandler.Type, ProviderHealth.Snapshot> circuits = new LinkedHashMap<>();
+        for (EmailHandler emailHandler : emailService.getEmailHandlers()) {
+            circuits.put(emailHandler.getType(), providerRouter.getHealth(emailHandler).snapshot(now));
+        }
+        return circuits;
+    }
+
+    @GetMapping("/providers/limits")
+    public Map<EmailHandler.Type, ConcurrencyLimiter.Snapshot> getLimits() {
+        Map<EmailHandler.Type, ConcurrencyLimiter.Snapshot> limits = new LinkedHashMap<>();
+        for (EmailHandler emailHandler : emailService.getEmailHandlers()) {
+            limits.put(emailHandler.getType(), providerLimiter.getLimiter(emailHandler).snapshot());
+        }
+        return limits;
+    }
+
+    @GetMapping("/providers/lanes")
+    public Map<Email.Priority, PriorityLanes.Snapshot> getLanes() {
+        Map<Email.Priority, PriorityLanes.Snapshot> lanes = new LinkedHashMap<>();
+        for (Email.Priority priority : Email.Priority.values()) {
+            lanes.put(priority, priorityLanes.snapshot(priority));
+        }
+        return lanes;
+    }
+
+    @GetMapping("/providers/circuits/events")
+    public List<CircuitEvent> getCircuitEvents() {
+        return providerRouter.getEvents();
+    }
+}
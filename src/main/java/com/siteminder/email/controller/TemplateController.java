@@ -0,0 +1,69 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.Template;
+import com.siteminder.email.service.TemplateService;
+import com.siteminder.email.template.TemplateCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+
+/**
+ * Templates referenced by Email.templateId. Updates take effect for emails validated afterwards.
+ */
+@RestController
+public class TemplateController {
+
+    @Autowired
+    private TemplateService templateService;
+
+    public TemplateController() {
+    }
+
+    public TemplateController(TemplateService templateService) {
+        this.templateService = templateService;
+    }
+
+    @GetMapping("/templates/cache")
+    public TemplateCache.Snapshot getCache() {
+        return templateService.getCacheSnapshot();
+    }
+
+    @GetMapping("/templates/{id:.+}")
+    public ResponseEntity<Template> getTemplate(@PathVariable String id) {
+        Template template = templateService.get(id);
+        return template == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(template);
+    }
+
+    /**
+     * Create or replace a template
+     * @param id
+     * @param template subject and content, the id of the path is used
+     * @return stored template, or ILLEGAL_ARGUMENT
+     * @throws IOException when the template can not be stored
+     */
+    @PutMapping("/templates/{id:.+}")
+    public ResponseEntity<?> putTemplate(@PathVariable String id, @RequestBody Template template) throws IOException {
+        template.setId(id);
+        try {
+            templateService.put(template);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT,
+                    e.getMessage()), HttpStatus.BAD_REQUEST);
+        }
+        return ResponseEntity.ok(templateService.get(id));
+    }
+
+    @DeleteMapping("/templates/{id:.+}")
+    public ResponseEntity<Void> deleteTemplate(@PathVariable String id) throws IOException {
+        return templateService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+}
@@ -1,28 +1,99 @@
 package com.siteminder.email.http;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.siteminder.email.config.ApplicationProperties;
 import com.siteminder.email.model.Email;
 import com.siteminder.email.model.EmailHandlerResult;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class EmailHandler {
 
     private ObjectMapper objectMapper = new ObjectMapper();
     private static final Logger logger = LoggerFactory.getLogger(EmailHandler.class);
+    private static final int MAX_ERROR_BODY = 4096;
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    protected CloseableHttpClient httpClient;
+    protected PoolingHttpClientConnectionManager connectionManager;
+    protected CloseableHttpAsyncClient httpAsyncClient;
+    protected PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private int connectTimeout;
+    private int keepAlive;
 
-    enum Type {
+    public enum Type {
         Mailgun,
         SendGrid,
         ;
     }
 
+    public abstract Type getType();
+
     /**
      * Send email via underlying email handler
      * @param email Email
@@ -31,6 +102,289 @@ public abstract class EmailHandler {
      */
     public abstract EmailHandlerResult send(Email email) throws IOException;
 
+    /**
+     * Send email via underlying email handler without blocking the calling thread
+     * @param email Email
+     * @return future completed with emailHandlerResult, or exceptionally on IOException
+     */
+    public abstract CompletableFuture<EmailHandlerResult> sendAsync(Email email);
+
+    /**
+     * Most recipients, to, cc and bcc together, the underlying email service takes in one request
+     * @return maxRecipients, unlimited by default, as is 0 or less
+     */
+    public int getMaxRecipients() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Send emails sharing the same from, subject and content. Handlers override it to group the emails into as few
+     * requests as the underlying email service allows, by default each email is sent on its own.
+     * @param emails emails with the same from, subject and content
+     * @return emailHandlerResults in the order of emails
+     */
+    public List<EmailHandlerResult> sendBatch(List<Email> emails) {
+        List<EmailHandlerResult> results = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            try {
+                results.add(send(email));
+            } catch (IOException e) {
+                results.add(new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Request sending email to the underlying email service
+     * @param email Email
+     * @return post, or null when the handler does not send over http
+     * @throws IOException
+     */
+    protected HttpPost createPost(Email email) throws IOException {
+        return null;
+    }
+
+    /**
+     * Get ready for the first sends: serialize email iterations times so the request path is compiled, resolve the
+     * host of the underlying email service and open connections in both pools, which are kept alive for the sends.
+     * Connections are opened without sending a request.
+     * @param email valid sample email, never sent
+     * @param iterations
+     * @param connections to open in each pool, at most maxPerRoute
+     * @throws IOException when the host can not be resolved or connected to
+     */
+    public void warmUp(Email email, int iterations, int connections) throws IOException {
+        HttpPost post = createPost(email);
+        if (post == null || connectionManager == null) {
+            return;
+        }
+        for (int i = 0; i < iterations; i++) {
+            createPost(email).getEntity().writeTo(DISCARD);
+        }
+
+        HttpHost target = URIUtils.extractHost(post.getURI());
+        target = new HttpHost(target.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(target),
+                target.getSchemeName());
+        InetAddress[] addresses = InetAddress.getAllByName(target.getHostName());
+        logger.info("{} {} resolved to {}", getType(), target.getHostName(), Arrays.toString(addresses));
+
+        HttpRoute route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        openConnections(route, connections);
+        openAsyncConnections(route, connections);
+    }
+
+    /**
+     * Lease connections all at once so each one is new, connect them and put them back in the pool
+     */
+    private void openConnections(HttpRoute route, int connections) throws IOException {
+        List<HttpClientConnection> leased = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                HttpClientConnection connection =
+                        connectionManager.requestConnection(route, null).get(connectTimeout, TimeUnit.MILLISECONDS);
+                leased.add(connection);
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, connectTimeout, context);
+                    connectionManager.routeComplete(connection, route, context);
+                    // Binds the socket streams, which the stale check of the pool expects of a used connection
+                    connection.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException | ConnectionPoolTimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void openAsyncConnections(HttpRoute route, int connections) throws IOException {
+        List<NHttpClientConnection> leased = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                NHttpClientConnection connection = asyncConnectionManager.requestConnection(route, null,
+                        connectTimeout, connectTimeout, TimeUnit.MILLISECONDS, null)
+                        .get(connectTimeout, TimeUnit.MILLISECONDS);
+                leased.add(connection);
+                if (!asyncConnectionManager.isRouteComplete(connection)) {
+                    HttpClientContext context = HttpClientContext.create();
+                    asyncConnectionManager.startRoute(connection, route, context);
+                    asyncConnectionManager.routeComplete(connection, route, context);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException(e);
+        } finally {
+            for (NHttpClientConnection connection : leased) {
+                asyncConnectionManager.releaseConnection(connection, null, keepAlive, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Build the long-lived pooled http clients used by every send of this handler, a blocking one for send and a
+     * non-blocking one for sendAsync. Connections are kept alive between sends and idle or expired ones are evicted
+     * in background.
+     * @param applicationProperties
+     */
+    protected void initHttpClient(ApplicationProperties applicationProperties) {
+        int socketTimeout = getIntProperty(applicationProperties, "http.client.timeout", 10000);
+        int connectTimeout = getIntProperty(applicationProperties, "http.client.connectTimeout", 5000);
+        int maxTotal = getIntProperty(applicationProperties, "http.client.pool.maxTotal", 200);
+        int maxPerRoute = getIntProperty(applicationProperties, "http.client.pool.maxPerRoute", 100);
+        int keepAlive = getIntProperty(applicationProperties, "http.client.pool.keepAlive", 30000);
+        int idleTimeout = getIntProperty(applicationProperties, "http.client.pool.idleTimeout", 30000);
+        this.connectTimeout = connectTimeout;
+        this.keepAlive = keepAlive;
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxTotal);
+        this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        this.connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig config = RequestConfig.custom()
+                .setSocketTimeout(socketTimeout)
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .build();
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        };
+
+        this.httpClient = HttpClientBuilder.create()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .build();
+
+        try {
+            IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                    .setConnectTimeout(connectTimeout)
+                    .setSoTimeout(socketTimeout)
+                    .build();
+            this.asyncConnectionManager =
+                    new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Failed to start http io reactor", e);
+        }
+        this.asyncConnectionManager.setMaxTotal(maxTotal);
+        this.asyncConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        this.httpAsyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(this.asyncConnectionManager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .build();
+        this.httpAsyncClient.start();
+    }
+
+    /**
+     * Execute post with the blocking client
+     * @param post
+     * @return emailHandlerResult EmailHandlerResult
+     * @throws IOException
+     */
+    protected EmailHandlerResult execute(HttpPost post) throws IOException {
+        try (CloseableHttpResponse response = this.httpClient.execute(post)) {
+            return convertResponseToEmailResult(getType(), response);
+        }
+    }
+
+    /**
+     * Execute post with the non-blocking client. Response is read and converted on the io dispatch thread, without
+     * buffering more of its body than an error message needs.
+     * @param post
+     * @return future of emailHandlerResult
+     */
+    protected CompletableFuture<EmailHandlerResult> executeAsync(HttpPost post) {
+        CompletableFuture<EmailHandlerResult> future = new CompletableFuture<>();
+        Future<EmailHandlerResult> request = this.httpAsyncClient.execute(HttpAsyncMethods.create(post),
+                new ResultConsumer(), new FutureCallback<EmailHandlerResult>() {
+            @Override
+            public void completed(EmailHandlerResult emailHandlerResult) {
+                future.complete(emailHandlerResult);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        // Cancelling the returned future, e.g. when a hedged request lost, aborts the request
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) {
+                request.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send a request carrying several emails and give its result to each of them
+     * @param post
+     * @param size number of emails in the request
+     * @return emailHandlerResults, FAIL for all when the request could not be sent
+     */
+    protected List<EmailHandlerResult> executeBatch(HttpPost post, int size) {
+        EmailHandlerResult result;
+        try {
+            result = execute(post);
+        } catch (IOException e) {
+            logger.warn("{} batch of {} emails failed", getType(), size, e);
+            result = new EmailHandlerResult(EmailHandlerResult.Type.FAIL);
+        }
+        return Collections.nCopies(size, result);
+    }
+
+    protected static CompletableFuture<EmailHandlerResult> failedFuture(Throwable throwable) {
+        CompletableFuture<EmailHandlerResult> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * Leased, available and pending connections of the pool
+     * @return poolStats PoolStats, null before the http client is initialized
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager != null ? connectionManager.getTotalStats() : null;
+    }
+
+    /**
+     * Leased, available and pending connections of the non-blocking pool
+     * @return poolStats PoolStats, null before the http client is initialized
+     */
+    public PoolStats getAsyncPoolStats() {
+        return asyncConnectionManager != null ? asyncConnectionManager.getTotalStats() : null;
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        if (httpAsyncClient != null) {
+            httpAsyncClient.close();
+        }
+    }
 
     /**
      * Convert HttpResponse into EmailHandlerResult
@@ -40,28 +394,147 @@ public abstract class EmailHandler {
      * @throws IOException
      */
     protected EmailHandlerResult convertResponseToEmailResult(Type type, HttpResponse response) throws IOException {
-        BufferedReader rd = new BufferedReader(
-                new InputStreamReader(response.getEntity().getContent()));
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        try {
+            if (statusCode < 300) {
+                logger.debug("{} {}", type, statusCode);
+                EmailHandlerResult emailHandlerResult = new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS);
+                emailHandlerResult.setProviderStatus(statusCode);
+                return emailHandlerResult;
+            }
+
+            // A throttled request is the provider failing to take it now, so it fails over and is retried
+            EmailHandlerResult emailHandlerResult = new EmailHandlerResult(statusCode < 500 && statusCode != 429
+                    ? EmailHandlerResult.Type.ILLEGAL_ARGUMENT
+                    : EmailHandlerResult.Type.FAIL);
+            emailHandlerResult.setProviderStatus(statusCode);
+            setErrorDetails(emailHandlerResult, entity);
+            logger.info("{} {}: {}", type, statusCode, emailHandlerResult.getDetails());
+            return emailHandlerResult;
+        } finally {
+            // Drain what is left so the connection goes back to the pool
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Read at most MAX_ERROR_BODY bytes of an error body, keeping it as JSON when it parses and as text otherwise
+     * @param emailHandlerResult
+     * @param entity
+     * @throws IOException
+     */
+    private void setErrorDetails(EmailHandlerResult emailHandlerResult, HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return;
+        }
 
-        StringBuffer result = new StringBuffer();
-        String line;
-        while ((line = rd.readLine()) != null) {
-            result.append(line);
+        byte[] body = new byte[MAX_ERROR_BODY];
+        int length = 0;
+        try (InputStream inputStream = entity.getContent()) {
+            int read;
+            while (length < body.length && (read = inputStream.read(body, length, body.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (length == 0) {
+            return;
         }
 
-        logger.info(type.toString() + " " + response.getStatusLine().getStatusCode() +": " + result);
+        ContentType contentType = ContentType.get(entity);
+        Charset charset = contentType != null && contentType.getCharset() != null
+                ? contentType.getCharset()
+                : StandardCharsets.UTF_8;
+        JsonNode details;
+        try {
+            details = charset.equals(StandardCharsets.UTF_8)
+                    ? objectMapper.readTree(new ByteArrayInputStream(body, 0, length))
+                    : objectMapper.readTree(new String(body, 0, length, charset));
+        } catch (JsonProcessingException e) {
+            details = null;
+        }
 
-        if (response.getStatusLine().getStatusCode() < 300) {
-            return new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS);
-        } else if (response.getStatusLine().getStatusCode() < 500) {
-            if (result.length() > 0) {
-                JsonNode jsonNode = objectMapper.readTree(result.toString());
-                return new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, jsonNode.toString());
-            } else {
-                return new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT);
+        if (details != null && details.isContainerNode()) {
+            emailHandlerResult.setDetails(details);
+            // Mailgun answers {"message": ...}, SendGrid {"errors": [{"message": ...}]}
+            JsonNode message = details.has("errors")
+                    ? details.path("errors").path(0).path("message")
+                    : details.path("message");
+            if (message.isTextual()) {
+                emailHandlerResult.setMessage(message.asText());
             }
         } else {
-            return new EmailHandlerResult(EmailHandlerResult.Type.FAIL);
+            String text = new String(body, 0, length, charset);
+            emailHandlerResult.setDetails(TextNode.valueOf(text));
+            emailHandlerResult.setMessage(text);
+        }
+    }
+
+    /**
+     * Reads the response of an async request as it arrives. The body of a successful response is discarded and at
+     * most MAX_ERROR_BODY bytes of an error body are kept; the rest is read and dropped, so the connection can be
+     * reused.
+     */
+    private class ResultConsumer extends AbstractAsyncResponseConsumer<EmailHandlerResult> {
+
+        private HttpResponse response;
+        private ContentType contentType;
+        private ByteBuffer body;
+        private ByteBuffer discard;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
         }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            this.contentType = contentType;
+            if (response.getStatusLine().getStatusCode() >= 300) {
+                long length = entity.getContentLength();
+                body = ByteBuffer.allocate(length >= 0 && length < MAX_ERROR_BODY ? (int) length : MAX_ERROR_BODY);
+            }
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            while (true) {
+                ByteBuffer buffer = body != null && body.hasRemaining() ? body : discard();
+                int read = decoder.read(buffer);
+                if (buffer == discard) {
+                    discard.clear();
+                }
+                if (read <= 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected EmailHandlerResult buildResult(HttpContext context) throws IOException {
+            response.setEntity(body != null
+                    ? new ByteArrayEntity(body.array(), 0, body.position(), contentType)
+                    : null);
+            return convertResponseToEmailResult(getType(), response);
+        }
+
+        @Override
+        protected void releaseResources() {
+            response = null;
+            body = null;
+            discard = null;
+        }
+
+        private ByteBuffer discard() {
+            if (discard == null) {
+                discard = ByteBuffer.allocate(1024);
+            }
+            return discard;
+        }
+    }
+
+    private int getIntProperty(ApplicationProperties applicationProperties, String propertyName, int defaultValue) {
+        String value = applicationProperties.getProperty(propertyName);
+        return value != null ? Integer.valueOf(value) : defaultValue;
     }
 }
@@ -0,0 +1,247 @@
+package com.siteminder.email.http;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.siteminder.email.attachment.Base64InputStream;
+import com.siteminder.email.attachment.MappedFileInputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentOutputStream;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.util.SharedOutputBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Http entity whose JSON body is written by a generator straight into the request stream, so no tree of maps or
+ * full body String is built. The body is chunked since its length is unknown until written.
+ *
+ * Files written with writeBase64 are streamed from disk in both cases: into the request stream, or as streams spliced
+ * between the buffered JSON when the body is pulled through getContent. For the async client, produceContent has the
+ * generator write on a writer thread into a SharedOutputBuffer of BUFFER_SIZE which the I/O reactor drains, so the
+ * writer blocks while the connection takes no more and no more than BUFFER_SIZE of the body is held at a time.
+ */
+public class JsonStreamEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    public interface JsonWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private static final char[] QUOTE = {'"'};
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "json-stream-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JsonWriter jsonWriter;
+    private BodyWriter bodyWriter;
+
+    public JsonStreamEntity(JsonWriter jsonWriter) {
+        this.jsonWriter = jsonWriter;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Only used by clients that pull the body, which get the JSON written in memory and files streamed from disk
+     * @return body
+     * @throws IOException
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        SegmentedOutputStream outputStream = new SegmentedOutputStream();
+        writeTo(outputStream);
+        return outputStream.toInputStream();
+    }
+
+    /**
+     * Write a file as a base64 string value, read through memory-mapped windows
+     * @param generator of this entity, positioned where a value is expected
+     * @param path of the file
+     * @throws IOException
+     */
+    public static void writeBase64(JsonGenerator generator, Path path) throws IOException {
+        Object target = generator.getOutputTarget();
+        if (!(target instanceof SegmentedOutputStream)) {
+            try (InputStream inputStream = new MappedFileInputStream(path)) {
+                generator.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, inputStream, -1);
+            }
+            return;
+        }
+        generator.writeRawValue(QUOTE, 0, 1);
+        generator.flush();
+        ((SegmentedOutputStream) target).addStream(new Base64InputStream(new LazyFileInputStream(path)));
+        generator.writeRaw('"');
+    }
+
+    /**
+     * Write what the writer thread has buffered to encoder, starting the writer on the first call. Output is
+     * suspended while the buffer is empty and requested again by the writer.
+     * @param encoder
+     * @param ioControl
+     * @throws IOException when the body could not be written
+     */
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        if (bodyWriter == null) {
+            bodyWriter = new BodyWriter();
+            WRITERS.execute(bodyWriter);
+        }
+        BodyWriter writer = bodyWriter;
+        writer.ioControl = ioControl;
+        writer.buffer.produceContent(encoder, ioControl);
+        // Checked after output may have been suspended, as the writer requests output once it has failed
+        if (writer.failure != null) {
+            close();
+            throw new IOException("Failed to write request body", writer.failure);
+        }
+        if (encoder.isCompleted()) {
+            bodyWriter = null;
+        }
+    }
+
+    /**
+     * Stop the body being produced, so that the next produceContent starts it over
+     */
+    @Override
+    public void close() {
+        BodyWriter writer = bodyWriter;
+        bodyWriter = null;
+        if (writer != null) {
+            // Wakes up the writer if it waits for the connection to take more
+            writer.buffer.shutdown();
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            jsonWriter.write(generator);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Buffers written bytes, and keeps streams added in between as they are. Buffered bytes are read where they were
+     * written rather than copied out.
+     */
+    private static class SegmentedOutputStream extends ByteArrayOutputStream {
+
+        private final List<InputStream> segments = new ArrayList<>();
+
+        SegmentedOutputStream() {
+            super(4096);
+        }
+
+        void addStream(InputStream inputStream) {
+            segments.add(new ByteArrayInputStream(buf, 0, count));
+            segments.add(inputStream);
+            buf = new byte[4096];
+            count = 0;
+        }
+
+        InputStream toInputStream() {
+            if (segments.isEmpty()) {
+                return new ByteArrayInputStream(buf, 0, count);
+            }
+            List<InputStream> all = new ArrayList<>(segments);
+            all.add(new ByteArrayInputStream(buf, 0, count));
+            return new SequenceInputStream(Collections.enumeration(all));
+        }
+    }
+
+    /**
+     * Writes the body into a bounded buffer drained by produceContent
+     */
+    private class BodyWriter implements Runnable {
+
+        private final SharedOutputBuffer buffer = new SharedOutputBuffer(BUFFER_SIZE);
+        private volatile IOControl ioControl;
+        private volatile Exception failure;
+
+        @Override
+        public void run() {
+            try {
+                writeTo(new ContentOutputStream(buffer));
+                buffer.writeCompleted();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                IOControl control = ioControl;
+                if (control != null) {
+                    control.requestOutput();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the file on first read, so that files are not held open before their turn
+     */
+    private static class LazyFileInputStream extends InputStream {
+
+        private final Path path;
+        private InputStream inputStream;
+
+        LazyFileInputStream(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return open().read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (inputStream == null) {
+                inputStream = new MappedFileInputStream(path);
+            }
+            return inputStream;
+        }
+    }
+}
@@ -1,25 +1,28 @@
 package com.siteminder.email.http;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.siteminder.email.config.ApplicationProperties;
 import com.siteminder.email.model.Email;
 import com.siteminder.email.model.EmailHandlerResult;
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicNameValuePair;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 
 @Component
@@ -28,34 +31,123 @@ public class MailgunEmailHandler extends EmailHandler {
     @Autowired
     private ApplicationProperties applicationProperties;
 
+    private static final int MAX_BATCH_RECIPIENTS = 1000;
+
     private String serverUrl;
     private Type type = Type.Mailgun;
-    private int httpClientTimeout = 10000;
+    private ObjectMapper objectMapper = new ObjectMapper();
 
-    @EventListener(ApplicationReadyEvent.class)
+    // Before the server starts, so no request finds this handler without its http client
+    @PostConstruct
     public void init() {
         assert (applicationProperties.getProperty("mailgun.serverUrl") != null);
 
         this.serverUrl = applicationProperties.getProperty("mailgun.serverUrl");
 
-        if (applicationProperties.getProperty("http.client.timeout") != null) {
-            this.httpClientTimeout = Integer.valueOf(applicationProperties.getProperty("http.client.timeout"));
-        }
+        initHttpClient(applicationProperties);
+    }
+
+    @Override
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public int getMaxRecipients() {
+        return MAX_BATCH_RECIPIENTS;
     }
 
     @Override
     public EmailHandlerResult send(Email email) throws IOException {
-        String senderDomain = email.getFrom().split("@")[1];
-        String requestUrl = this.serverUrl + "/" + senderDomain + "/messages";
+        return execute(createPost(email));
+    }
 
-        RequestConfig config = RequestConfig.custom().setSocketTimeout(this.httpClientTimeout).build();
-        HttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
-        HttpPost post = new HttpPost(requestUrl);
+    @Override
+    public CompletableFuture<EmailHandlerResult> sendAsync(Email email) {
+        HttpPost post;
+        try {
+            post = createPost(email);
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+        return executeAsync(post);
+    }
+
+    /**
+     * Emails with a single to and no cc or bcc are sent as batches of up to 1000 recipients using
+     * recipient-variables, so that each recipient still gets an individual message. Other emails are sent one by one.
+     * @param emails emails with the same from, subject and content
+     * @return emailHandlerResults in the order of emails
+     */
+    @Override
+    public List<EmailHandlerResult> sendBatch(List<Email> emails) {
+        EmailHandlerResult[] results = new EmailHandlerResult[emails.size()];
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> batch = new ArrayList<>();
+        Set<String> batchRecipients = new HashSet<>();
+
+        for (int i = 0; i < emails.size(); i++) {
+            Email email = emails.get(i);
+            if (email.getTo().size() != 1 || email.getCc().size() != 0 || email.getBcc().size() != 0) {
+                results[i] = sendBatchItem(email);
+                continue;
+            }
+
+            String recipient = email.getTo().get(0);
+            if (batch.size() == MAX_BATCH_RECIPIENTS || batchRecipients.contains(recipient)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchRecipients.clear();
+            }
+            batch.add(i);
+            batchRecipients.add(recipient);
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        for (List<Integer> indexes : batches) {
+            List<EmailHandlerResult> batchResults;
+            try {
+                batchResults = executeBatch(createBatchPost(emails, indexes), indexes.size());
+            } catch (IOException e) {
+                batchResults =
+                        Collections.nCopies(indexes.size(), new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                results[indexes.get(i)] = batchResults.get(i);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private EmailHandlerResult sendBatchItem(Email email) {
+        try {
+            return send(email);
+        } catch (IOException e) {
+            return new EmailHandlerResult(EmailHandlerResult.Type.FAIL);
+        }
+    }
+
+    @Override
+    protected HttpPost createPost(Email email) throws IOException {
+        HttpPost post = new HttpPost(getRequestUrl(email));
         setPostFormEntity(post, email);
+        if (email.getAttachments().isEmpty()) {
+            post.addHeader("Content-Type", "application/x-www-form-urlencoded");
+        }
+        return post;
+    }
+
+    private HttpPost createBatchPost(List<Email> emails, List<Integer> indexes) throws IOException {
+        HttpPost post = new HttpPost(getRequestUrl(emails.get(indexes.get(0))));
+        setPostBatchFormEntity(post, emails, indexes);
         post.addHeader("Content-Type", "application/x-www-form-urlencoded");
+        return post;
+    }
 
-        HttpResponse response = client.execute(post);
-        return convertResponseToEmailResult(this.type, response);
+    private String getRequestUrl(Email email) {
+        return this.serverUrl + "/" + email.getFromAddress().getDomain() + "/messages";
     }
 
     /**
@@ -66,19 +158,58 @@ public class MailgunEmailHandler extends EmailHandler {
      * bcc: [String]
      * subject: String
      * test: String
+     * attachment: [file], as multipart/form-data when there are attachments
      *
      * @param post
      * @param email
      * @throws UnsupportedEncodingException
      */
-    private void setPostFormEntity(HttpPost post, Email email) throws UnsupportedEncodingException {
+    void setPostFormEntity(HttpPost post, Email email) throws UnsupportedEncodingException {
         List<NameValuePair> urlParameters = new ArrayList<>();
         urlParameters.add(new BasicNameValuePair("from", email.getFrom()));
         email.getTo().forEach((value) -> urlParameters.add(new BasicNameValuePair("to", value)));
         email.getCc().forEach((value) -> urlParameters.add(new BasicNameValuePair("cc", value)));
         email.getBcc().forEach((value) -> urlParameters.add(new BasicNameValuePair("bcc", value)));
-        urlParameters.add(new BasicNameValuePair("subject", email.getSubject()));
-        urlParameters.add(new BasicNameValuePair("text", email.getContent()));
+        urlParameters.add(new BasicNameValuePair("subject", email.getRenderedSubject()));
+        urlParameters.add(new BasicNameValuePair("text", email.getRenderedContent()));
+        if (email.getMessageId() != null) {
+            urlParameters.add(new BasicNameValuePair("h:Message-Id", email.getMessageId()));
+        }
+
+        if (email.getAttachments().isEmpty()) {
+            post.setEntity(new UrlEncodedFormEntity(urlParameters));
+        } else {
+            post.setEntity(new MultipartStreamEntity(urlParameters, "attachment", email.getAttachments()));
+        }
+    }
+
+    /**
+     * setPostBatchFormEntity (Content-Type: application/x-www-form-urlencoded)
+     * form: String
+     * to: [String]
+     * subject: String
+     * text: String
+     * recipient-variables: {"john.doe@example.com": {"index": 0}}
+     *
+     * @param post
+     * @param emails
+     * @param indexes of emails in the batch, each with a single to
+     * @throws IOException
+     */
+    private void setPostBatchFormEntity(HttpPost post, List<Email> emails, List<Integer> indexes) throws IOException {
+        Email first = emails.get(indexes.get(0));
+        List<NameValuePair> urlParameters = new ArrayList<>(indexes.size() + 4);
+        Map<String, Map<String, Integer>> recipientVariables = new LinkedHashMap<>();
+        urlParameters.add(new BasicNameValuePair("from", first.getFrom()));
+        for (Integer index : indexes) {
+            String recipient = emails.get(index).getTo().get(0);
+            urlParameters.add(new BasicNameValuePair("to", recipient));
+            recipientVariables.put(recipient, Collections.singletonMap("index", index));
+        }
+        urlParameters.add(new BasicNameValuePair("subject", first.getRenderedSubject()));
+        urlParameters.add(new BasicNameValuePair("text", first.getRenderedContent()));
+        urlParameters.add(new BasicNameValuePair("recipient-variables",
+                objectMapper.writeValueAsString(recipientVariables)));
 
         post.setEntity(new UrlEncodedFormEntity(urlParameters));
     }
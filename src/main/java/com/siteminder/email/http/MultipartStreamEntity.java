@@ -0,0 +1,139 @@
+package com.siteminder.email.http;
+
+import com.siteminder.email.attachment.MappedFileInputStream;
+import com.siteminder.email.model.Attachment;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * multipart/form-data entity of text fields and files. Only part headers and field values are held in memory, files
+ * are read from disk through memory-mapped windows while the body is written or pulled, so the length of the body is
+ * known without reading them.
+ */
+public class MultipartStreamEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<byte[]> heads = new ArrayList<>();
+    private final List<Attachment> files = new ArrayList<>();
+    private final byte[] tail;
+    private final long contentLength;
+
+    /**
+     * @param fields text fields, in order
+     * @param fileFieldName name of the fields holding files
+     * @param attachments files, after the text fields
+     */
+    public MultipartStreamEntity(List<NameValuePair> fields, String fileFieldName, List<Attachment> attachments) {
+        String boundary = "----email" + UUID.randomUUID().toString().replace("-", "");
+        setContentType("multipart/form-data; boundary=" + boundary);
+
+        StringBuilder head = new StringBuilder();
+        for (NameValuePair field : fields) {
+            head.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(quote(field.getName())).append("\"\r\n")
+                    .append("\r\n")
+                    .append(field.getValue()).append("\r\n");
+        }
+        long length = 0;
+        for (Attachment attachment : attachments) {
+            head.append("--").append(boundary).append("\r\n")
+                    .append("Content-Disposition: form-data; name=\"").append(quote(fileFieldName))
+                    .append("\"; filename=\"").append(quote(attachment.getFilename())).append("\"\r\n")
+                    .append("Content-Type: ").append(attachment.getContentType()).append("\r\n")
+                    .append("\r\n");
+            heads.add(head.toString().getBytes(StandardCharsets.UTF_8));
+            files.add(attachment);
+            length += heads.get(heads.size() - 1).length + attachment.getSize();
+            head.setLength(0);
+            head.append("\r\n");
+        }
+        head.append("--").append(boundary).append("--\r\n");
+        this.tail = head.toString().getBytes(StandardCharsets.UTF_8);
+        this.contentLength = length + tail.length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new SequenceInputStream(new Parts());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int i = 0; i < files.size(); i++) {
+            outputStream.write(heads.get(i));
+            try (InputStream inputStream = new MappedFileInputStream(files.get(i).getPath())) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        }
+        outputStream.write(tail);
+        outputStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static String quote(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "").replace("\n", "");
+    }
+
+    /**
+     * Heads and files in order, files being opened only when reached
+     */
+    private class Parts implements Enumeration<InputStream> {
+
+        private int next;
+
+        @Override
+        public boolean hasMoreElements() {
+            return next <= 2 * files.size();
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (!hasMoreElements()) {
+                throw new NoSuchElementException();
+            }
+            int part = next++;
+            if (part == 2 * files.size()) {
+                return new ByteArrayInputStream(tail);
+            }
+            if (part % 2 == 0) {
+                return new ByteArrayInputStream(heads.get(part / 2));
+            }
+            try {
+                return new MappedFileInputStream(files.get(part / 2).getPath());
+            } catch (IOException e) {
+                throw new IllegalStateException("Attachment is not readable: " + files.get(part / 2), e);
+            }
+        }
+    }
+}
@@ -1,29 +1,23 @@
 package com.siteminder.email.http;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.AddressList;
+import com.siteminder.email.model.Attachment;
 import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailAddress;
 import com.siteminder.email.model.EmailHandlerResult;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.config.RequestConfig;
+import com.siteminder.email.template.CompiledTemplate;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 public class SendGridEmailHandler extends EmailHandler {
@@ -31,39 +25,98 @@ public class SendGridEmailHandler extends EmailHandler {
     @Autowired
     private ApplicationProperties applicationProperties;
 
+    private static final int MAX_BATCH_RECIPIENTS = 1000;
+
     private String serverUrl;
     private String key;
-    private ObjectMapper objectMapper = new ObjectMapper();
     private Type type = Type.SendGrid;
-    private int httpClientTimeout;
 
-    @EventListener(ApplicationReadyEvent.class)
+    // Before the server starts, so no request finds this handler without its http client
+    @PostConstruct
     public void init() {
         assert (applicationProperties.getProperty("sendgrid.serverUrl") != null);
         assert (applicationProperties.getProperty("sendgrid.key") != null);
 
         this.serverUrl = applicationProperties.getProperty("sendgrid.serverUrl");
         this.key = applicationProperties.getProperty("sendgrid.key");
-        this.objectMapper.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, true);
 
-        if (applicationProperties.getProperty("http.client.timeout") != null) {
-            this.httpClientTimeout = Integer.valueOf(applicationProperties.getProperty("http.client.timeout"));
-        }
+        initHttpClient(applicationProperties);
+    }
+
+    @Override
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public int getMaxRecipients() {
+        return MAX_BATCH_RECIPIENTS;
     }
 
     @Override
     public EmailHandlerResult send(Email email) throws IOException {
-        String requestUrl = this.serverUrl + "/v3/mail/send";
+        return execute(createPost(email));
+    }
+
+    @Override
+    public CompletableFuture<EmailHandlerResult> sendAsync(Email email) {
+        HttpPost post;
+        try {
+            post = createPost(email);
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+        return executeAsync(post);
+    }
+
+    /**
+     * Emails are sent as one personalization each, grouped into requests of up to 1000 recipients
+     * @param emails emails with the same from, subject and content
+     * @return emailHandlerResults in the order of emails
+     */
+    @Override
+    public List<EmailHandlerResult> sendBatch(List<Email> emails) {
+        List<EmailHandlerResult> results = new ArrayList<>(emails.size());
+        int start = 0;
+        while (start < emails.size()) {
+            int end = start;
+            int recipients = 0;
+            while (end < emails.size()) {
+                Email email = emails.get(end);
+                int emailRecipients = email.getTo().size() + email.getCc().size() + email.getBcc().size();
+                if (end > start && recipients + emailRecipients > MAX_BATCH_RECIPIENTS) {
+                    break;
+                }
+                recipients += emailRecipients;
+                end++;
+            }
+
+            List<Email> batch = emails.subList(start, end);
+            try {
+                results.addAll(executeBatch(createBatchPost(batch), batch.size()));
+            } catch (IOException e) {
+                results.addAll(Collections.nCopies(batch.size(), new EmailHandlerResult(EmailHandlerResult.Type.FAIL)));
+            }
+            start = end;
+        }
+        return results;
+    }
 
-        RequestConfig config = RequestConfig.custom().setSocketTimeout(this.httpClientTimeout).build();
-        HttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
-        HttpPost post = new HttpPost(requestUrl);
+    @Override
+    protected HttpPost createPost(Email email) throws IOException {
+        HttpPost post = new HttpPost(this.serverUrl + "/v3/mail/send");
         setPostJsonEntity(post, email);
         post.addHeader("Content-Type", "application/json");
         post.addHeader("Authorization", "Bearer " + this.key);
+        return post;
+    }
 
-        HttpResponse response = client.execute(post);
-        return convertResponseToEmailResult(this.type, response);
+    private HttpPost createBatchPost(List<Email> emails) throws IOException {
+        HttpPost post = new HttpPost(this.serverUrl + "/v3/mail/send");
+        setPostBatchJsonEntity(post, emails);
+        post.addHeader("Content-Type", "application/json");
+        post.addHeader("Authorization", "Bearer " + this.key);
+        return post;
     }
 
     /**
@@ -101,70 +154,169 @@ public class SendGridEmailHandler extends EmailHandler {
      *       "type": "text/plain",
      *       "value": "content"
      *     }
-     *   ]
+     *   ],
+     *   "attachments": [
+     *     {
+     *       "content": "base64",
+     *       "type": "application/pdf",
+     *       "filename": "invoice.pdf",
+     *       "disposition": "attachment"
+     *     }
+     *   ],
+     *   "headers": {
+     *     "Message-ID": "<0f1e2d3c@podtrackers.com>"
+     *   }
      * }
      *
      * @param post
      * @param email
-     * @throws UnsupportedEncodingException
-     * @throws JsonProcessingException
      */
-    private void setPostJsonEntity(HttpPost post, Email email) throws UnsupportedEncodingException, JsonProcessingException {
-        Map<String, Object> jsonMap = new HashMap<>();
-        Map<String, Object> personalizationsMap = new HashMap<>();
-        List<Map<String, String>> toList = new ArrayList<>();
-        for (int i = 0; i < email.getTo().size(); i++) {
-            toList.add(emailValueToMap(email.getTo().get(i)));
-        }
-        personalizationsMap.put("to", toList);
-        List<Map<String, Object>> personalizationList = new ArrayList<>();
-        personalizationList.add(personalizationsMap);
-        jsonMap.put("personalizations", personalizationList);
+    void setPostJsonEntity(HttpPost post, Email email) {
+        post.setEntity(new JsonStreamEntity(generator -> {
+            generator.writeStartObject();
 
-        jsonMap.put("from", emailValueToMap(email.getFrom()));
+            generator.writeArrayFieldStart("personalizations");
+            generator.writeStartObject();
+            writeAddresses(generator, "to", email.getTo());
+            generator.writeEndObject();
+            generator.writeEndArray();
 
-        if (email.getCc().size() > 0) {
-            List<Map<String, String>> ccList = new ArrayList<>();
-            for (int i = 0; i < email.getCc().size(); i++) {
-                ccList.add(emailValueToMap(email.getCc().get(i)));
+            generator.writeFieldName("from");
+            writeAddress(generator, email.getFromAddress());
+            if (email.getCc().size() > 0) {
+                writeAddresses(generator, "cc", email.getCc());
             }
-            jsonMap.put("cc", ccList);
-        }
-
-        if (email.getBcc().size() > 0) {
-            List<Map<String, String>> bccList = new ArrayList<>();
-            for (int i = 0; i < email.getBcc().size(); i++) {
-                bccList.add(emailValueToMap(email.getBcc().get(i)));
+            if (email.getBcc().size() > 0) {
+                writeAddresses(generator, "bcc", email.getBcc());
+            }
+            writeSubjectAndContent(generator, email);
+            if (email.getAttachments().size() > 0) {
+                writeAttachments(generator, email.getAttachments());
+            }
+            if (email.getMessageId() != null) {
+                generator.writeObjectFieldStart("headers");
+                generator.writeStringField("Message-ID", email.getMessageId());
+                generator.writeEndObject();
             }
-            jsonMap.put("cc", bccList);
-        }
 
-        jsonMap.put("subject", email.getSubject());
+            generator.writeEndObject();
+        }));
+    }
 
-        List<Map<String, String>> contentList = new ArrayList<>();
-        Map<String, String> contentMap = new HashMap<>();
-        contentMap.put("type", "text/plain");
-        contentMap.put("value", email.getContent());
-        contentList.add(contentMap);
+    /**
+     * setPostBatchJsonEntity (Content-Type: application/json)
+     * Same as setPostJsonEntity, with one personalization per email holding its to, cc and bcc
+     * {
+     *   "personalizations": [
+     *     {
+     *       "to": [{"email": "john.doe@example.com", "name": "John Doe"}],
+     *       "cc": [{"email": "jerry@podtrackers.com", "name": "Sam Smith"}],
+     *       "bcc": [{"email": "jerry@podtrackers.com", "name": "Sam Smith"}]
+     *     }
+     *   ],
+     *   "from": {"email": "jerry@podtrackers.com", "name": "Sam Smith"},
+     *   "subject": "test",
+     *   "content": [{"type": "text/plain", "value": "content"}]
+     * }
+     *
+     * @param post
+     * @param emails emails with the same from, subject and content
+     */
+    private void setPostBatchJsonEntity(HttpPost post, List<Email> emails) {
+        post.setEntity(new JsonStreamEntity(generator -> {
+            generator.writeStartObject();
+
+            generator.writeArrayFieldStart("personalizations");
+            for (Email email : emails) {
+                generator.writeStartObject();
+                writeAddresses(generator, "to", email.getTo());
+                if (email.getCc().size() > 0) {
+                    writeAddresses(generator, "cc", email.getCc());
+                }
+                if (email.getBcc().size() > 0) {
+                    writeAddresses(generator, "bcc", email.getBcc());
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
 
-        jsonMap.put("content", contentList);
+            Email first = emails.get(0);
+            generator.writeFieldName("from");
+            writeAddress(generator, first.getFromAddress());
+            writeSubjectAndContent(generator, first);
 
-        String json = objectMapper.writeValueAsString(jsonMap);
-        post.setEntity(new StringEntity(
-                json,
-                ContentType.APPLICATION_JSON)
-        );
+            generator.writeEndObject();
+        }));
     }
 
-    private Map<String, String> emailValueToMap(String value) {
-        Map<String, String> map = new HashMap<>();
-        if (value.contains(" ")) {
-            String[] array = value.split(" ");
-            map.put("name", array[0]);
-            map.put("email", array[1]);
+    /**
+     * Write subject and content, rendering the template of email straight into the body when it has one
+     * @param generator
+     * @param email
+     * @throws IOException
+     */
+    private void writeSubjectAndContent(JsonGenerator generator, Email email) throws IOException {
+        CompiledTemplate template = email.getTemplate();
+        generator.writeFieldName("subject");
+        if (template == null) {
+            generator.writeString(email.getSubject());
         } else {
-            map.put("email", value);
+            template.getSubject().writeJson(generator, email.getVariables());
+        }
+        generator.writeArrayFieldStart("content");
+        generator.writeStartObject();
+        generator.writeStringField("type", "text/plain");
+        generator.writeFieldName("value");
+        if (template == null) {
+            generator.writeString(email.getContent());
+        } else {
+            template.getContent().writeJson(generator, email.getVariables());
+        }
+        generator.writeEndObject();
+        generator.writeEndArray();
+    }
+
+    /**
+     * Write attachments with their content base64 encoded from disk
+     * @param generator
+     * @param attachments
+     * @throws IOException
+     */
+    private void writeAttachments(JsonGenerator generator, List<Attachment> attachments) throws IOException {
+        generator.writeArrayFieldStart("attachments");
+        for (Attachment attachment : attachments) {
+            generator.writeStartObject();
+            generator.writeFieldName("content");
+            JsonStreamEntity.writeBase64(generator, attachment.getPath());
+            generator.writeStringField("type", attachment.getContentType());
+            generator.writeStringField("filename", attachment.getFilename());
+            generator.writeStringField("disposition", "attachment");
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private void writeAddresses(JsonGenerator generator, String fieldName, AddressList addresses) throws IOException {
+        generator.writeArrayFieldStart(fieldName);
+        for (int i = 0; i < addresses.size(); i++) {
+            writeAddress(generator, addresses.getAddress(i));
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Write "Name <addr>" or "Name addr" as {"email": "addr", "name": "Name"}
+     * @param generator
+     * @param address
+     * @throws IOException
+     */
+    private void writeAddress(JsonGenerator generator, EmailAddress address) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("email", address.getAddress());
+        String name = address.getName();
+        if (name != null && !name.isEmpty()) {
+            generator.writeStringField("name", name);
         }
-        return map;
+        generator.writeEndObject();
     }
 }
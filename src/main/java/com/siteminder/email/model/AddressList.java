@@ -0,0 +1,66 @@
+package com.siteminder.email.model;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of recipients, read as the addresses given and backed by an array of their parsed form, so indexed
+ * access is constant time and each address is parsed once.
+ */
+public final class AddressList extends AbstractList<String> implements RandomAccess {
+
+    public static final AddressList EMPTY = new AddressList(new EmailAddress[0]);
+
+    private final EmailAddress[] addresses;
+
+    private AddressList(EmailAddress[] addresses) {
+        this.addresses = addresses;
+    }
+
+    /**
+     * @param values addresses with optional display names, may be null
+     * @return values parsed, or values itself when it is an AddressList
+     */
+    public static AddressList parse(List<String> values) {
+        if (values instanceof AddressList) {
+            return (AddressList) values;
+        }
+        if (values == null || values.isEmpty()) {
+            return EMPTY;
+        }
+        EmailAddress[] addresses = new EmailAddress[values.size()];
+        int i = 0;
+        for (String value : values) {
+            addresses[i++] = EmailAddress.parse(value);
+        }
+        return new AddressList(addresses);
+    }
+
+    /**
+     * @param addresses parsed addresses, kept without copying
+     * @return list of addresses
+     */
+    public static AddressList of(EmailAddress... addresses) {
+        return addresses.length == 0 ? EMPTY : new AddressList(addresses);
+    }
+
+    @Override
+    public String get(int index) {
+        EmailAddress address = addresses[index];
+        return address == null ? null : address.getValue();
+    }
+
+    /**
+     * @param index
+     * @return parsed address, null when the value was null
+     */
+    public EmailAddress getAddress(int index) {
+        return addresses[index];
+    }
+
+    @Override
+    public int size() {
+        return addresses.length;
+    }
+}
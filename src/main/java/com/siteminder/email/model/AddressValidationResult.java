@@ -0,0 +1,40 @@
+package com.siteminder.email.model;
+
+import com.siteminder.email.service.EmailAddressValidator.Reason;
+
+public class AddressValidationResult {
+
+    private String address;
+    private boolean valid;
+    private Reason reason;
+
+    public AddressValidationResult(String address, Reason reason) {
+        this.address = address;
+        this.valid = reason == Reason.VALID;
+        this.reason = reason;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public void setReason(Reason reason) {
+        this.reason = reason;
+    }
+}
@@ -0,0 +1,46 @@
+package com.siteminder.email.model;
+
+import java.nio.file.Path;
+
+/**
+ * File attached to an email, spooled on local disk until the email is sent
+ */
+public class Attachment {
+
+    private final String filename;
+    private final String contentType;
+    private final Path path;
+    private final long size;
+
+    public Attachment(String filename, String contentType, Path path, long size) {
+        this.filename = filename;
+        this.contentType = contentType;
+        this.path = path;
+        this.size = size;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Attachment{" +
+                "filename='" + filename + '\'' +
+                ", contentType='" + contentType + '\'' +
+                ", size=" + size +
+                '}';
+    }
+}
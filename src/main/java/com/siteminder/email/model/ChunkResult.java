@@ -0,0 +1,36 @@
+package com.siteminder.email.model;
+
+/**
+ * Result of one chunk of an email split by recipients. Recipients are counted in the order to, cc, bcc, so the
+ * chunk holds recipients offset to offset + recipients - 1 of the email.
+ */
+public class ChunkResult {
+
+    private final int index;
+    private final int offset;
+    private final int recipients;
+    private final EmailHandlerResult result;
+
+    public ChunkResult(int index, int offset, int recipients, EmailHandlerResult result) {
+        this.index = index;
+        this.offset = offset;
+        this.recipients = recipients;
+        this.result = result;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    public EmailHandlerResult getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,32 @@
+package com.siteminder.email.model;
+
+public class CircuitEvent {
+
+    private long timestamp;
+    private String provider;
+    private String from;
+    private String to;
+
+    public CircuitEvent(long timestamp, String provider, String from, String to) {
+        this.timestamp = timestamp;
+        this.provider = provider;
+        this.from = from;
+        this.to = to;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+}
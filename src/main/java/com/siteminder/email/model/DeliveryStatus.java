@@ -0,0 +1,59 @@
+package com.siteminder.email.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Status of an email handed to the retry scheduler after its send failed
+ */
+public class DeliveryStatus {
+
+    public enum State {
+        RETRYING,
+        SENT,
+        FAILED,
+    }
+
+    private String id;
+    private State state;
+    private int attempts;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long nextAttemptAt;
+    private EmailHandlerResult result;
+
+    public DeliveryStatus(String id, State state, int attempts, Long nextAttemptAt, EmailHandlerResult result) {
+        this.id = id;
+        this.state = state;
+        this.attempts = attempts;
+        this.nextAttemptAt = nextAttemptAt;
+        this.result = result;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return retries made, not counting the send which handed the email over
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return time of the next retry in milliseconds since the epoch, null once the state is final
+     */
+    public Long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    /**
+     * @return result of the latest send
+     */
+    public EmailHandlerResult getResult() {
+        return result;
+    }
+}
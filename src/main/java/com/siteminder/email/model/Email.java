@@ -1,47 +1,89 @@
 package com.siteminder.email.model;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.siteminder.email.template.CompiledTemplate;
+
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Addresses are parsed once when set, and kept in their parsed form shared by validation and emailHandlers
+ */
 public class Email {
 
-    private String from;
-    private List<String> to = new LinkedList<>();
-    private List<String> cc = new LinkedList<>();
-    private List<String> bcc = new LinkedList<>();
+    /**
+     * Lane an email is dispatched in, see PriorityLanes. Transactional emails such as password resets are HIGH and
+     * newsletters LOW.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW,
+        ;
+
+        @JsonCreator
+        public static Priority of(String value) {
+            return value == null ? NORMAL : valueOf(value.toUpperCase());
+        }
+    }
+
+    private EmailAddress from;
+    private AddressList to = AddressList.EMPTY;
+    private AddressList cc = AddressList.EMPTY;
+    private AddressList bcc = AddressList.EMPTY;
     private String subject;
     private String content;
+    private String messageId;
+    private String templateId;
+    private Long sendAt;
+    private Priority priority = Priority.NORMAL;
+    private Map<String, String> variables = new HashMap<>();
+    private CompiledTemplate template;
+    private List<Attachment> attachments = new LinkedList<>();
 
     public String getFrom() {
-        return from;
+        return from == null ? null : from.getValue();
     }
 
     public void setFrom(String from) {
+        this.from = EmailAddress.parse(from);
+    }
+
+    @JsonIgnore
+    public EmailAddress getFromAddress() {
+        return from;
+    }
+
+    @JsonIgnore
+    public void setFromAddress(EmailAddress from) {
         this.from = from;
     }
 
-    public List<String> getTo() {
+    public AddressList getTo() {
         return to;
     }
 
     public void setTo(List<String> to) {
-        this.to = to;
+        this.to = AddressList.parse(to);
     }
 
-    public List<String> getCc() {
+    public AddressList getCc() {
         return cc;
     }
 
     public void setCc(List<String> cc) {
-        this.cc = cc;
+        this.cc = AddressList.parse(cc);
     }
 
-    public List<String> getBcc() {
+    public AddressList getBcc() {
         return bcc;
     }
 
     public void setBcc(List<String> bcc) {
-        this.bcc = bcc;
+        this.bcc = AddressList.parse(bcc);
     }
 
     public String getSubject() {
@@ -60,6 +102,104 @@ public class Email {
         this.content = content;
     }
 
+    /**
+     * Message-ID header sent to providers, shared by every attempt of one send so duplicates can be collapsed
+     * @return messageId such as &lt;uuid@example.com&gt;, or null to let providers generate one
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    /**
+     * Stored template rendered as subject and content instead of the ones of this email
+     * @return templateId, or null to send subject and content
+     */
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public void setTemplateId(String templateId) {
+        this.templateId = templateId;
+    }
+
+    /**
+     * Time to send at, in milliseconds since the epoch
+     * @return sendAt, or null to send right away
+     */
+    public Long getSendAt() {
+        return sendAt;
+    }
+
+    public void setSendAt(Long sendAt) {
+        this.sendAt = sendAt;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority == null ? Priority.NORMAL : priority;
+    }
+
+    /**
+     * @return values of the {{name}} variables of the template
+     */
+    public Map<String, String> getVariables() {
+        return variables;
+    }
+
+    public void setVariables(Map<String, String> variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * @return compiled template of templateId, resolved once by validation and shared by every attempt of one send
+     */
+    @JsonIgnore
+    public CompiledTemplate getTemplate() {
+        return template;
+    }
+
+    @JsonIgnore
+    public void setTemplate(CompiledTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * Attachments are only taken from multipart requests, never from JSON, since they refer to local files
+     * @return attachments spooled on disk
+     */
+    @JsonIgnore
+    public List<Attachment> getAttachments() {
+        return attachments;
+    }
+
+    @JsonIgnore
+    public void setAttachments(List<Attachment> attachments) {
+        this.attachments = attachments;
+    }
+
+    /**
+     * @return subject, rendered from the template when there is one
+     */
+    @JsonIgnore
+    public String getRenderedSubject() {
+        return template == null ? subject : template.getSubject().render(variables);
+    }
+
+    /**
+     * @return content, rendered from the template when there is one
+     */
+    @JsonIgnore
+    public String getRenderedContent() {
+        return template == null ? content : template.getContent().render(variables);
+    }
+
     @Override
     public String toString() {
         return "Email{" +
@@ -69,6 +209,12 @@ public class Email {
                 ", bcc=" + bcc +
                 ", subject='" + subject + '\'' +
                 ", content='" + content + '\'' +
+                ", messageId='" + messageId + '\'' +
+                ", templateId='" + templateId + '\'' +
+                ", sendAt=" + sendAt +
+                ", priority=" + priority +
+                ", variables=" + variables +
+                ", attachments=" + attachments +
                 '}';
     }
 }
@@ -0,0 +1,203 @@
+package com.siteminder.email.model;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Address with optional display name, parsed once when an email is read. Only the text as given is kept, along with
+ * the bounds of its name and address, so parts are cut from it when needed rather than stored.
+ *
+ * Accepted forms are "addr", "Name addr" and "Name &lt;addr&gt;", where the name may be quoted. Parsing finds the
+ * parts without checking them, see EmailAddressValidator.
+ *
+ * Domains are lower cased and shared through a fixed size, direct-mapped table, so emails to many recipients at the
+ * same domain hold one copy of it.
+ */
+public final class EmailAddress {
+
+    private static final int SHARED_DOMAINS_SIZE = 4096;
+    private static final AtomicReferenceArray<String> SHARED_DOMAINS = new AtomicReferenceArray<>(SHARED_DOMAINS_SIZE);
+
+    private final String value;
+    private final int start;
+    private final int nameEnd;
+    private final int addressStart;
+    private final int addressEnd;
+    private final String domain;
+
+    private EmailAddress(String value, int start, int nameEnd, int addressStart, int addressEnd) {
+        this.value = value;
+        this.start = start;
+        this.nameEnd = nameEnd;
+        this.addressStart = addressStart;
+        this.addressEnd = addressEnd;
+        int at = addressStart < 0 ? -1 : value.lastIndexOf('@', addressEnd - 1);
+        this.domain = at < addressStart ? null : share(value, at + 1, addressEnd);
+    }
+
+    /**
+     * @param value address with optional display name
+     * @return parsed address, or null when value is null
+     */
+    public static EmailAddress parse(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        int start = 0;
+        int end = value.length();
+        while (start < end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return new EmailAddress(value, start, start, start, start);
+        }
+
+        int addressStart;
+        int addressEnd;
+        int nameEnd;
+        if (value.charAt(end - 1) == '>') {
+            addressEnd = end - 1;
+            addressStart = value.lastIndexOf('<', addressEnd);
+            if (addressStart < start) {
+                // No opening bracket, the name can not be told from the address
+                return new EmailAddress(value, start, end, -1, end);
+            }
+            nameEnd = addressStart;
+            addressStart++;
+        } else {
+            addressEnd = end;
+            addressStart = findAddressStart(value, start, end);
+            nameEnd = addressStart;
+        }
+
+        while (nameEnd > start && Character.isWhitespace(value.charAt(nameEnd - 1))) {
+            nameEnd--;
+        }
+        return new EmailAddress(value, start, nameEnd, addressStart, addressEnd);
+    }
+
+    /**
+     * Walk back from the last @ over the local part, which is either quoted or ends at a whitespace
+     */
+    private static int findAddressStart(String value, int start, int end) {
+        int at = value.lastIndexOf('@', end - 1);
+        if (at < start) {
+            int space = end - 1;
+            while (space >= start && !Character.isWhitespace(value.charAt(space))) {
+                space--;
+            }
+            return space + 1;
+        }
+
+        if (at > start && value.charAt(at - 1) == '"') {
+            for (int i = at - 2; i >= start; i--) {
+                if (value.charAt(i) == '"' && (i == start || value.charAt(i - 1) != '\\')) {
+                    return i;
+                }
+            }
+            return start;
+        }
+
+        int i = at - 1;
+        while (i >= start && !Character.isWhitespace(value.charAt(i))) {
+            i--;
+        }
+        return i + 1;
+    }
+
+    private static String share(String value, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SHARED_DOMAINS_SIZE - 1);
+        String shared = SHARED_DOMAINS.get(slot);
+        if (shared != null && shared.length() == end - start
+                && shared.regionMatches(true, 0, value, start, end - start)) {
+            return shared;
+        }
+        String domain = value.substring(start, end).toLowerCase();
+        SHARED_DOMAINS.lazySet(slot, domain);
+        return domain;
+    }
+
+    /**
+     * @return address with optional display name as given
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return display name without quotes, or null when there is none
+     */
+    public String getName() {
+        if (nameEnd <= start || addressStart < 0) {
+            return null;
+        }
+        if (nameEnd - start > 1 && value.charAt(start) == '"' && value.charAt(nameEnd - 1) == '"') {
+            return value.substring(start + 1, nameEnd - 1);
+        }
+        return value.substring(start, nameEnd);
+    }
+
+    /**
+     * @return address without display name, such as jane@example.com
+     */
+    public String getAddress() {
+        return addressStart < 0 ? value.substring(start, addressEnd) : value.substring(addressStart, addressEnd);
+    }
+
+    /**
+     * @return lower cased domain, or null when there is no @
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return index in value of the first character of the display name, or of the address when there is no name
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return index in value after the display name
+     */
+    public int getNameEnd() {
+        return nameEnd;
+    }
+
+    /**
+     * @return index in value of the address, or -1 when a closing bracket has no opening one
+     */
+    public int getAddressStart() {
+        return addressStart;
+    }
+
+    /**
+     * @return index in value after the address
+     */
+    public int getAddressEnd() {
+        return addressEnd;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof EmailAddress && value.equals(((EmailAddress) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -1,13 +1,20 @@
 package com.siteminder.email.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.springframework.http.HttpStatus;
 
+import java.util.List;
+
 public class EmailHandlerResult {
 
     public enum Type {
         SUCCESS(HttpStatus.OK),
+        ACCEPTED(HttpStatus.ACCEPTED),
+        PARTIAL(HttpStatus.MULTI_STATUS),
         FAIL(HttpStatus.INTERNAL_SERVER_ERROR),
-        ILLEGAL_ARGUMENT(HttpStatus.BAD_REQUEST);
+        ILLEGAL_ARGUMENT(HttpStatus.BAD_REQUEST),
+        TOO_MANY_REQUESTS(HttpStatus.TOO_MANY_REQUESTS);
 
         private HttpStatus httpStatus;
 
@@ -22,6 +29,13 @@ public class EmailHandlerResult {
 
     private Type type;
     private String message;
+    private String messageId;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer providerStatus;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private JsonNode details;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<ChunkResult> chunks;
 
     public EmailHandlerResult(Type type) {
         this.type = type;
@@ -47,4 +61,39 @@ public class EmailHandlerResult {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public Integer getProviderStatus() {
+        return providerStatus;
+    }
+
+    public void setProviderStatus(Integer providerStatus) {
+        this.providerStatus = providerStatus;
+    }
+
+    public JsonNode getDetails() {
+        return details;
+    }
+
+    public void setDetails(JsonNode details) {
+        this.details = details;
+    }
+
+    /**
+     * @return results of each chunk when the email was split by recipients, otherwise null
+     */
+    public List<ChunkResult> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<ChunkResult> chunks) {
+        this.chunks = chunks;
+    }
 }
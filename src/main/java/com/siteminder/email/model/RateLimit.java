@@ -0,0 +1,37 @@
+package com.siteminder.email.model;
+
+public class RateLimit {
+
+    private double rate;
+    private int burst;
+
+    public RateLimit() {
+    }
+
+    public RateLimit(double rate, int burst) {
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * @return requests per second
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @return requests that can be made at once after being idle
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+}
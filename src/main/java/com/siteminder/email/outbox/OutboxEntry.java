@@ -0,0 +1,45 @@
+package com.siteminder.email.outbox;
+
+/**
+ * Record of the outbox journal, identified by its segment and position
+ */
+public class OutboxEntry {
+
+    private final long id;
+    private final OutboxSegment segment;
+    private final int position;
+    private final byte[] payload;
+
+    OutboxEntry(long id, OutboxSegment segment, int position, byte[] payload) {
+        this.id = id;
+        this.segment = segment;
+        this.position = position;
+        this.payload = payload;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return payload, null for entries visited by OutboxJournal.forEachPending, see OutboxJournal.read
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return entry of the same record without its payload, for entries kept long, see OutboxJournal.read
+     */
+    public OutboxEntry withoutPayload() {
+        return payload == null ? this : new OutboxEntry(id, segment, position, null);
+    }
+
+    OutboxSegment getSegment() {
+        return segment;
+    }
+
+    int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,223 @@
+package com.siteminder.email.outbox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of outbox records stored in memory-mapped segment files.
+ *
+ * Appends are made durable by sync, which batches the fsync of concurrent callers into a single force (group
+ * commit). Segments are deleted once they are full and all their records are delivered.
+ */
+public class OutboxJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxJournal.class);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, OutboxSegment> segments = new ConcurrentSkipListMap<>();
+    private final List<OutboxEntry> recoveredEntries = new ArrayList<>();
+    private final Object syncLock = new Object();
+
+    private OutboxSegment activeSegment;
+    private long nextId;
+    private long durableId = -1;
+
+    public OutboxJournal(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, true);
+    }
+
+    /**
+     * @param directory
+     * @param segmentSize
+     * @param recoverEntries false to keep no recovered entries, for journals too large to hold in memory, whose
+     *                       pending entries are visited with forEachPending instead
+     * @throws IOException
+     */
+    public OutboxJournal(Path directory, int segmentSize, boolean recoverEntries) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.segment")) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+
+        for (Path path : paths) {
+            OutboxSegment segment = OutboxSegment.open(path, segmentSize, recoverEntries ? recoveredEntries : null);
+            segments.put(segment.getBaseId(), segment);
+            nextId = Math.max(nextId, segment.getLastId() + 1);
+        }
+
+        for (OutboxSegment segment : new ArrayList<>(segments.values())) {
+            if (segment.getPendingCount() == 0) {
+                compact(segment);
+            }
+        }
+
+        this.activeSegment = OutboxSegment.create(directory, nextId, segmentSize);
+        segments.put(activeSegment.getBaseId(), activeSegment);
+        this.durableId = nextId - 1;
+
+        logger.info("Outbox journal opened at {} with {} pending entries", directory, getPendingCount());
+    }
+
+    /**
+     * Entries which were not delivered before the journal was last closed
+     * @return pending entries in append order
+     */
+    public List<OutboxEntry> getRecoveredEntries() {
+        return Collections.unmodifiableList(recoveredEntries);
+    }
+
+    /**
+     * Append payload. The record is not durable until sync is called.
+     * @param payload
+     * @return outboxEntry OutboxEntry
+     * @throws IOException
+     */
+    public synchronized OutboxEntry append(byte[] payload) throws IOException {
+        if (OutboxSegment.HEADER_SIZE + payload.length > segmentSize) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes exceeds outbox segment size");
+        }
+
+        if (!activeSegment.hasRoom(payload.length)) {
+            OutboxSegment previousSegment = activeSegment;
+            previousSegment.force();
+            activeSegment = OutboxSegment.create(directory, nextId, segmentSize);
+            segments.put(activeSegment.getBaseId(), activeSegment);
+            if (previousSegment.getPendingCount() == 0) {
+                compact(previousSegment);
+            }
+        }
+
+        return activeSegment.append(nextId++, payload);
+    }
+
+    /**
+     * Block until entry is on disk. Callers arriving while a force is in progress are covered by the next one.
+     * @param entry
+     */
+    public void sync(OutboxEntry entry) {
+        synchronized (syncLock) {
+            if (durableId >= entry.getId()) {
+                return;
+            }
+
+            long targetId;
+            OutboxSegment segment;
+            synchronized (this) {
+                targetId = nextId - 1;
+                segment = activeSegment;
+            }
+            segment.force();
+            durableId = targetId;
+        }
+    }
+
+    /**
+     * Mark entry as delivered and delete its segment when nothing is left pending in it
+     * @param entry
+     */
+    public void markDelivered(OutboxEntry entry) {
+        OutboxSegment segment = entry.getSegment();
+        if (segment.markDelivered(entry.getPosition()) == 0) {
+            synchronized (this) {
+                if (segment != activeSegment && segments.containsKey(segment.getBaseId())) {
+                    compact(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param entry
+     * @return payload of entry, read back from its segment when the entry does not hold it
+     */
+    public byte[] read(OutboxEntry entry) {
+        return read(entry, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param entry
+     * @param length most bytes to read
+     * @return first length bytes of the payload of entry
+     */
+    public byte[] read(OutboxEntry entry, int length) {
+        if (entry.getPayload() != null && entry.getPayload().length <= length) {
+            return entry.getPayload();
+        }
+        return entry.getSegment().read(entry.getPosition(), length);
+    }
+
+    /**
+     * Visit pending entries in append order, without their payload, which read gets. Entries appended while visiting
+     * may be missed.
+     * @param consumer
+     */
+    public void forEachPending(Consumer<OutboxEntry> consumer) {
+        for (OutboxSegment segment : segments.values()) {
+            int limit;
+            synchronized (this) {
+                if (!segments.containsKey(segment.getBaseId())) {
+                    continue;
+                }
+                limit = segment.getWritePosition();
+            }
+            segment.forEachPending(limit, consumer);
+        }
+    }
+
+    /**
+     * @return id of the next entry to be appended, entries appended before have lower ids
+     */
+    public synchronized long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * @return number of entries not delivered yet
+     */
+    public int getPendingCount() {
+        int pendingCount = 0;
+        for (OutboxSegment segment : segments.values()) {
+            pendingCount += segment.getPendingCount();
+        }
+        return pendingCount;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (OutboxSegment segment : segments.values()) {
+            segment.force();
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private void compact(OutboxSegment segment) {
+        segments.remove(segment.getBaseId());
+        try {
+            segment.delete();
+        } catch (IOException e) {
+            logger.warn("Failed to delete delivered outbox segment {}", segment.getBaseId(), e);
+        }
+    }
+}
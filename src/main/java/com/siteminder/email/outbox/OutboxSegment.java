@@ -0,0 +1,201 @@
+package com.siteminder.email.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed size, memory-mapped, append-only file of outbox records.
+ *
+ * Record layout: length (int) | crc of payload (int) | state (byte) | id (long) | payload.
+ * Length is written last so a torn record is read as the end of the segment. State is the only byte changed in
+ * place, when the record is delivered.
+ */
+class OutboxSegment implements Closeable {
+
+    static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+    private static final byte PENDING = 0;
+    private static final byte DELIVERED = 1;
+
+    private final long baseId;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private int writePosition;
+    private long lastId;
+
+    private OutboxSegment(long baseId, Path path, int size) throws IOException {
+        this.baseId = baseId;
+        this.path = path;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.lastId = baseId - 1;
+    }
+
+    static OutboxSegment create(Path directory, long baseId, int size) throws IOException {
+        return new OutboxSegment(baseId, directory.resolve(fileName(baseId)), size);
+    }
+
+    /**
+     * Open an existing segment and collect its pending records
+     * @param path
+     * @param size
+     * @param pendingEntries receives entries which are not delivered yet, or null to only count them
+     * @return segment positioned after its last complete record
+     * @throws IOException
+     */
+    static OutboxSegment open(Path path, int size, List<OutboxEntry> pendingEntries) throws IOException {
+        String fileName = path.getFileName().toString();
+        long baseId = Long.parseLong(fileName.substring(0, fileName.indexOf('.')));
+        OutboxSegment segment = new OutboxSegment(baseId, path, Math.max(size, (int) Files.size(path)));
+        segment.scan(pendingEntries);
+        return segment;
+    }
+
+    static String fileName(long baseId) {
+        return String.format("%020d.segment", baseId);
+    }
+
+    boolean hasRoom(int payloadLength) {
+        return writePosition + HEADER_SIZE + payloadLength <= buffer.capacity();
+    }
+
+    /**
+     * Append a pending record. Callers serialize appends and check hasRoom first.
+     * @param id
+     * @param payload
+     * @return entry of the appended record
+     */
+    OutboxEntry append(long id, byte[] payload) {
+        int position = writePosition;
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.put(position + 8, PENDING);
+        buffer.putLong(position + 9, id);
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_SIZE);
+        view.put(payload);
+        buffer.putInt(position, payload.length);
+
+        writePosition = position + HEADER_SIZE + payload.length;
+        lastId = id;
+        pendingCount.incrementAndGet();
+        return new OutboxEntry(id, this, position, payload);
+    }
+
+    /**
+     * Flag record as delivered. It becomes durable with the next force.
+     * @param position
+     * @return number of records still pending in this segment
+     */
+    int markDelivered(int position) {
+        buffer.put(position + 8, DELIVERED);
+        return pendingCount.decrementAndGet();
+    }
+
+    /**
+     * Read the payload of a record back from the segment
+     * @param position of the record
+     * @param length most bytes to read from the start of the payload
+     * @return payload, or its first length bytes
+     */
+    byte[] read(int position, int length) {
+        byte[] payload = new byte[Math.min(length, buffer.getInt(position))];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_SIZE);
+        view.get(payload);
+        return payload;
+    }
+
+    /**
+     * Visit the pending records before limit, as entries without payload
+     * @param limit position after the last record to visit, which callers read with appends serialized
+     * @param consumer
+     */
+    void forEachPending(int limit, Consumer<OutboxEntry> consumer) {
+        int position = 0;
+        while (position < limit) {
+            int length = buffer.getInt(position);
+            if (buffer.get(position + 8) == PENDING) {
+                consumer.accept(new OutboxEntry(buffer.getLong(position + 9), this, position, null));
+            }
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    long getBaseId() {
+        return baseId;
+    }
+
+    long getLastId() {
+        return lastId;
+    }
+
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private void scan(List<OutboxEntry> pendingEntries) {
+        int position = 0;
+        int pending = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + HEADER_SIZE);
+            view.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+
+            long id = buffer.getLong(position + 9);
+            if (buffer.get(position + 8) == PENDING) {
+                pending++;
+                if (pendingEntries != null) {
+                    pendingEntries.add(new OutboxEntry(id, this, position, payload));
+                }
+            }
+            lastId = id;
+            position += HEADER_SIZE + length;
+        }
+        writePosition = position;
+        pendingCount.set(pending);
+    }
+}
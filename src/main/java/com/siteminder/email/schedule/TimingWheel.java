@@ -0,0 +1,177 @@
+package com.siteminder.email.schedule;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel of items due at a deadline, in milliseconds.
+ *
+ * The first wheel has wheelSize slots of tick each, and every next wheel has wheelSize slots the span of the whole
+ * previous one, so a few wheels cover any deadline. Wheels are added as further deadlines come. An item goes into the
+ * slot of the lowest wheel which spans its deadline, and moves down a wheel each time that slot expires, until it
+ * expires in the first wheel. Only slots holding items are queued by expiration, so adding an item is constant time,
+ * and advancing costs a log of the number of slots plus a move of each item per wheel, whatever the number of items.
+ *
+ * Slots keep deadlines and items in arrays, so an item costs about 12 bytes besides itself. Not thread-safe, callers
+ * serialize access.
+ * @param <T> item
+ */
+public class TimingWheel<T> {
+
+    private final PriorityQueue<Slot<T>> queue = new PriorityQueue<>(Comparator.comparingLong(slot -> slot.expiration));
+    private final Wheel<T> wheel;
+    private int size;
+
+    /**
+     * @param tick span of a slot of the first wheel, deadlines are rounded down to it
+     * @param wheelSize slots of each wheel
+     * @param now time the wheel starts from
+     */
+    public TimingWheel(long tick, int wheelSize, long now) {
+        this.wheel = new Wheel<>(tick, wheelSize, now, queue);
+    }
+
+    /**
+     * @param deadline time the item is due at
+     * @param item
+     * @return false when the deadline is within the current tick, the item is then due and not added
+     */
+    public boolean add(long deadline, T item) {
+        if (!wheel.add(deadline, item)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Move time forward, handing the items due by now to consumer in order of their slot
+     * @param now
+     * @param consumer of due items
+     */
+    public void advance(long now, Consumer<T> consumer) {
+        Slot<T> slot;
+        while ((slot = queue.peek()) != null && slot.expiration <= now) {
+            queue.poll();
+            wheel.advance(slot.expiration);
+            long[] deadlines = slot.deadlines;
+            Object[] items = slot.items;
+            int count = slot.clear();
+            for (int i = 0; i < count; i++) {
+                @SuppressWarnings("unchecked")
+                T item = (T) items[i];
+                // Into a lower wheel, or due when it is within the current tick
+                if (!wheel.add(deadlines[i], item)) {
+                    size--;
+                    consumer.accept(item);
+                }
+            }
+        }
+        wheel.advance(now);
+    }
+
+    /**
+     * @return expiration of the next slot holding items, Long.MAX_VALUE when there are none
+     */
+    public long getNextExpiration() {
+        Slot<T> slot = queue.peek();
+        return slot == null ? Long.MAX_VALUE : slot.expiration;
+    }
+
+    /**
+     * @return number of items not due yet
+     */
+    public int size() {
+        return size;
+    }
+
+    private static class Wheel<T> {
+
+        private final long tick;
+        private final long span;
+        private final int wheelSize;
+        private final Slot<T>[] slots;
+        private final PriorityQueue<Slot<T>> queue;
+        private long currentTime;
+        private Wheel<T> next;
+
+        @SuppressWarnings("unchecked")
+        Wheel(long tick, int wheelSize, long now, PriorityQueue<Slot<T>> queue) {
+            this.tick = tick;
+            this.span = tick * wheelSize;
+            this.wheelSize = wheelSize;
+            this.slots = new Slot[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                slots[i] = new Slot<>();
+            }
+            this.queue = queue;
+            this.currentTime = now - now % tick;
+        }
+
+        boolean add(long deadline, T item) {
+            if (deadline < currentTime + tick) {
+                return false;
+            }
+            if (deadline < currentTime + span) {
+                long id = deadline / tick;
+                Slot<T> slot = slots[(int) (id % wheelSize)];
+                slot.add(deadline, item);
+                // A slot is reused only once it expired and was emptied, so its expiration changes only then
+                if (slot.expiration != id * tick) {
+                    slot.expiration = id * tick;
+                    queue.add(slot);
+                }
+                return true;
+            }
+            if (next == null) {
+                next = new Wheel<>(span, wheelSize, currentTime, queue);
+            }
+            return next.add(deadline, item);
+        }
+
+        void advance(long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - time % tick;
+                if (next != null) {
+                    next.advance(currentTime);
+                }
+            }
+        }
+    }
+
+    private static class Slot<T> {
+
+        private static final long[] NO_DEADLINES = new long[0];
+        private static final Object[] NO_ITEMS = new Object[0];
+
+        private long expiration = -1;
+        private long[] deadlines = NO_DEADLINES;
+        private Object[] items = NO_ITEMS;
+        private int count;
+
+        void add(long deadline, T item) {
+            if (count == items.length) {
+                int capacity = Math.max(8, count * 2);
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                items = Arrays.copyOf(items, capacity);
+            }
+            deadlines[count] = deadline;
+            items[count++] = item;
+        }
+
+        /**
+         * Empty the slot, releasing its arrays
+         * @return number of items it held
+         */
+        int clear() {
+            int cleared = count;
+            expiration = -1;
+            deadlines = NO_DEADLINES;
+            items = NO_ITEMS;
+            count = 0;
+            return cleared;
+        }
+    }
+}
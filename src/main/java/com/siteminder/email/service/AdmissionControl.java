@@ -0,0 +1,187 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.RateLimit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits of requests by tenant and by sender domain, so one customer cannot use up the quota of the providers.
+ *
+ * Every key has a RateLimiter, using the default limit of its scope unless it has its own. Limits can be changed
+ * while running, existing limiters pick them up on their next request. Limiters which are full are dropped when a
+ * scope holds too many keys, as a new one behaves the same.
+ */
+@Component
+public class AdmissionControl {
+
+    public enum Scope {
+        TENANT,
+        DOMAIN,
+        ;
+    }
+
+    public static final String DEFAULT_KEY = "*";
+    private static final int MAX_KEYS = 100000;
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private volatile boolean enabled = false;
+    private final Map<Scope, ScopeLimits> scopes = new ConcurrentHashMap<>();
+
+    public AdmissionControl() {
+        this(false, null, null);
+    }
+
+    public AdmissionControl(boolean enabled, RateLimit tenantLimit, RateLimit domainLimit) {
+        this.enabled = enabled;
+        this.scopes.put(Scope.TENANT, new ScopeLimits(tenantLimit));
+        this.scopes.put(Scope.DOMAIN, new ScopeLimits(domainLimit));
+    }
+
+    // Before the server starts, so the first requests are admitted with the configured limits
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.admission.enabled") != null) {
+            this.enabled = Boolean.valueOf(applicationProperties.getProperty("email.admission.enabled"));
+        }
+        for (Scope scope : Scope.values()) {
+            String prefix = "email.admission." + scope.name().toLowerCase();
+            if (applicationProperties.getProperty(prefix + ".rate") != null) {
+                int burst = applicationProperties.getProperty(prefix + ".burst") != null
+                        ? Integer.valueOf(applicationProperties.getProperty(prefix + ".burst"))
+                        : 1;
+                setLimit(scope, DEFAULT_KEY,
+                        new RateLimit(Double.valueOf(applicationProperties.getProperty(prefix + ".rate")), burst));
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Admit a request of tenant from sender domain, taking a token from both of them
+     * @param tenant null when unknown
+     * @param domain null when unknown
+     * @return 0 when admitted, otherwise milliseconds to wait before retrying
+     */
+    public long tryAcquire(String tenant, String domain) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        RateLimiter tenantLimiter = tenant == null ? null : scopes.get(Scope.TENANT).getLimiter(tenant, now);
+        long wait = tenantLimiter == null ? 0 : tenantLimiter.tryAcquire(now);
+        if (wait > 0) {
+            return toRetryMillis(wait);
+        }
+
+        RateLimiter domainLimiter = domain == null ? null : scopes.get(Scope.DOMAIN).getLimiter(domain, now);
+        wait = domainLimiter == null ? 0 : domainLimiter.tryAcquire(now);
+        if (wait > 0) {
+            if (tenantLimiter != null) {
+                tenantLimiter.refund(now);
+            }
+            return toRetryMillis(wait);
+        }
+        return 0;
+    }
+
+    /**
+     * Set the limit of a key, or the default limit of the scope with DEFAULT_KEY
+     * @param scope
+     * @param key
+     * @param rateLimit null to remove it
+     */
+    public void setLimit(Scope scope, String key, RateLimit rateLimit) {
+        scopes.get(scope).setLimit(key, rateLimit);
+    }
+
+    /**
+     * @return limits by scope and key, including DEFAULT_KEY
+     */
+    public Map<Scope, Map<String, RateLimit>> getLimits() {
+        Map<Scope, Map<String, RateLimit>> limits = new LinkedHashMap<>();
+        for (Scope scope : Scope.values()) {
+            limits.put(scope, scopes.get(scope).getLimits());
+        }
+        return limits;
+    }
+
+    private static long toRetryMillis(long waitNanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private static class ScopeLimits {
+
+        private volatile RateLimit defaultLimit;
+        private final Map<String, RateLimit> overrides = new ConcurrentHashMap<>();
+        private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+        private final AtomicLong lastPurge = new AtomicLong();
+
+        ScopeLimits(RateLimit defaultLimit) {
+            this.defaultLimit = defaultLimit;
+        }
+
+        RateLimiter getLimiter(String key, long now) {
+            RateLimiter limiter = limiters.get(key);
+            if (limiter != null) {
+                return limiter;
+            }
+            long purge = lastPurge.get();
+            if (limiters.size() >= MAX_KEYS && now - purge > PURGE_INTERVAL && lastPurge.compareAndSet(purge, now)) {
+                limiters.values().removeIf(idle -> idle.isIdle(now));
+            }
+            return limiters.computeIfAbsent(key, k -> new RateLimiter(getLimit(k)));
+        }
+
+        synchronized void setLimit(String key, RateLimit rateLimit) {
+            if (DEFAULT_KEY.equals(key)) {
+                defaultLimit = rateLimit;
+                limiters.forEach((k, limiter) -> {
+                    if (!overrides.containsKey(k)) {
+                        limiter.setRateLimit(rateLimit);
+                    }
+                });
+                return;
+            }
+
+            if (rateLimit == null) {
+                overrides.remove(key);
+            } else {
+                overrides.put(key, rateLimit);
+            }
+            RateLimiter limiter = limiters.get(key);
+            if (limiter != null) {
+                limiter.setRateLimit(getLimit(key));
+            }
+        }
+
+        Map<String, RateLimit> getLimits() {
+            Map<String, RateLimit> limits = new LinkedHashMap<>();
+            limits.put(DEFAULT_KEY, defaultLimit);
+            limits.putAll(overrides);
+            return limits;
+        }
+
+        private RateLimit getLimit(String key) {
+            RateLimit override = overrides.get(key);
+            return override != null ? override : defaultLimit;
+        }
+    }
+}
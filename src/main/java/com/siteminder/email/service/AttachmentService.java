@@ -0,0 +1,162 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.Attachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spools uploaded attachments to email.attachments.dir until their email is sent. Files are deleted once the send
+ * completes; files left behind, by a crash or a failed delete, are swept once older than email.attachments.maxAge,
+ * at startup and periodically. Only age is used, as the directory may be shared with other instances whose files are
+ * in flight.
+ */
+@Component
+public class AttachmentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentService.class);
+    private static final String SUFFIX = ".attachment";
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "email-attachments");
+    private long maxAge = 3600000;
+    private ScheduledExecutorService sweeper;
+
+    public AttachmentService() {
+    }
+
+    public AttachmentService(Path directory, long maxAge) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    // Before the server starts, so no upload is spooled before the configured directory is set
+    @PostConstruct
+    public void init() throws IOException {
+        if (applicationProperties.getProperty("email.attachments.dir") != null) {
+            this.directory = Paths.get(applicationProperties.getProperty("email.attachments.dir"));
+        }
+        if (applicationProperties.getProperty("email.attachments.maxAge") != null) {
+            this.maxAge = Long.valueOf(applicationProperties.getProperty("email.attachments.maxAge"));
+        }
+
+        sweep(maxAge);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "attachment-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, maxAge / 4);
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep(maxAge);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to sweep attachments", e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /**
+     * Move an upload into the spool. Uploads already on disk are renamed rather than copied when possible.
+     * @param file upload
+     * @return attachment
+     * @throws IOException
+     */
+    public Attachment spool(MultipartFile file) throws IOException {
+        Files.createDirectories(directory);
+        Path path = directory.resolve(UUID.randomUUID() + SUFFIX);
+        try {
+            file.transferTo(path.toFile());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        String contentType = file.getContentType() == null || file.getContentType().isEmpty()
+                ? "application/octet-stream"
+                : file.getContentType();
+        return new Attachment(getFilename(file.getOriginalFilename()), contentType, path, Files.size(path));
+    }
+
+    /**
+     * Delete spooled files. Failures are left to the sweep.
+     * @param attachments
+     */
+    public void release(List<Attachment> attachments) {
+        for (Attachment attachment : attachments) {
+            try {
+                Files.deleteIfExists(attachment.getPath());
+            } catch (IOException e) {
+                logger.warn("Failed to delete attachment {}, it will be swept", attachment.getPath());
+            }
+        }
+    }
+
+    /**
+     * Delete spooled files last modified more than maxAge ago
+     * @param maxAge in milliseconds
+     * @return number of files deleted
+     * @throws IOException
+     */
+    public int sweep(long maxAge) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long before = System.currentTimeMillis() - maxAge;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() <= before && Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Failed to delete attachment {}", file);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @param originalFilename as sent by the client, possibly with a path
+     * @return file name without path or control characters
+     */
+    static String getFilename(String originalFilename) {
+        if (originalFilename == null) {
+            return "attachment";
+        }
+        String filename = originalFilename.substring(Math.max(originalFilename.lastIndexOf('/'),
+                originalFilename.lastIndexOf('\\')) + 1);
+        StringBuilder cleaned = new StringBuilder(filename.length());
+        for (int i = 0; i < filename.length(); i++) {
+            char c = filename.charAt(i);
+            cleaned.append(Character.isISOControl(c) || c == '"' ? '_' : c);
+        }
+        return cleaned.length() == 0 ? "attachment" : cleaned.toString();
+    }
+}
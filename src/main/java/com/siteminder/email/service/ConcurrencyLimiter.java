@@ -0,0 +1,124 @@
+package com.siteminder.email.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive limit of concurrent calls to one emailHandler, acting as its bulkhead.
+ *
+ * The limit follows AIMD: it grows by one after a call that succeeded within latencyThreshold while at least half of
+ * the limit was in use, and is multiplied by backoffRatio after a call that failed or was slower. A call over the
+ * limit is rejected right away rather than queued, so a slow provider only holds as many threads as it can serve.
+ * All counters are updated by compare-and-set.
+ */
+public class ConcurrencyLimiter {
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThreshold;
+
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                              long latencyThreshold) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThreshold = latencyThreshold;
+        this.limit = new AtomicInteger(Math.max(minLimit, Math.min(maxLimit, initialLimit)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Take a slot for a call
+     * @return false when the limit is reached, the call must not be made
+     */
+    public boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit.get()) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        acquired.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Give the slot back and adjust the limit
+     * @param latency of the call in milliseconds
+     * @param success false when the call failed because of the provider
+     */
+    public void release(long latency, boolean success) {
+        int previousInFlight = inFlight.getAndDecrement();
+        int current;
+        int next;
+        do {
+            current = limit.get();
+            if (!success || latency > latencyThreshold) {
+                next = Math.max(minLimit, (int) (current * backoffRatio));
+            } else if (previousInFlight * 2 >= current) {
+                next = Math.min(maxLimit, current + 1);
+            } else {
+                return;
+            }
+        } while (current != next && !limit.compareAndSet(current, next));
+    }
+
+    /**
+     * Give the slot back without adjusting the limit, e.g. when the call was cancelled
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit.get();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(limit.get(), inFlight.get(), acquired.get(), rejected.get());
+    }
+
+    public static class Snapshot {
+
+        private final int limit;
+        private final int inFlight;
+        private final long acquired;
+        private final long rejected;
+
+        Snapshot(int limit, int inFlight, long acquired, long rejected) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.acquired = acquired;
+            this.rejected = rejected;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getAcquired() {
+            return acquired;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+}
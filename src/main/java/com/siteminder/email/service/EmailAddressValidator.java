@@ -0,0 +1,239 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.EmailAddress;
+import org.springframework.stereotype.Component;
+
+import java.net.IDN;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Email address validator for a practical subset of RFC 5322, checking the parts of an EmailAddress in place without
+ * allocating.
+ *
+ * Accepted forms are "addr", "Name addr" and "Name &lt;addr&gt;", where the name may be quoted. The local part is a
+ * dot-atom or a quoted string, and may hold UTF-8 characters (RFC 6531). The domain has at least two labels of
+ * letters, digits and hyphens; internationalized domains are checked through their ASCII form.
+ *
+ * Domain verdicts are kept in a fixed size, direct-mapped cache keyed by a 64 bit hash of the lower cased domain, so
+ * repeated domains are checked once and memory stays bounded.
+ */
+@Component
+public class EmailAddressValidator {
+
+    public enum Reason {
+        VALID,
+        EMPTY,
+        TOO_LONG,
+        INVALID_DISPLAY_NAME,
+        MISSING_AT,
+        INVALID_LOCAL_PART,
+        INVALID_DOMAIN,
+        ;
+    }
+
+    private static final int MAX_ADDRESS_LENGTH = 254;
+    private static final int MAX_LOCAL_PART_LENGTH = 64;
+    private static final int MAX_DOMAIN_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final String ATEXT_SPECIALS = "!#$%&'*+-/=?^_`{|}~";
+    private static final String NAME_SPECIALS = "()<>[]:;@\\,\"";
+    private static final long PRESENT = 1;
+    private static final long VALID = 2;
+
+    private final AtomicLongArray domainVerdicts;
+    private final int mask;
+
+    public EmailAddressValidator() {
+        this(4096);
+    }
+
+    /**
+     * @param cacheSize number of cached domain verdicts, rounded up to a power of two
+     */
+    public EmailAddressValidator(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(cacheSize, 2) - 1) << 1;
+        this.domainVerdicts = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    public boolean isValid(String value) {
+        return check(value) == Reason.VALID;
+    }
+
+    public boolean isValid(EmailAddress address) {
+        return checkParsed(address) == Reason.VALID;
+    }
+
+    /**
+     * Check address with optional display name
+     * @param value
+     * @return VALID or the reason why value is invalid
+     */
+    public Reason check(String value) {
+        return checkParsed(EmailAddress.parse(value));
+    }
+
+    /**
+     * Check an address already parsed, without looking for its parts again
+     * @param address
+     * @return VALID or the reason why address is invalid
+     */
+    public Reason checkParsed(EmailAddress address) {
+        if (address == null || address.getStart() == address.getAddressEnd()) {
+            return Reason.EMPTY;
+        }
+        if (address.getAddressStart() < 0) {
+            return Reason.INVALID_DISPLAY_NAME;
+        }
+
+        String value = address.getValue();
+        if (address.getNameEnd() > address.getStart()
+                && !isValidDisplayName(value, address.getStart(), address.getNameEnd())) {
+            return Reason.INVALID_DISPLAY_NAME;
+        }
+        return checkAddress(value, address.getAddressStart(), address.getAddressEnd());
+    }
+
+    private Reason checkAddress(String value, int start, int end) {
+        if (end - start > MAX_ADDRESS_LENGTH) {
+            return Reason.TOO_LONG;
+        }
+
+        int at = value.lastIndexOf('@', end - 1);
+        if (at < start) {
+            return Reason.MISSING_AT;
+        }
+        if (!isValidLocalPart(value, start, at)) {
+            return Reason.INVALID_LOCAL_PART;
+        }
+        if (!isValidDomain(value, at + 1, end)) {
+            return Reason.INVALID_DOMAIN;
+        }
+        return Reason.VALID;
+    }
+
+    private boolean isValidLocalPart(String value, int start, int end) {
+        int length = end - start;
+        if (length == 0 || length > MAX_LOCAL_PART_LENGTH) {
+            return false;
+        }
+
+        if (value.charAt(start) == '"') {
+            if (length < 2 || value.charAt(end - 1) != '"') {
+                return false;
+            }
+            for (int i = start + 1; i < end - 1; i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    i++;
+                    if (i >= end - 1) {
+                        return false;
+                    }
+                } else if (c == '"' || Character.isISOControl(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        char previous = '.';
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '.') {
+                if (previous == '.') {
+                    return false;
+                }
+            } else if (!isAtext(c)) {
+                return false;
+            }
+            previous = c;
+        }
+        return previous != '.';
+    }
+
+    private boolean isValidDomain(String value, int start, int end) {
+        int length = end - start;
+        if (length == 0 || length > MAX_DOMAIN_LENGTH) {
+            return false;
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                ascii = false;
+            }
+            hash ^= Character.toLowerCase(c);
+            hash *= 0x100000001b3L;
+        }
+
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        long key = hash & ~(PRESENT | VALID);
+        long entry = domainVerdicts.get(slot);
+        if ((entry & PRESENT) != 0 && (entry & ~(PRESENT | VALID)) == key) {
+            return (entry & VALID) != 0;
+        }
+
+        boolean valid = ascii ? isValidAsciiDomain(value, start, end) : isValidInternationalDomain(value, start, end);
+        domainVerdicts.lazySet(slot, key | PRESENT | (valid ? VALID : 0));
+        return valid;
+    }
+
+    private boolean isValidInternationalDomain(String value, int start, int end) {
+        String asciiDomain;
+        try {
+            asciiDomain = IDN.toASCII(value.substring(start, end), IDN.ALLOW_UNASSIGNED);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return asciiDomain.length() <= MAX_DOMAIN_LENGTH && isValidAsciiDomain(asciiDomain, 0, asciiDomain.length());
+    }
+
+    private boolean isValidAsciiDomain(String value, int start, int end) {
+        int labels = 0;
+        int labelStart = start;
+        boolean numericLabel = true;
+        for (int i = start; i <= end; i++) {
+            char c = i < end ? value.charAt(i) : '.';
+            if (c == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH
+                        || value.charAt(labelStart) == '-' || value.charAt(i - 1) == '-') {
+                    return false;
+                }
+                labels++;
+                if (i == end && numericLabel) {
+                    return false;
+                }
+                labelStart = i + 1;
+                numericLabel = true;
+            } else if (c >= '0' && c <= '9') {
+                continue;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '-') {
+                numericLabel = false;
+            } else {
+                return false;
+            }
+        }
+        return labels >= 2;
+    }
+
+    private boolean isValidDisplayName(String value, int start, int end) {
+        if (value.charAt(start) == '"') {
+            return end - start >= 2 && value.charAt(end - 1) == '"';
+        }
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (Character.isISOControl(c) || NAME_SPECIALS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isAtext(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= 0x80
+                || ATEXT_SPECIALS.indexOf(c) >= 0;
+    }
+}
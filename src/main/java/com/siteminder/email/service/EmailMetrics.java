@@ -0,0 +1,100 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.type.ErrorType;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process metrics of sends. Every series is created up front and indexed by enum ordinal, so recording is an
+ * atomic increment without lock or allocation.
+ */
+@Component
+public class EmailMetrics {
+
+    private static final int PROVIDERS = EmailHandler.Type.values().length;
+    private static final int RESULTS = EmailHandlerResult.Type.values().length;
+    // Calls that threw instead of returning a result are counted after the result types
+    private static final int ERROR = RESULTS;
+
+    private final Map<EmailHandler.Type, LatencyHistogram> latencies = new EnumMap<>(EmailHandler.Type.class);
+    private final AtomicLongArray providerCalls = new AtomicLongArray(PROVIDERS * (RESULTS + 1));
+    private final AtomicLongArray failovers = new AtomicLongArray(PROVIDERS);
+    private final AtomicLongArray results = new AtomicLongArray(RESULTS);
+    private final AtomicLongArray validationRejections = new AtomicLongArray(ErrorType.values().length);
+
+    public EmailMetrics() {
+        for (EmailHandler.Type type : EmailHandler.Type.values()) {
+            latencies.put(type, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Record a call to a provider
+     * @param provider
+     * @param nanos latency of the call
+     * @param result null when the call threw
+     */
+    public void recordCall(EmailHandler.Type provider, long nanos, EmailHandlerResult.Type result) {
+        if (provider == null) {
+            return;
+        }
+        latencies.get(provider).record(nanos / 1000);
+        providerCalls.incrementAndGet(callIndex(provider, result));
+    }
+
+    /**
+     * Record a send moving to provider after the previous provider failed
+     * @param provider
+     */
+    public void recordFailover(EmailHandler.Type provider) {
+        if (provider != null) {
+            failovers.incrementAndGet(provider.ordinal());
+        }
+    }
+
+    /**
+     * Record a result returned to a client
+     * @param result
+     */
+    public void recordResult(EmailHandlerResult.Type result) {
+        results.incrementAndGet(result.ordinal());
+    }
+
+    public void recordValidationRejection(ErrorType errorType) {
+        validationRejections.incrementAndGet(errorType.ordinal());
+    }
+
+    public LatencyHistogram getLatencies(EmailHandler.Type provider) {
+        return latencies.get(provider);
+    }
+
+    /**
+     * @param provider
+     * @param result null for calls that threw
+     * @return number of calls
+     */
+    public long getCalls(EmailHandler.Type provider, EmailHandlerResult.Type result) {
+        return providerCalls.get(callIndex(provider, result));
+    }
+
+    public long getFailovers(EmailHandler.Type provider) {
+        return failovers.get(provider.ordinal());
+    }
+
+    public long getResults(EmailHandlerResult.Type result) {
+        return results.get(result.ordinal());
+    }
+
+    public long getValidationRejections(ErrorType errorType) {
+        return validationRejections.get(errorType.ordinal());
+    }
+
+    private static int callIndex(EmailHandler.Type provider, EmailHandlerResult.Type result) {
+        return provider.ordinal() * (RESULTS + 1) + (result == null ? ERROR : result.ordinal());
+    }
+}
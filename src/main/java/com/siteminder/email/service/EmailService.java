@@ -2,27 +2,42 @@ package com.siteminder.email.service;
 
 import com.siteminder.email.http.EmailHandler;
 import com.siteminder.email.http.MailgunEmailHandler;
+import com.siteminder.email.model.AddressList;
+import com.siteminder.email.model.ChunkResult;
 import com.siteminder.email.model.Email;
+import com.siteminder.email.model.Email.Priority;
+import com.siteminder.email.model.EmailAddress;
 import com.siteminder.email.model.EmailHandlerResult;
 import com.siteminder.email.model.EmailHandlerResult.Type;
+import com.siteminder.email.template.CompiledTemplate;
 import com.siteminder.email.type.ErrorType;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component
 public class EmailService {
 
-    private Queue<EmailHandler> emailHandlers = new LinkedList<>();
-    private boolean isChangeEmailHandlersOrder = false;
+    private volatile EmailHandler[] emailHandlers = new EmailHandler[0];
+    private volatile int maxRecipients = Integer.MAX_VALUE;
+    private AtomicInteger preferredIndex = new AtomicInteger();
 
     @Autowired
     private MailgunEmailHandler mailgunEmailHandler;
@@ -30,23 +45,99 @@ public class EmailService {
     @Autowired
     private EmailHandler sendGridEmailHandler;
 
-    @EventListener(ApplicationReadyEvent.class)
+    @Autowired
+    private ProviderRouter providerRouter = new ProviderRouter();
+
+    @Autowired
+    private EmailAddressValidator emailAddressValidator = new EmailAddressValidator();
+
+    @Autowired
+    private HedgingPolicy hedgingPolicy = new HedgingPolicy();
+
+    @Autowired
+    private ProviderLimiter providerLimiter = new ProviderLimiter();
+
+    @Autowired
+    private EmailMetrics emailMetrics = new EmailMetrics();
+
+    @Autowired
+    private TemplateService templateService = new TemplateService();
+
+    @Autowired
+    private RecipientChunker recipientChunker = new RecipientChunker();
+
+    @Autowired
+    private PriorityLanes priorityLanes = new PriorityLanes();
+
+    // Before the server starts, so no request is served without emailHandlers
+    @PostConstruct
     public void init() {
-        emailHandlers.add(mailgunEmailHandler);
-        emailHandlers.add(sendGridEmailHandler);
+        emailHandlers = new EmailHandler[]{mailgunEmailHandler, sendGridEmailHandler};
+        maxRecipients = RecipientChunker.getMaxRecipients(emailHandlers);
+        priorityLanes.setProviderCapacity(this::getProviderCapacity);
     }
 
     public EmailService() {
     }
 
-    public EmailService(Queue<EmailHandler> emailHandlers) {
-        this.emailHandlers = emailHandlers;
+    public EmailService(Collection<EmailHandler> emailHandlers) {
+        this.emailHandlers = emailHandlers.toArray(new EmailHandler[0]);
+        this.maxRecipients = RecipientChunker.getMaxRecipients(this.emailHandlers);
+        this.priorityLanes.setProviderCapacity(this::getProviderCapacity);
+    }
+
+    // Replace the default collaborators, for tests
+
+    void setProviderRouter(ProviderRouter providerRouter) {
+        this.providerRouter = providerRouter;
+    }
+
+    void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    void setProviderLimiter(ProviderLimiter providerLimiter) {
+        this.providerLimiter = providerLimiter;
+    }
+
+    void setEmailMetrics(EmailMetrics emailMetrics) {
+        this.emailMetrics = emailMetrics;
+    }
+
+    void setTemplateService(TemplateService templateService) {
+        this.templateService = templateService;
+    }
+
+    void setRecipientChunker(RecipientChunker recipientChunker) {
+        this.recipientChunker = recipientChunker;
+    }
+
+    void setPriorityLanes(PriorityLanes priorityLanes) {
+        this.priorityLanes = priorityLanes;
+        priorityLanes.setProviderCapacity(this::getProviderCapacity);
+    }
+
+    /**
+     * EmailHandlers starting from the one which is called successfully last time
+     * @return emailHandlers in their default order
+     */
+    public List<EmailHandler> getEmailHandlers() {
+        EmailHandler[] handlers = this.emailHandlers;
+        List<EmailHandler> orderedHandlers = new ArrayList<>(handlers.length);
+        int start = preferredIndex.get();
+        for (int i = 0; i < handlers.length; i++) {
+            orderedHandlers.add(handlers[(start + i) % handlers.length]);
+        }
+        return orderedHandlers;
     }
 
     /**
      * Validate and send emails via one of emailHandlers. It chooses emailHandler which is called successfully last
-     * time. When chosen emailHandler is failed to call, it will choose to next one until successful call or
-     * all emailHandlers are failed.
+     * time, unless providerRouter finds another one healthier or faster. When chosen emailHandler is failed to call,
+     * it will choose to next one until successful call or all emailHandlers are failed. EmailHandlers with an open
+     * circuit or at their concurrency limit are skipped. With hedging enabled, the send goes through sendAsync.
+     * Emails with more recipients than emailHandlers take are sent in chunks, see sendChunks. Each send waits for a
+     * slot of the lane of its priority first, see PriorityLanes.
      * @param email
      * @return
      */
@@ -57,76 +148,575 @@ public class EmailService {
             return new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, e.getMessage());
         }
 
-        for (int i = 0; i < emailHandlers.size(); i++) {
+        List<RecipientChunker.Chunk> chunks = recipientChunker.split(email, maxRecipients);
+        if (chunks != null) {
+            return sendChunks(chunks).join();
+        }
+        if (hedgingPolicy.isEnabled()) {
+            return sendRouted(email).join();
+        }
+
+        Priority priority = email.getPriority();
+        if (!priorityLanes.acquire(priority).join()) {
+            return allFailed(false);
+        }
+        try {
+            return sendBlocking(email);
+        } finally {
+            priorityLanes.release(priority);
+        }
+    }
+
+    private EmailHandlerResult sendBlocking(Email email) {
+        boolean attempted = false;
+        for (EmailHandler emailHandler : providerRouter.route(getEmailHandlers())) {
+            if (!tryAcquire(emailHandler)) {
+                continue;
+            }
+            if (attempted) {
+                emailMetrics.recordFailover(emailHandler.getType());
+            }
+            attempted = true;
+            long start = System.nanoTime();
             try {
-                EmailHandlerResult result = emailHandlers.peek().send(email);
+                EmailHandlerResult result = emailHandler.send(email);
+                record(emailHandler, start, result);
                 if (result.getType().getHttpStatus().equals(HttpStatus.OK)) {
                     return result;
-                } else {
-                    changeEmailHandlersOrders();
                 }
             } catch (IOException e) {
-                changeEmailHandlersOrders();
+                record(emailHandler, start, null);
+            } catch (RuntimeException e) {
+                record(emailHandler, start, null);
+                throw e;
+            }
+            changeEmailHandlersOrders(emailHandler);
+        }
+
+        return allFailed(attempted);
+    }
+
+    /**
+     * Non-blocking version of send. Each emailHandler is tried as a composed stage after the previous one failed,
+     * so no thread is held while waiting for the underlying email services. With hedging enabled, the next
+     * emailHandler is also tried when the current one is slower than usual, see HedgedSend.
+     * @param email
+     * @return future of emailHandlerResult, never completed exceptionally
+     */
+    public CompletableFuture<EmailHandlerResult> sendAsync(Email email) {
+        try {
+            validEmail(email);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, e.getMessage()));
+        }
+
+        List<RecipientChunker.Chunk> chunks = recipientChunker.split(email, maxRecipients);
+        if (chunks != null) {
+            return sendChunks(chunks);
+        }
+        return sendRouted(email);
+    }
+
+    /**
+     * Send email once granted a slot of the lane of its priority, which is held until the send completes
+     * @param email
+     * @return future of emailHandlerResult, PROVIDERS_BUSY when the lane queue is full
+     */
+    private CompletableFuture<EmailHandlerResult> sendRouted(Email email) {
+        Priority priority = email.getPriority();
+        return priorityLanes.acquire(priority).thenCompose(granted -> {
+            if (!granted) {
+                return CompletableFuture.completedFuture(allFailed(false));
+            }
+            CompletableFuture<EmailHandlerResult> future;
+            try {
+                future = hedgingPolicy.isEnabled()
+                        ? sendHedged(email, providerRouter.route(getEmailHandlers()))
+                        : sendAsync(email, providerRouter.route(getEmailHandlers()), 0, false);
+            } catch (RuntimeException e) {
+                priorityLanes.release(priority);
+                throw e;
             }
+            return future.whenComplete((result, throwable) -> priorityLanes.release(priority));
+        });
+    }
+
+    /**
+     * Send chunks of one email in parallel, at most recipientChunker.getConcurrency() at a time. Each chunk is routed
+     * and failed over on its own, so a failed chunk does not fail the others nor get them sent again.
+     * @param chunks
+     * @return future of SUCCESS, PARTIAL or the failure of the first chunk, with the result of every chunk
+     */
+    private CompletableFuture<EmailHandlerResult> sendChunks(List<RecipientChunker.Chunk> chunks) {
+        ChunkedSend chunkedSend = new ChunkedSend(chunks);
+        for (int i = 0; i < Math.min(recipientChunker.getConcurrency(), chunks.size()); i++) {
+            chunkedSend.sendNext();
         }
+        return chunkedSend.result;
+    }
 
-        return new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage());
+    private CompletableFuture<EmailHandlerResult> sendHedged(Email email, List<EmailHandler> routes) {
+        if (email.getMessageId() == null) {
+            email.setMessageId(createMessageId(email.getFromAddress()));
+        }
+        hedgingPolicy.onSend();
+        HedgedSend hedgedSend = new HedgedSend(email, routes);
+        hedgedSend.start();
+        return hedgedSend.result;
     }
 
     /**
-     * Allow change once in the same period of time
+     * Message-ID shared by every attempt of a hedged or retried send, so a recipient getting it more than once sees
+     * one message
+     * @param from valid from address
+     * @return messageId
      */
-    private void changeEmailHandlersOrders() {
-        if (!isChangeEmailHandlersOrder) {
-            synchronized(this) {
-                if (!isChangeEmailHandlersOrder) {
-                    isChangeEmailHandlersOrder = true;
-                    EmailHandler emailHandler = emailHandlers.poll();
-                    if (emailHandler != null) {
-                        emailHandlers.add(emailHandler);
+    static String createMessageId(EmailAddress from) {
+        return "<" + UUID.randomUUID() + "@" + from.getDomain() + ">";
+    }
+
+    private CompletableFuture<EmailHandlerResult> sendAsync(Email email, List<EmailHandler> routes, int attempt,
+                                                            boolean attempted) {
+        if (attempt >= routes.size()) {
+            return CompletableFuture.completedFuture(allFailed(attempted));
+        }
+
+        EmailHandler emailHandler = routes.get(attempt);
+        if (!tryAcquire(emailHandler)) {
+            return sendAsync(email, routes, attempt + 1, attempted);
+        }
+        if (attempted) {
+            emailMetrics.recordFailover(emailHandler.getType());
+        }
+        long start = System.nanoTime();
+        CompletableFuture<EmailHandlerResult> future;
+        try {
+            future = emailHandler.sendAsync(email);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        return future
+                .handle((result, throwable) -> throwable == null ? result : null)
+                .thenCompose(result -> {
+                    record(emailHandler, start, result);
+                    if (result != null && result.getType().getHttpStatus().equals(HttpStatus.OK)) {
+                        return CompletableFuture.completedFuture(result);
                     }
-                    isChangeEmailHandlersOrder = false;
+                    changeEmailHandlersOrders(emailHandler);
+                    return sendAsync(email, routes, attempt + 1, true);
+                });
+    }
+
+    /**
+     * Validate and send many emails. Valid emails with the same from, subject and content are grouped and handed to
+     * emailHandlers as batches. Emails failed by an emailHandler are retried on the next one. Emails with more
+     * recipients than emailHandlers take are sent in chunks on their own. Emails of different priorities are not
+     * batched together, as each batch holds a slot of the lane of its priority.
+     * @param emails read lazily, each one is validated as soon as it is read
+     * @return emailHandlerResults in the order of emails
+     */
+    public List<EmailHandlerResult> sendBulk(Iterator<Email> emails) {
+        List<EmailHandlerResult> results = new ArrayList<>();
+        List<Email> validEmails = new ArrayList<>();
+        Map<List<Object>, List<Integer>> groups = new LinkedHashMap<>();
+
+        while (emails.hasNext()) {
+            Email email = emails.next();
+            int index = results.size();
+            try {
+                validEmail(email);
+            } catch (IllegalArgumentException e) {
+                results.add(new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, e.getMessage()));
+                validEmails.add(null);
+                continue;
+            }
+
+            List<RecipientChunker.Chunk> chunks = recipientChunker.split(email, maxRecipients);
+            if (chunks != null) {
+                results.add(sendChunks(chunks).join());
+                validEmails.add(null);
+                continue;
+            }
+
+            results.add(null);
+            validEmails.add(email);
+            // Templated emails render alike only with the same template version and variables
+            List<Object> key = email.getTemplate() == null
+                    ? Arrays.asList(email.getPriority(), email.getFrom(), email.getSubject(), email.getContent())
+                    : Arrays.asList(email.getPriority(), email.getFrom(), email.getTemplate(), email.getVariables());
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(index);
+        }
+
+        for (List<Integer> indexes : groups.values()) {
+            sendBatch(validEmails, indexes, results);
+        }
+        return results;
+    }
+
+    private void sendBatch(List<Email> emails, List<Integer> indexes, List<EmailHandlerResult> results) {
+        Priority priority = emails.get(indexes.get(0)).getPriority();
+        if (!priorityLanes.acquire(priority).join()) {
+            for (Integer index : indexes) {
+                results.set(index, allFailed(false));
+            }
+            return;
+        }
+        try {
+            sendGrantedBatch(emails, indexes, results);
+        } finally {
+            priorityLanes.release(priority);
+        }
+    }
+
+    private void sendGrantedBatch(List<Email> emails, List<Integer> indexes, List<EmailHandlerResult> results) {
+        List<Integer> remaining = indexes;
+        boolean attempted = false;
+        for (EmailHandler emailHandler : providerRouter.route(getEmailHandlers())) {
+            if (remaining.isEmpty()) {
+                break;
+            }
+            if (!tryAcquire(emailHandler)) {
+                continue;
+            }
+            if (attempted) {
+                emailMetrics.recordFailover(emailHandler.getType());
+            }
+            attempted = true;
+            List<Email> batch = new ArrayList<>(remaining.size());
+            for (Integer index : remaining) {
+                batch.add(emails.get(index));
+            }
+
+            long start = System.nanoTime();
+            List<EmailHandlerResult> batchResults;
+            try {
+                batchResults = emailHandler.sendBatch(batch);
+            } catch (RuntimeException e) {
+                recordCall(emailHandler, start, null);
+                throw e;
+            }
+            List<Integer> failed = new ArrayList<>();
+            boolean handlerFailed = true;
+            for (int j = 0; j < remaining.size(); j++) {
+                EmailHandlerResult result = batchResults.get(j);
+                if (result != null && result.getType().getHttpStatus().equals(HttpStatus.OK)) {
+                    results.set(remaining.get(j), result);
+                } else {
+                    failed.add(remaining.get(j));
                 }
+                handlerFailed &= result == null || result.getType() == Type.FAIL;
             }
+            recordCall(emailHandler, start, handlerFailed ? Type.FAIL : Type.SUCCESS);
+
+            if (!failed.isEmpty()) {
+                changeEmailHandlersOrders(emailHandler);
+            }
+            remaining = failed;
+        }
+
+        for (Integer index : remaining) {
+            results.set(index, new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage()));
         }
     }
 
-    private void validEmail(Email email) {
-        if (email.getFrom() == null || !validateEmail(email.getFrom())) {
-            throw new IllegalArgumentException(ErrorType.FROM_EMPTY_OR_INVALID.getMessage());
+    /**
+     * Take a concurrency slot of emailHandler. When there is none, a probe routed to emailHandler is given back, as
+     * its call is not made.
+     * @param emailHandler
+     * @return true when the call may be made
+     */
+    private boolean tryAcquire(EmailHandler emailHandler) {
+        if (providerLimiter.getLimiter(emailHandler).tryAcquire()) {
+            return true;
+        }
+        providerRouter.releaseProbe(emailHandler);
+        return false;
+    }
+
+    /**
+     * Report call outcome to providerRouter. Only failures of the emailHandler itself count against its health.
+     * @param emailHandler
+     * @param start System.nanoTime() when the call started
+     * @param result null when the call threw
+     */
+    private void record(EmailHandler emailHandler, long start, EmailHandlerResult result) {
+        recordCall(emailHandler, start, result == null ? null : result.getType());
+    }
+
+    /**
+     * Record outcome of a call to emailHandler and release its concurrency slot
+     * @param emailHandler
+     * @param start System.nanoTime() when the call started
+     * @param resultType null when the call threw
+     */
+    private void recordCall(EmailHandler emailHandler, long start, Type resultType) {
+        long nanos = System.nanoTime() - start;
+        long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+        boolean success = resultType != null && resultType != Type.FAIL;
+        providerRouter.record(emailHandler, latency, success);
+        providerLimiter.getLimiter(emailHandler).release(latency, success);
+        emailMetrics.recordCall(emailHandler.getType(), nanos, resultType);
+    }
+
+    /**
+     * @return sum of the current concurrency limits of emailHandlers, the capacity shared by priorityLanes
+     */
+    private int getProviderCapacity() {
+        int capacity = 0;
+        for (EmailHandler emailHandler : emailHandlers) {
+            capacity += providerLimiter.getLimiter(emailHandler).getLimit();
+        }
+        return capacity;
+    }
+
+    /**
+     * @param attempted false when every emailHandler was skipped for being at its concurrency limit
+     */
+    private static EmailHandlerResult allFailed(boolean attempted) {
+        ErrorType errorType = attempted ? ErrorType.REQUEST_FAILED : ErrorType.PROVIDERS_BUSY;
+        return new EmailHandlerResult(Type.FAIL, errorType.getMessage());
+    }
+
+    /**
+     * Move preferred emailHandler to the next one after failedEmailHandler failed. Concurrent failures of the same
+     * preferred emailHandler rotate once, as only the first compare-and-set on the observed index succeeds.
+     * @param failedEmailHandler
+     */
+    private void changeEmailHandlersOrders(EmailHandler failedEmailHandler) {
+        EmailHandler[] handlers = this.emailHandlers;
+        int current = preferredIndex.get();
+        if (handlers.length > 0 && handlers[current % handlers.length] == failedEmailHandler) {
+            preferredIndex.compareAndSet(current, (current + 1) % handlers.length);
+        }
+    }
+
+    /**
+     * Validate email fields. An email with a templateId gets the compiled template set, and its subject and content
+     * are not used.
+     * @param email
+     * @throws IllegalArgumentException with the ErrorType message of the first invalid field
+     */
+    public void validEmail(Email email) {
+        if (email.getFromAddress() == null || !validateEmail(email.getFromAddress())) {
+            throw invalid(ErrorType.FROM_EMPTY_OR_INVALID);
         }
 
         if (email.getTo().size() == 0 || !validateEmails(email.getTo())) {
-            throw new IllegalArgumentException(ErrorType.TO_EMPTY_OR_INVALID.getMessage());
+            throw invalid(ErrorType.TO_EMPTY_OR_INVALID);
         }
 
         if (email.getCc().size() != 0 && !validateEmails(email.getCc())) {
-            throw new IllegalArgumentException(ErrorType.CC_INVALID.getMessage());
+            throw invalid(ErrorType.CC_INVALID);
         }
 
         if (email.getBcc().size() != 0 && !validateEmails(email.getBcc())) {
-            throw new IllegalArgumentException(ErrorType.BCC_INVALID.getMessage());
+            throw invalid(ErrorType.BCC_INVALID);
+        }
+
+        if (email.getTemplateId() != null) {
+            CompiledTemplate template = templateService.getCompiled(email.getTemplateId());
+            if (template == null) {
+                throw invalid(ErrorType.TEMPLATE_NOT_FOUND);
+            }
+            email.setTemplate(template);
+            return;
         }
 
         if (email.getSubject() == null) {
-            throw new IllegalArgumentException(ErrorType.SUBJECT_EMPTY.getMessage());
+            throw invalid(ErrorType.SUBJECT_EMPTY);
         }
 
         if (email.getContent() == null) {
-            throw new IllegalArgumentException(ErrorType.CONTENT_EMPTY.getMessage());
+            throw invalid(ErrorType.CONTENT_EMPTY);
         }
     }
 
-    private boolean validateEmail(String value) {
-        return Pattern.compile(".+@.+").matcher(value).matches();
+    private IllegalArgumentException invalid(ErrorType errorType) {
+        emailMetrics.recordValidationRejection(errorType);
+        return new IllegalArgumentException(errorType.getMessage());
+    }
+
+    private boolean validateEmail(EmailAddress address) {
+        return emailAddressValidator.isValid(address);
     }
 
-    private boolean validateEmails(List<String> values) {
-        for (int i = 0; i < values.size(); i++) {
-            if (!validateEmail(values.get(i))) {
+    private boolean validateEmails(AddressList addresses) {
+        for (int i = 0; i < addresses.size(); i++) {
+            if (!validateEmail(addresses.getAddress(i))) {
                 return false;
             }
         }
         return true;
     }
+
+    /**
+     * One send with hedging. Attempts start in route order: the next one starts right away when the current one
+     * fails, or after the hedge delay when it is still pending and the hedge budget allows. The first success
+     * completes the result and cancels the attempts still pending.
+     */
+    private class HedgedSend {
+
+        private final Email email;
+        private final List<EmailHandler> routes;
+        private final CompletableFuture<EmailHandlerResult> result = new CompletableFuture<>();
+        private final List<CompletableFuture<EmailHandlerResult>> attempts = new ArrayList<>(2);
+        private final boolean[] hedged;
+        private ScheduledFuture<?> hedgeTimer;
+        private int next;
+        private int pending;
+        private boolean attempted;
+
+        HedgedSend(Email email, List<EmailHandler> routes) {
+            this.email = email;
+            this.routes = routes;
+            this.hedged = new boolean[routes.size()];
+        }
+
+        synchronized void start() {
+            startNext(false);
+        }
+
+        private void startNext(boolean hedge) {
+            if (result.isDone()) {
+                return;
+            }
+            while (next < routes.size() && !tryAcquire(routes.get(next))) {
+                next++;
+            }
+            if (next >= routes.size()) {
+                if (pending == 0) {
+                    result.complete(allFailed(attempted));
+                }
+                return;
+            }
+
+            int attempt = next++;
+            EmailHandler emailHandler = routes.get(attempt);
+            hedged[attempt] = hedge;
+            if (attempted && !hedge) {
+                emailMetrics.recordFailover(emailHandler.getType());
+            }
+            attempted = true;
+            long start = System.nanoTime();
+            CompletableFuture<EmailHandlerResult> future;
+            try {
+                future = emailHandler.sendAsync(email);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            pending++;
+            attempts.add(future);
+
+            if (next < routes.size() && !future.isDone()) {
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+                long delay = hedgingPolicy.getDelay(
+                        providerRouter.getLatencyPercentile(emailHandler, hedgingPolicy.getPercentile()));
+                hedgeTimer = hedgingPolicy.schedule(() -> hedge(attempt), delay);
+            }
+            future.whenComplete((attemptResult, throwable) ->
+                    onComplete(emailHandler, attempt, start, attemptResult, throwable));
+        }
+
+        private synchronized void hedge(int attempt) {
+            // Only hedge the latest attempt, and only while it is pending
+            if (!result.isDone() && next == attempt + 1 && hedgingPolicy.tryHedge()) {
+                startNext(true);
+            }
+        }
+
+        private synchronized void onComplete(EmailHandler emailHandler, int attempt, long start,
+                                             EmailHandlerResult attemptResult, Throwable throwable) {
+            pending--;
+            if (throwable instanceof CancellationException) {
+                providerLimiter.getLimiter(emailHandler).release();
+                // The attempt may hold the probe of emailHandler, which would otherwise never report
+                providerRouter.releaseProbe(emailHandler);
+                return;
+            }
+
+            EmailHandlerResult emailHandlerResult = throwable == null ? attemptResult : null;
+            record(emailHandler, start, emailHandlerResult);
+            if (emailHandlerResult != null && emailHandlerResult.getType().getHttpStatus().equals(HttpStatus.OK)) {
+                if (!result.isDone()) {
+                    if (hedged[attempt]) {
+                        hedgingPolicy.onHedgeWin();
+                    }
+                    if (hedgeTimer != null) {
+                        hedgeTimer.cancel(false);
+                    }
+                    for (CompletableFuture<EmailHandlerResult> other : new ArrayList<>(attempts)) {
+                        other.cancel(true);
+                    }
+                    result.complete(emailHandlerResult);
+                }
+                return;
+            }
+
+            if (!result.isDone()) {
+                changeEmailHandlersOrders(emailHandler);
+                startNext(false);
+            }
+        }
+    }
+
+    /**
+     * Chunks of one email in flight. A chunk completing starts the next one, so at most as many chunks as started at
+     * first are in flight.
+     */
+    private class ChunkedSend {
+
+        private final List<RecipientChunker.Chunk> chunks;
+        private final ChunkResult[] chunkResults;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final CompletableFuture<EmailHandlerResult> result = new CompletableFuture<>();
+
+        ChunkedSend(List<RecipientChunker.Chunk> chunks) {
+            this.chunks = chunks;
+            this.chunkResults = new ChunkResult[chunks.size()];
+        }
+
+        void sendNext() {
+            int index = next.getAndIncrement();
+            if (index >= chunks.size()) {
+                return;
+            }
+            RecipientChunker.Chunk chunk = chunks.get(index);
+            CompletableFuture<EmailHandlerResult> future;
+            try {
+                future = sendRouted(chunk.getEmail());
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((chunkResult, throwable) -> {
+                EmailHandlerResult emailHandlerResult = throwable == null
+                        ? chunkResult
+                        : new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage());
+                chunkResults[index] = new ChunkResult(index, chunk.getOffset(), chunk.getRecipients(),
+                        emailHandlerResult);
+                if (completed.incrementAndGet() == chunks.size()) {
+                    complete();
+                } else {
+                    sendNext();
+                }
+            });
+        }
+
+        private void complete() {
+            List<ChunkResult> results = Collections.unmodifiableList(Arrays.asList(chunkResults));
+            Type type = RecipientChunker.getType(results);
+            String message = type == Type.SUCCESS ? null
+                    : type == Type.PARTIAL ? ErrorType.CHUNKS_FAILED.getMessage()
+                    : results.get(0).getResult().getMessage();
+            EmailHandlerResult emailHandlerResult = new EmailHandlerResult(type, message);
+            emailHandlerResult.setChunks(results);
+            result.complete(emailHandlerResult);
+        }
+    }
 }
@@ -0,0 +1,159 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * When and how often a send is hedged, i.e. also sent to the next emailHandler while the current one has not answered.
+ *
+ * The hedge delay is a percentile of the recent latency of the current emailHandler, floored at minDelay, or
+ * defaultDelay while there are too few calls to tell. Hedges are paid from a TokenBudget earned by sends, so at most
+ * budgetRatio of sends, plus a small burst, can reach two providers.
+ */
+@Component
+public class HedgingPolicy {
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private boolean enabled = false;
+    private double percentile = 0.95;
+    private long minDelay = 50;
+    private long defaultDelay = 1000;
+    private TokenBudget budget = new TokenBudget(0.1, 10);
+    private volatile ScheduledExecutorService timer;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgesDenied = new AtomicLong();
+
+    public HedgingPolicy() {
+    }
+
+    public HedgingPolicy(boolean enabled, double percentile, long minDelay, long defaultDelay, TokenBudget budget) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.defaultDelay = defaultDelay;
+        this.budget = budget;
+    }
+
+    // Before the server starts, so the first sends are hedged with the configured delay and budget
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.hedging.enabled") != null) {
+            this.enabled = Boolean.valueOf(applicationProperties.getProperty("email.hedging.enabled"));
+        }
+        if (applicationProperties.getProperty("email.hedging.percentile") != null) {
+            this.percentile = Double.valueOf(applicationProperties.getProperty("email.hedging.percentile"));
+        }
+        if (applicationProperties.getProperty("email.hedging.minDelay") != null) {
+            this.minDelay = Long.valueOf(applicationProperties.getProperty("email.hedging.minDelay"));
+        }
+        if (applicationProperties.getProperty("email.hedging.defaultDelay") != null) {
+            this.defaultDelay = Long.valueOf(applicationProperties.getProperty("email.hedging.defaultDelay"));
+        }
+
+        double budgetRatio = 0.1;
+        int budgetMaxTokens = 10;
+        if (applicationProperties.getProperty("email.hedging.budgetRatio") != null) {
+            budgetRatio = Double.valueOf(applicationProperties.getProperty("email.hedging.budgetRatio"));
+        }
+        if (applicationProperties.getProperty("email.hedging.budgetMaxTokens") != null) {
+            budgetMaxTokens = Integer.valueOf(applicationProperties.getProperty("email.hedging.budgetMaxTokens"));
+        }
+        this.budget = new TokenBudget(budgetRatio, budgetMaxTokens);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @param latencyPercentile recent latency percentile of the current emailHandler, -1 when unknown
+     * @return milliseconds to wait before hedging
+     */
+    public long getDelay(long latencyPercentile) {
+        return latencyPercentile < 0 ? defaultDelay : Math.max(minDelay, latencyPercentile);
+    }
+
+    /**
+     * Earn budget for a send
+     */
+    public void onSend() {
+        budget.deposit();
+    }
+
+    /**
+     * Spend budget for a hedge
+     * @return false when the hedge must not be sent
+     */
+    public boolean tryHedge() {
+        if (budget.tryWithdraw()) {
+            hedges.incrementAndGet();
+            return true;
+        }
+        hedgesDenied.incrementAndGet();
+        return false;
+    }
+
+    public void onHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    public ScheduledFuture<?> schedule(Runnable hedge, long delay) {
+        return getTimer().schedule(hedge, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    public long getHedgesDenied() {
+        return hedgesDenied.get();
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private ScheduledExecutorService getTimer() {
+        if (timer != null) {
+            return timer;
+        }
+        synchronized (this) {
+            if (timer != null) {
+                return timer;
+            }
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "email-hedge-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Most hedges are cancelled because the first request answered in time
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+            return executor;
+        }
+    }
+}
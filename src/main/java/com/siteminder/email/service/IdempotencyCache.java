@@ -0,0 +1,287 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.EmailHandlerResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Results of sends by Idempotency-Key, so a retried request gets the result of the first one instead of sending again.
+ *
+ * Keys are scoped by tenant, so tenants never see each other's results, and kept as 128 bit digests of tenant and
+ * key in segments of fixed capacity, allocated up front so memory use does not grow with traffic. Each segment is an
+ * open addressing table of primitive keys pointing into a ring of entries in insertion order. As every entry lives
+ * for the same ttl, the oldest entry is both the next to expire and the one evicted when the segment is full.
+ *
+ * While a send is in flight its entry holds a future that duplicates wait on, so they never reach a provider. Failed
+ * sends are not kept, the client may retry them.
+ */
+@Component
+public class IdempotencyCache {
+
+    private static final int SEGMENTS = 16;
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private Segment[] segments;
+    private int capacity = 100000;
+    private long ttl = 86400000;
+
+    public IdempotencyCache() {
+    }
+
+    /**
+     * @param capacity maximum number of keys
+     * @param ttl milliseconds a key is kept after its first request
+     */
+    public IdempotencyCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.segments = createSegments(capacity);
+    }
+
+    // Before the server starts, so segments are allocated once, with the configured capacity, before any key is kept
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.idempotency.ttl") != null) {
+            this.ttl = Long.valueOf(applicationProperties.getProperty("email.idempotency.ttl"));
+        }
+        if (applicationProperties.getProperty("email.idempotency.capacity") != null) {
+            this.capacity = Integer.valueOf(applicationProperties.getProperty("email.idempotency.capacity"));
+        }
+        this.segments = createSegments(capacity);
+    }
+
+    /**
+     * Result of the send made for key of tenant, calling send only when there is none
+     * @param tenant X-Tenant-Id of the request, null when it has none
+     * @param key Idempotency-Key of the request
+     * @param send sends the email, its future must not complete exceptionally
+     * @return future of the first send result for key of tenant
+     */
+    public CompletableFuture<EmailHandlerResult> execute(String tenant, String key,
+                                                         Supplier<CompletableFuture<EmailHandlerResult>> send) {
+        byte[] digest = digest(tenant, key);
+        long hash = toLong(digest, 0);
+        long check = toLong(digest, 8);
+        Segment segment = segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+        CompletableFuture<EmailHandlerResult> promise = new CompletableFuture<>();
+
+        Object existing = segment.putIfAbsent(hash, check, promise, System.currentTimeMillis());
+        if (existing instanceof EmailHandlerResult) {
+            return CompletableFuture.completedFuture((EmailHandlerResult) existing);
+        }
+        if (existing != null) {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<EmailHandlerResult> inFlight = (CompletableFuture<EmailHandlerResult>) existing;
+            return inFlight;
+        }
+
+        CompletableFuture<EmailHandlerResult> future;
+        try {
+            future = send.get();
+        } catch (RuntimeException e) {
+            segment.remove(hash, check, promise);
+            throw e;
+        }
+        future.whenComplete((emailHandlerResult, throwable) -> {
+            if (throwable != null || emailHandlerResult.getType() == EmailHandlerResult.Type.FAIL) {
+                segment.remove(hash, check, promise);
+            } else {
+                segment.replace(hash, check, promise, emailHandlerResult);
+            }
+            if (throwable != null) {
+                promise.completeExceptionally(throwable);
+            } else {
+                promise.complete(emailHandlerResult);
+            }
+        });
+        return promise;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize(System.currentTimeMillis());
+        }
+        return size;
+    }
+
+    private Segment[] createSegments(int capacity) {
+        Segment[] newSegments = new Segment[SEGMENTS];
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            newSegments[i] = new Segment(segmentCapacity);
+        }
+        return newSegments;
+    }
+
+    /**
+     * SHA-256 of tenant and key, the tenant prefixed by its length so no two pairs give the same input. Its first 64
+     * bits place the key in the table and the next 64 tell apart keys which share them.
+     */
+    static byte[] digest(String tenant, String key) {
+        byte[] tenantBytes = tenant == null ? new byte[0] : tenant.getBytes(StandardCharsets.UTF_8);
+        MessageDigest sha256 = SHA_256.get();
+        sha256.update((byte) (tenantBytes.length >>> 24));
+        sha256.update((byte) (tenantBytes.length >>> 16));
+        sha256.update((byte) (tenantBytes.length >>> 8));
+        sha256.update((byte) tenantBytes.length);
+        sha256.update(tenantBytes);
+        return sha256.digest(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return 8 bytes of digest from offset, never 0 as 0 marks an empty slot
+     */
+    private static long toLong(byte[] digest, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (digest[i] & 0xff);
+        }
+        return value == 0 ? 1 : value;
+    }
+
+    private class Segment {
+
+        private final long[] tableKeys;
+        private final int[] tableEntries;
+        private final int mask;
+
+        private final long[] entryKeys;
+        private final long[] entryChecks;
+        private final long[] entryCreatedAt;
+        private final Object[] entryValues;
+        private int head;
+        private int size;
+
+        Segment(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(capacity * 2, 2) - 1) << 1;
+            this.tableKeys = new long[tableSize];
+            this.tableEntries = new int[tableSize];
+            this.mask = tableSize - 1;
+            this.entryKeys = new long[capacity];
+            this.entryChecks = new long[capacity];
+            this.entryCreatedAt = new long[capacity];
+            this.entryValues = new Object[capacity];
+        }
+
+        synchronized Object putIfAbsent(long hash, long check, Object value, long now) {
+            evictExpired(now);
+            int slot = find(hash, check);
+            if (slot >= 0) {
+                return entryValues[tableEntries[slot]];
+            }
+
+            if (size == entryKeys.length) {
+                evictOldest();
+            }
+            int entry = (head + size) % entryKeys.length;
+            entryKeys[entry] = hash;
+            entryChecks[entry] = check;
+            entryCreatedAt[entry] = now;
+            entryValues[entry] = value;
+            size++;
+
+            slot = (int) hash & mask;
+            while (tableKeys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            tableKeys[slot] = hash;
+            tableEntries[slot] = entry;
+            return null;
+        }
+
+        synchronized void replace(long hash, long check, Object expected, Object value) {
+            int slot = find(hash, check);
+            if (slot >= 0 && entryValues[tableEntries[slot]] == expected) {
+                entryValues[tableEntries[slot]] = value;
+            }
+        }
+
+        /**
+         * Remove the key, leaving its entry in the ring as a tombstone until it is evicted
+         */
+        synchronized void remove(long hash, long check, Object expected) {
+            int slot = find(hash, check);
+            if (slot >= 0 && entryValues[tableEntries[slot]] == expected) {
+                entryValues[tableEntries[slot]] = null;
+                removeSlot(slot);
+            }
+        }
+
+        synchronized int getSize(long now) {
+            evictExpired(now);
+            int keys = 0;
+            for (int i = 0; i < size; i++) {
+                if (entryValues[(head + i) % entryKeys.length] != null) {
+                    keys++;
+                }
+            }
+            return keys;
+        }
+
+        private int find(long hash, long check) {
+            int slot = (int) hash & mask;
+            while (tableKeys[slot] != 0) {
+                if (tableKeys[slot] == hash && entryChecks[tableEntries[slot]] == check) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void evictExpired(long now) {
+            while (size > 0 && now - entryCreatedAt[head] >= ttl) {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest() {
+            if (entryValues[head] != null) {
+                entryValues[head] = null;
+                removeSlot(find(entryKeys[head], entryChecks[head]));
+            }
+            head = (head + 1) % entryKeys.length;
+            size--;
+        }
+
+        /**
+         * Backward shift deletion, so lookups never need tombstones in the table
+         */
+        private void removeSlot(int slot) {
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (tableKeys[next] == 0) {
+                    break;
+                }
+                int home = (int) tableKeys[next] & mask;
+                boolean movable = hole <= next ? home <= hole || home > next : home <= hole && home > next;
+                if (movable) {
+                    tableKeys[hole] = tableKeys[next];
+                    tableEntries[hole] = tableEntries[next];
+                    hole = next;
+                }
+            }
+            tableKeys[hole] = 0;
+        }
+    }
+}
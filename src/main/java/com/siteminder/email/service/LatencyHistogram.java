@@ -0,0 +1,95 @@
+package com.siteminder.email.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in microseconds, in the style of HdrHistogram.
+ *
+ * Values below 16 have a bucket each, above that every power of two is split into 16 buckets, so a value is off by at
+ * most 1/16 of itself, up to about 19 hours. Recording is an index computation and an atomic increment, without lock
+ * or allocation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * @param micros latency in microseconds, clamped to [0, about 19 hours]
+     */
+    public void record(long micros) {
+        long value = Math.max(0, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of recorded values in microseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * @param upperBound in microseconds
+     * @return number of recorded values whose bucket lies at or below upperBound
+     */
+    public long getCountAtOrBelow(long upperBound) {
+        long below = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            if (highestValue(i) > upperBound) {
+                break;
+            }
+            below += counts.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return highest value of the bucket holding the percentile in microseconds, 0 when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen > 0 && seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
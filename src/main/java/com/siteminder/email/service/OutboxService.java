@@ -0,0 +1,314 @@
+package com.siteminder.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.EmailHandlerResult.Type;
+import com.siteminder.email.outbox.OutboxEntry;
+import com.siteminder.email.outbox.OutboxJournal;
+import com.siteminder.email.type.ErrorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts emails into a durable local journal and delivers them in background through EmailService.
+ * Enabled with email.outbox.enabled, otherwise emails are sent on the request path.
+ *
+ * A failed send is retried after retryDelay, doubled for each further attempt up to maxRetryDelay. After maxAttempts
+ * the email is dead-lettered: logged and marked delivered, so it no longer takes workers from other emails. Attempts
+ * are counted in memory, so emails replayed on restart get maxAttempts again.
+ */
+@Component
+public class OutboxService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboxService.class);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Autowired
+    private EmailService emailService;
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private OutboxJournal journal;
+    private BlockingQueue<OutboxEntry> queue = new LinkedBlockingQueue<>();
+    private List<Thread> workers = new ArrayList<>();
+    private ScheduledExecutorService retryExecutor;
+    private int workerCount = 8;
+    private long retryDelay = 5000;
+    private long maxRetryDelay = 3600000;
+    private int maxAttempts = 10;
+    // Failed attempts of entries waiting for a retry, by entry id
+    private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private volatile boolean enabled = false;
+
+    public OutboxService() {
+    }
+
+    public OutboxService(EmailService emailService, OutboxJournal journal, int workerCount, long retryDelay,
+                         long maxRetryDelay, int maxAttempts) {
+        this.emailService = emailService;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.maxAttempts = maxAttempts;
+        this.workerCount = workerCount;
+        open(journal);
+        start();
+    }
+
+    // Before the server starts, so emails are accepted into the outbox as soon as requests come in. They are only
+    // dispatched once the workers start.
+    @PostConstruct
+    public void init() throws IOException {
+        if (!Boolean.parseBoolean(applicationProperties.getProperty("email.outbox.enabled"))) {
+            return;
+        }
+
+        String directory = applicationProperties.getProperty("email.outbox.dir");
+        if (directory == null) {
+            directory = Paths.get(System.getProperty("java.io.tmpdir"), "email-outbox").toString();
+        }
+        int segmentSize = 64 * 1024 * 1024;
+        if (applicationProperties.getProperty("email.outbox.segmentSize") != null) {
+            segmentSize = Integer.valueOf(applicationProperties.getProperty("email.outbox.segmentSize"));
+        }
+        if (applicationProperties.getProperty("email.outbox.workers") != null) {
+            this.workerCount = Integer.valueOf(applicationProperties.getProperty("email.outbox.workers"));
+        }
+        if (applicationProperties.getProperty("email.outbox.retryDelay") != null) {
+            this.retryDelay = Long.valueOf(applicationProperties.getProperty("email.outbox.retryDelay"));
+        }
+        if (applicationProperties.getProperty("email.outbox.maxRetryDelay") != null) {
+            this.maxRetryDelay = Long.valueOf(applicationProperties.getProperty("email.outbox.maxRetryDelay"));
+        }
+        if (applicationProperties.getProperty("email.outbox.maxAttempts") != null) {
+            this.maxAttempts = Integer.valueOf(applicationProperties.getProperty("email.outbox.maxAttempts"));
+        }
+
+        open(new OutboxJournal(Paths.get(directory), segmentSize));
+    }
+
+    // After the server starts, so emails are not sent while the application may still fail to start
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || !workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::dispatch, "outbox-dispatcher-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        workers.forEach(Thread::start);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Validate email and append it to the outbox. Returns once the email is durable, before it is sent.
+     * @param email
+     * @return ACCEPTED with the message id, or ILLEGAL_ARGUMENT
+     */
+    public EmailHandlerResult submit(Email email) {
+        try {
+            emailService.validEmail(email);
+        } catch (IllegalArgumentException e) {
+            return new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, e.getMessage());
+        }
+
+        OutboxMessage message = new OutboxMessage(UUID.randomUUID().toString(), email);
+        try {
+            OutboxEntry entry = journal.append(objectMapper.writeValueAsBytes(message));
+            journal.sync(entry);
+            queue.add(entry);
+        } catch (IOException e) {
+            logger.error("Failed to append email to outbox", e);
+            return new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage());
+        }
+
+        EmailHandlerResult result = new EmailHandlerResult(Type.ACCEPTED);
+        result.setMessageId(message.getId());
+        return result;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return emails given up on after maxAttempts
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        workers.forEach(Thread::interrupt);
+        for (Thread worker : workers) {
+            worker.join(1000);
+        }
+        retryExecutor.shutdownNow();
+        journal.close();
+    }
+
+    private void open(OutboxJournal journal) {
+        this.journal = journal;
+        this.queue.addAll(journal.getRecoveredEntries());
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.enabled = true;
+    }
+
+    private void dispatch() {
+        while (enabled) {
+            OutboxEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                deliver(entry);
+            } catch (RuntimeException e) {
+                logger.error("Failed to dispatch outbox entry {}", entry.getId(), e);
+                retryLater(entry);
+            }
+        }
+    }
+
+    private void deliver(OutboxEntry entry) {
+        OutboxMessage message;
+        try {
+            message = objectMapper.readValue(entry.getPayload(), OutboxMessage.class);
+        } catch (IOException e) {
+            logger.error("Dropping unreadable outbox entry {}", entry.getId(), e);
+            markDelivered(entry);
+            return;
+        }
+
+        EmailHandlerResult result = emailService.send(message.getEmail());
+        if (result.getType() == Type.FAIL) {
+            retryLater(entry);
+            return;
+        }
+
+        if (result.getType() == Type.PARTIAL) {
+            // Only recipients of the failed chunks are retried, as a new entry replacing this one
+            Email remaining = RecipientChunker.getRemaining(message.getEmail(), result.getChunks());
+            OutboxMessage remainingMessage = new OutboxMessage(message.getId(), remaining);
+            OutboxEntry remainingEntry;
+            try {
+                remainingEntry = journal.append(objectMapper.writeValueAsBytes(remainingMessage));
+                journal.sync(remainingEntry);
+            } catch (IOException e) {
+                logger.error("Failed to append remaining recipients of outbox message {}", message.getId(), e);
+                retryLater(entry);
+                return;
+            }
+            // The remaining recipients carry on with the attempts of the whole email
+            Integer failed = attempts.remove(entry.getId());
+            if (failed != null) {
+                attempts.put(remainingEntry.getId(), failed);
+            }
+            journal.markDelivered(entry);
+            retryLater(remainingEntry);
+            return;
+        }
+
+        if (result.getType() == Type.ILLEGAL_ARGUMENT) {
+            logger.warn("Outbox message {} rejected: {}", message.getId(), result.getMessage());
+        }
+        markDelivered(entry);
+    }
+
+    private void markDelivered(OutboxEntry entry) {
+        attempts.remove(entry.getId());
+        journal.markDelivered(entry);
+    }
+
+    /**
+     * Count a failed attempt of entry and queue it again after its backoff, or dead-letter it after maxAttempts
+     */
+    private void retryLater(OutboxEntry entry) {
+        int attempt = attempts.merge(entry.getId(), 1, Integer::sum);
+        if (attempt >= maxAttempts) {
+            logger.error("Dead-lettering outbox entry {} after {} attempts", entry.getId(), attempt);
+            deadLettered.incrementAndGet();
+            markDelivered(entry);
+            return;
+        }
+        retryExecutor.schedule(() -> queue.add(entry), getRetryDelay(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param attempt 1 after the first failed attempt
+     * @return retryDelay doubled for each attempt after the first, up to maxRetryDelay
+     */
+    long getRetryDelay(int attempt) {
+        long delay = retryDelay << Math.min(attempt - 1, 30);
+        return delay <= 0 || delay > maxRetryDelay ? maxRetryDelay : delay;
+    }
+
+    static class OutboxMessage {
+
+        private String id;
+        private Email email;
+
+        public OutboxMessage() {
+        }
+
+        OutboxMessage(String id, Email email) {
+            this.id = id;
+            this.email = email;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public Email getEmail() {
+            return email;
+        }
+
+        public void setEmail(Email email) {
+            this.email = email;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.Email.Priority;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntSupplier;
+
+/**
+ * Shares the capacity of emailHandlers between emails by priority. Every provider request, a send with its failovers
+ * or a batch, holds a slot of its lane while in flight. Sends over capacity wait in the queue of their lane, and a
+ * freed slot goes to the waiting lane which got the least service for its weight (stride scheduling), so a LOW blast
+ * gets 1 slot in 13 while HIGH and NORMAL are waiting with the default weights of 8, 4 and 1.
+ *
+ * HIGH may use every slot, while NORMAL and LOW together leave highReserve of the capacity free, so transactional
+ * emails always find some. Capacity is email.lanes.capacity, or the sum of the current concurrency limits of
+ * emailHandlers when it is 0.
+ */
+@Component
+public class PriorityLanes {
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+    private final ThreadLocal<Deque<Waiter>> granting = new ThreadLocal<>();
+    private IntSupplier providerCapacity = () -> Integer.MAX_VALUE;
+    private int capacity = 0;
+    private double highReserve = 0.2;
+    private int maxQueue = 10000;
+    private int inFlight;
+    private int lowerInFlight;
+    private double pass;
+
+    public PriorityLanes() {
+        this(0, 0.2, 10000);
+    }
+
+    public PriorityLanes(int capacity, double highReserve, int maxQueue) {
+        this.capacity = capacity;
+        this.highReserve = highReserve;
+        this.maxQueue = maxQueue;
+        lanes.put(Priority.HIGH, new Lane(8));
+        lanes.put(Priority.NORMAL, new Lane(4));
+        lanes.put(Priority.LOW, new Lane(1));
+    }
+
+    // Before the server starts, so the first sends share the configured capacity with the configured weights
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.lanes.capacity") != null) {
+            this.capacity = Integer.valueOf(applicationProperties.getProperty("email.lanes.capacity"));
+        }
+        if (applicationProperties.getProperty("email.lanes.highReserve") != null) {
+            this.highReserve = Double.valueOf(applicationProperties.getProperty("email.lanes.highReserve"));
+        }
+        if (applicationProperties.getProperty("email.lanes.maxQueue") != null) {
+            this.maxQueue = Integer.valueOf(applicationProperties.getProperty("email.lanes.maxQueue"));
+        }
+        for (Priority priority : Priority.values()) {
+            String property = "email.lanes." + priority.name().toLowerCase() + ".weight";
+            if (applicationProperties.getProperty(property) != null) {
+                lanes.get(priority).weight = Integer.valueOf(applicationProperties.getProperty(property));
+            }
+        }
+    }
+
+    /**
+     * @param providerCapacity slots when capacity is 0, such as the sum of the concurrency limits of emailHandlers
+     */
+    public void setProviderCapacity(IntSupplier providerCapacity) {
+        this.providerCapacity = providerCapacity;
+    }
+
+    /**
+     * Take a slot of the lane of priority, to be given back with release
+     * @param priority
+     * @return future completed with true once a slot is granted, or false right away when the lane queue is full
+     */
+    public CompletableFuture<Boolean> acquire(Priority priority) {
+        Lane lane = lanes.get(priority);
+        Waiter waiter;
+        synchronized (this) {
+            if (lane.queue.isEmpty() && hasRoom(priority)) {
+                grant(priority, lane);
+                lane.waits.record(0);
+                return CompletableFuture.completedFuture(true);
+            }
+            if (lane.queue.size() >= maxQueue) {
+                lane.rejected++;
+                return CompletableFuture.completedFuture(false);
+            }
+            if (lane.queue.isEmpty()) {
+                // A lane starting to wait does not get credit for the time it was idle
+                lane.pass = Math.max(lane.pass, pass);
+            }
+            waiter = new Waiter();
+            lane.queue.add(waiter);
+        }
+        return waiter.future;
+    }
+
+    /**
+     * Give back a slot of the lane of priority, granting it to the next waiting lane
+     * @param priority
+     */
+    public void release(Priority priority) {
+        List<Waiter> granted;
+        synchronized (this) {
+            inFlight--;
+            lanes.get(priority).inFlight--;
+            if (priority != Priority.HIGH) {
+                lowerInFlight--;
+            }
+            granted = dispatch();
+        }
+        complete(granted);
+    }
+
+    /**
+     * @param priority
+     * @return current state of the lane of priority
+     */
+    public synchronized Snapshot snapshot(Priority priority) {
+        Lane lane = lanes.get(priority);
+        return new Snapshot(lane.weight, lane.queue.size(), lane.inFlight, lane.dispatched, lane.rejected);
+    }
+
+    /**
+     * @param priority
+     * @return time sends of the lane of priority waited for a slot, in microseconds
+     */
+    public LatencyHistogram getWaits(Priority priority) {
+        return lanes.get(priority).waits;
+    }
+
+    private boolean hasRoom(Priority priority) {
+        // At least one slot, so a waiting send always has one in flight to release to it
+        int slots = Math.max(1, capacity > 0 ? capacity : providerCapacity.getAsInt());
+        if (inFlight >= slots) {
+            return false;
+        }
+        if (priority == Priority.HIGH) {
+            return true;
+        }
+        int reserved = (int) Math.ceil(slots * highReserve);
+        return lowerInFlight < Math.max(1, slots - reserved);
+    }
+
+    private void grant(Priority priority, Lane lane) {
+        inFlight++;
+        lane.inFlight++;
+        lane.dispatched++;
+        if (priority != Priority.HIGH) {
+            lowerInFlight++;
+        }
+    }
+
+    /**
+     * Grant free slots to waiting lanes, by least pass among the lanes with room
+     * @return waiters granted a slot, to be completed outside the lock
+     */
+    private List<Waiter> dispatch() {
+        List<Waiter> granted = Collections.emptyList();
+        while (true) {
+            Priority next = null;
+            Lane nextLane = null;
+            for (Map.Entry<Priority, Lane> entry : lanes.entrySet()) {
+                Lane lane = entry.getValue();
+                if (!lane.queue.isEmpty() && (nextLane == null || lane.pass < nextLane.pass)
+                        && hasRoom(entry.getKey())) {
+                    next = entry.getKey();
+                    nextLane = lane;
+                }
+            }
+            if (nextLane == null) {
+                return granted;
+            }
+
+            Waiter waiter = nextLane.queue.poll();
+            pass = nextLane.pass;
+            nextLane.pass += 1.0 / Math.max(1, nextLane.weight);
+            grant(next, nextLane);
+            nextLane.waits.record((System.nanoTime() - waiter.start) / 1000);
+            if (granted.isEmpty()) {
+                granted = new ArrayList<>(1);
+            }
+            granted.add(waiter);
+        }
+    }
+
+    /**
+     * Complete granted waiters. Their sends may complete and release at once on this thread, so waiters granted then
+     * are completed by the outermost call rather than by recursion.
+     */
+    private void complete(List<Waiter> granted) {
+        Deque<Waiter> pending = granting.get();
+        if (pending != null) {
+            pending.addAll(granted);
+            return;
+        }
+        if (granted.isEmpty()) {
+            return;
+        }
+        pending = new ArrayDeque<>(granted);
+        granting.set(pending);
+        try {
+            Waiter waiter;
+            while ((waiter = pending.poll()) != null) {
+                waiter.future.complete(true);
+            }
+        } finally {
+            granting.remove();
+        }
+    }
+
+    private static class Lane {
+
+        private final Deque<Waiter> queue = new ArrayDeque<>();
+        private final LatencyHistogram waits = new LatencyHistogram();
+        private int weight;
+        private int inFlight;
+        private long dispatched;
+        private long rejected;
+        private double pass;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Waiter {
+
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final long start = System.nanoTime();
+    }
+
+    public static class Snapshot {
+
+        private final int weight;
+        private final int queued;
+        private final int inFlight;
+        private final long dispatched;
+        private final long rejected;
+
+        Snapshot(int weight, int queued, int inFlight, long dispatched, long rejected) {
+            this.weight = weight;
+            this.queued = queued;
+            this.inFlight = inFlight;
+            this.dispatched = dispatched;
+            this.rejected = rejected;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return sends waiting for a slot
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getDispatched() {
+            return dispatched;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+}
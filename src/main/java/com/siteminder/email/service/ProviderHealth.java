@@ -0,0 +1,243 @@
+package com.siteminder.email.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rolling window of call outcomes and circuit breaker of one emailHandler.
+ *
+ * The circuit opens when the failure rate of the window reaches the threshold. While open, a single probe is let
+ * through every openDuration. A successful probe closes the circuit and clears the window, a failed one opens it
+ * again. A probe which is not made, as when it is cancelled or over the concurrency limit, is released back to OPEN,
+ * and a probe which has not reported after openDuration is given to the next caller, so the circuit never stays
+ * HALF_OPEN.
+ *
+ * Reads made while routing (allowRequest, getState, getLatestSnapshot) take no lock: state is switched by
+ * compare-and-set and a snapshot of the window is published after each record. Only record is synchronized.
+ */
+public class ProviderHealth {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+        ;
+    }
+
+    /**
+     * Listener of circuit state changes
+     */
+    public interface StateListener {
+        void onStateChange(ProviderHealth providerHealth, State from, State to);
+    }
+
+    private final String name;
+    private final long[] timestamps;
+    private final long[] latencies;
+    private final boolean[] successes;
+    private final long windowDuration;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDuration;
+    private final StateListener stateListener;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private volatile long openedAt;
+    private final AtomicLong probedAt = new AtomicLong();
+    private volatile Snapshot latestSnapshot = new Snapshot(State.CLOSED, 0, 0, 0);
+    private int next;
+    private int count;
+
+    public ProviderHealth(String name, int windowSize, long windowDuration, int minimumCalls,
+                          double failureRateThreshold, long openDuration, StateListener stateListener) {
+        this.name = name;
+        this.timestamps = new long[windowSize];
+        this.latencies = new long[windowSize];
+        this.successes = new boolean[windowSize];
+        this.windowDuration = windowDuration;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+        this.stateListener = stateListener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether a call may go to this provider. When the open duration has elapsed, the first caller gets the probe
+     * and moves the circuit to HALF_OPEN. The caller holding the probe must record its outcome or release it.
+     * @param now current time in milliseconds
+     * @return true when closed or when the caller holds the probe
+     */
+    public boolean allowRequest(long now) {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.HALF_OPEN) {
+            // A probe which has not reported within openDuration is taken to be lost
+            long probed = probedAt.get();
+            return now - probed >= openDuration && probedAt.compareAndSet(probed, now);
+        }
+        if (now - openedAt < openDuration) {
+            return false;
+        }
+        // Set before the switch, so the circuit is never seen HALF_OPEN with the time of an older probe
+        probedAt.set(now);
+        if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            stateListener.onStateChange(this, State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record outcome of a call
+     * @param now current time in milliseconds
+     * @param latency of the call in milliseconds
+     * @param success false when the call failed because of the provider
+     */
+    public void record(long now, long latency, boolean success) {
+        State from;
+        State to;
+        synchronized (this) {
+            from = state.get();
+            if (from == State.HALF_OPEN) {
+                // The window restarts from its first slot, which is where reads start
+                count = 0;
+                next = 0;
+                if (!success) {
+                    openedAt = now;
+                }
+                state.compareAndSet(State.HALF_OPEN, success ? State.CLOSED : State.OPEN);
+            }
+
+            timestamps[next] = now;
+            latencies[next] = latency;
+            successes[next] = success;
+            next = (next + 1) % timestamps.length;
+            count = Math.min(count + 1, timestamps.length);
+
+            latestSnapshot = computeSnapshot(now);
+            if (state.get() == State.CLOSED && !success && latestSnapshot.getCalls() >= minimumCalls
+                    && latestSnapshot.getFailures() >= latestSnapshot.getCalls() * failureRateThreshold) {
+                openedAt = now;
+                state.compareAndSet(State.CLOSED, State.OPEN);
+            }
+            to = state.get();
+        }
+
+        if (from != to) {
+            stateListener.onStateChange(this, from, to);
+        }
+    }
+
+    /**
+     * Give back the probe without an outcome, when its call was not made or was cancelled. The circuit is OPEN again
+     * with its open duration elapsed, so the next caller gets the probe.
+     */
+    public void releaseProbe() {
+        if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+            stateListener.onStateChange(this, State.HALF_OPEN, State.OPEN);
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * Snapshot of the window published by the last record
+     * @return snapshot
+     */
+    public Snapshot getLatestSnapshot() {
+        return latestSnapshot;
+    }
+
+    /**
+     * Snapshot of the window
+     * @param now current time in milliseconds
+     * @return snapshot of calls not older than the window duration
+     */
+    public synchronized Snapshot snapshot(long now) {
+        return computeSnapshot(now);
+    }
+
+    /**
+     * Latency percentile of successful calls in the window
+     * @param percentile between 0 and 1
+     * @param now current time in milliseconds
+     * @return latency in milliseconds, or -1 when there are fewer successful calls than minimumCalls
+     */
+    public long latencyPercentile(double percentile, long now) {
+        long[] window = new long[timestamps.length];
+        int calls = 0;
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                if (successes[i] && now - timestamps[i] <= windowDuration) {
+                    window[calls++] = latencies[i];
+                }
+            }
+        }
+        if (calls == 0 || calls < minimumCalls) {
+            return -1;
+        }
+        Arrays.sort(window, 0, calls);
+        int rank = (int) Math.ceil(percentile * calls);
+        return window[Math.max(0, Math.min(calls, rank) - 1)];
+    }
+
+    private Snapshot computeSnapshot(long now) {
+        int calls = 0;
+        int failures = 0;
+        long totalLatency = 0;
+        for (int i = 0; i < count; i++) {
+            if (now - timestamps[i] <= windowDuration) {
+                calls++;
+                totalLatency += latencies[i];
+                if (!successes[i]) {
+                    failures++;
+                }
+            }
+        }
+        return new Snapshot(state.get(), calls, failures, calls > 0 ? totalLatency / calls : 0);
+    }
+
+    public static class Snapshot {
+
+        private final State state;
+        private final int calls;
+        private final int failures;
+        private final long meanLatency;
+
+        Snapshot(State state, int calls, int failures, long meanLatency) {
+            this.state = state;
+            this.calls = calls;
+            this.failures = failures;
+            this.meanLatency = meanLatency;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public double getSuccessRate() {
+            return calls > 0 ? (double) (calls - failures) / calls : 1.0;
+        }
+
+        public long getMeanLatency() {
+            return meanLatency;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.http.EmailHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ConcurrencyLimiter of each emailHandler
+ */
+@Component
+public class ProviderLimiter {
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private Map<EmailHandler, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 100;
+    private double backoffRatio = 0.9;
+    private long latencyThreshold = 2000;
+
+    public ProviderLimiter() {
+    }
+
+    public ProviderLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyThreshold) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    // Before the server starts, so every limiter is created with the configured limits
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.limiter.initialLimit") != null) {
+            this.initialLimit = Integer.valueOf(applicationProperties.getProperty("email.limiter.initialLimit"));
+        }
+        if (applicationProperties.getProperty("email.limiter.minLimit") != null) {
+            this.minLimit = Integer.valueOf(applicationProperties.getProperty("email.limiter.minLimit"));
+        }
+        if (applicationProperties.getProperty("email.limiter.maxLimit") != null) {
+            this.maxLimit = Integer.valueOf(applicationProperties.getProperty("email.limiter.maxLimit"));
+        }
+        if (applicationProperties.getProperty("email.limiter.backoffRatio") != null) {
+            this.backoffRatio = Double.valueOf(applicationProperties.getProperty("email.limiter.backoffRatio"));
+        }
+        if (applicationProperties.getProperty("email.limiter.latencyThreshold") != null) {
+            this.latencyThreshold = Long.valueOf(applicationProperties.getProperty("email.limiter.latencyThreshold"));
+        }
+    }
+
+    public ConcurrencyLimiter getLimiter(EmailHandler emailHandler) {
+        ConcurrencyLimiter limiter = limiters.get(emailHandler);
+        if (limiter != null) {
+            return limiter;
+        }
+        return limiters.computeIfAbsent(emailHandler, handler -> new ConcurrencyLimiter(
+                String.valueOf(handler.getType()), initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold));
+    }
+}
@@ -0,0 +1,180 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.CircuitEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders emailHandlers by health. Handlers with an open circuit are skipped unless they are due for a probe, in which
+ * case they are tried first. Others are ordered by success rate, then by latency, then by the given order.
+ * Routing takes no lock, it only reads the state and the latest snapshot of each ProviderHealth.
+ */
+@Component
+public class ProviderRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProviderRouter.class);
+    private static final int MAX_EVENTS = 100;
+    private static final double LATENCY_BUCKET_BASE = Math.log(1.5);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private Map<EmailHandler, ProviderHealth> healths = new ConcurrentHashMap<>();
+    private Deque<CircuitEvent> events = new ArrayDeque<>();
+    private int windowSize = 100;
+    private long windowDuration = 60000;
+    private int minimumCalls = 5;
+    private double failureRateThreshold = 0.5;
+    private long openDuration = 30000;
+
+    public ProviderRouter() {
+    }
+
+    public ProviderRouter(int windowSize, long windowDuration, int minimumCalls, double failureRateThreshold,
+                          long openDuration) {
+        this.windowSize = windowSize;
+        this.windowDuration = windowDuration;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+    }
+
+    // Before the server starts, so every ProviderHealth is created with the configured window
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.router.windowSize") != null) {
+            this.windowSize = Integer.valueOf(applicationProperties.getProperty("email.router.windowSize"));
+        }
+        if (applicationProperties.getProperty("email.router.windowDuration") != null) {
+            this.windowDuration = Long.valueOf(applicationProperties.getProperty("email.router.windowDuration"));
+        }
+        if (applicationProperties.getProperty("email.router.minimumCalls") != null) {
+            this.minimumCalls = Integer.valueOf(applicationProperties.getProperty("email.router.minimumCalls"));
+        }
+        if (applicationProperties.getProperty("email.router.failureRateThreshold") != null) {
+            this.failureRateThreshold =
+                    Double.valueOf(applicationProperties.getProperty("email.router.failureRateThreshold"));
+        }
+        if (applicationProperties.getProperty("email.router.openDuration") != null) {
+            this.openDuration = Long.valueOf(applicationProperties.getProperty("email.router.openDuration"));
+        }
+    }
+
+    /**
+     * Order emailHandlers for one send
+     * @param emailHandlers in their default order
+     * @return emailHandlers to try, in order
+     */
+    public List<EmailHandler> route(List<EmailHandler> emailHandlers) {
+        long now = System.currentTimeMillis();
+        List<EmailHandler> probes = new ArrayList<>(1);
+        List<EmailHandler> candidates = new ArrayList<>(emailHandlers.size());
+        List<Long> ranks = new ArrayList<>(emailHandlers.size());
+
+        for (EmailHandler emailHandler : emailHandlers) {
+            ProviderHealth health = getHealth(emailHandler);
+            ProviderHealth.State state = health.getState();
+            if (!health.allowRequest(now)) {
+                continue;
+            }
+            if (state != ProviderHealth.State.CLOSED) {
+                probes.add(emailHandler);
+                continue;
+            }
+            candidates.add(emailHandler);
+            ranks.add(rank(health.getLatestSnapshot()));
+        }
+
+        List<Integer> order = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(ranks::get));
+
+        List<EmailHandler> routes = new ArrayList<>(probes);
+        for (Integer index : order) {
+            routes.add(candidates.get(index));
+        }
+        return routes;
+    }
+
+    /**
+     * Record outcome of a call to emailHandler
+     * @param emailHandler
+     * @param latency in milliseconds
+     * @param success false when the call failed because of the emailHandler
+     */
+    public void record(EmailHandler emailHandler, long latency, boolean success) {
+        getHealth(emailHandler).record(System.currentTimeMillis(), latency, success);
+    }
+
+    /**
+     * Give back the probe of emailHandler when the call it was routed for is not made or is cancelled. Does nothing
+     * unless its circuit is HALF_OPEN.
+     * @param emailHandler
+     */
+    public void releaseProbe(EmailHandler emailHandler) {
+        getHealth(emailHandler).releaseProbe();
+    }
+
+    /**
+     * Recent latency percentile of emailHandler
+     * @param emailHandler
+     * @param percentile between 0 and 1
+     * @return latency in milliseconds, or -1 when there are too few calls to tell
+     */
+    public long getLatencyPercentile(EmailHandler emailHandler, double percentile) {
+        return getHealth(emailHandler).latencyPercentile(percentile, System.currentTimeMillis());
+    }
+
+    public ProviderHealth getHealth(EmailHandler emailHandler) {
+        ProviderHealth health = healths.get(emailHandler);
+        if (health != null) {
+            return health;
+        }
+        return healths.computeIfAbsent(emailHandler, handler -> new ProviderHealth(
+                String.valueOf(handler.getType()), windowSize, windowDuration, minimumCalls, failureRateThreshold,
+                openDuration, this::onStateChange));
+    }
+
+    /**
+     * Most recent circuit state changes
+     * @return events, oldest first
+     */
+    public synchronized List<CircuitEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * Lower is better: success rate in tenths first, then latency in buckets growing by 50%
+     */
+    private long rank(ProviderHealth.Snapshot snapshot) {
+        long successRank = 10 - Math.round(snapshot.getSuccessRate() * 10);
+        long latencyRank = (long) (Math.log(snapshot.getMeanLatency() + 1) / LATENCY_BUCKET_BASE);
+        return successRank * 1000 + latencyRank;
+    }
+
+    private void onStateChange(ProviderHealth providerHealth, ProviderHealth.State from, ProviderHealth.State to) {
+        logger.warn("Circuit of {} changed from {} to {}", providerHealth.getName(), from, to);
+        synchronized (this) {
+            if (events.size() == MAX_EVENTS) {
+                events.removeFirst();
+            }
+            events.addLast(new CircuitEvent(System.currentTimeMillis(), providerHealth.getName(), from.name(),
+                    to.name()));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.RateLimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of one key, implemented as GCRA: the only state is the theoretical arrival time of the next request,
+ * updated by compare-and-set, so a check is a read and a CAS. A null limit lets every request through.
+ */
+public class RateLimiter {
+
+    private static final long SECOND = 1000000000L;
+
+    private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+    private volatile Params params;
+
+    public RateLimiter(RateLimit rateLimit) {
+        setRateLimit(rateLimit);
+    }
+
+    /**
+     * Change the limit, starting again from a full bucket so a raised limit applies at once
+     * @param rateLimit
+     */
+    public void setRateLimit(RateLimit rateLimit) {
+        this.params = rateLimit == null || rateLimit.getRate() <= 0 ? null : new Params(rateLimit);
+        this.theoreticalArrival.set(Long.MIN_VALUE);
+    }
+
+    public RateLimit getRateLimit() {
+        Params current = params;
+        return current == null ? null : current.rateLimit;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return 0 when the request is admitted, otherwise nanoseconds to wait before it would be
+     */
+    public long tryAcquire(long now) {
+        Params current = params;
+        if (current == null) {
+            return 0;
+        }
+        long arrival;
+        long next;
+        do {
+            arrival = theoreticalArrival.get();
+            next = Math.max(arrival == Long.MIN_VALUE ? now : arrival, now) + current.interval;
+            long wait = next - now - current.tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+        } while (!theoreticalArrival.compareAndSet(arrival, next));
+        return 0;
+    }
+
+    /**
+     * Give back a request admitted by tryAcquire that was not made after all. The arrival time is not moved back past
+     * now, so a refund never grants more than a full bucket, and nothing is given back after the limit was changed.
+     * @param now System.nanoTime()
+     */
+    public void refund(long now) {
+        Params current = params;
+        if (current == null) {
+            return;
+        }
+        long arrival;
+        long next;
+        do {
+            arrival = theoreticalArrival.get();
+            if (arrival == Long.MIN_VALUE || arrival - now <= 0) {
+                return;
+            }
+            next = arrival - current.interval - now < 0 ? now : arrival - current.interval;
+        } while (!theoreticalArrival.compareAndSet(arrival, next));
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return true when the bucket is full, so dropping it changes nothing
+     */
+    public boolean isIdle(long now) {
+        long arrival = theoreticalArrival.get();
+        return arrival == Long.MIN_VALUE || arrival - now <= 0;
+    }
+
+    private static class Params {
+
+        private final RateLimit rateLimit;
+        private final long interval;
+        private final long tolerance;
+
+        Params(RateLimit rateLimit) {
+            this.rateLimit = rateLimit;
+            this.interval = Math.max(1, (long) (SECOND / rateLimit.getRate()));
+            this.tolerance = interval * Math.max(1, rateLimit.getBurst());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.AddressList;
+import com.siteminder.email.model.ChunkResult;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailAddress;
+import com.siteminder.email.model.EmailHandlerResult.Type;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits emails with more recipients than emailHandlers take in one request into chunks, which EmailService sends in
+ * parallel with at most concurrency chunks in flight, each one routed and failed over on its own.
+ *
+ * Recipients are counted in the order to, cc, bcc and each chunk takes the next ones, so chunks are about the same
+ * size and known by their offset. A chunk with only cc or bcc recipients is addressed to the sender, as mail clients do
+ * for undisclosed recipients.
+ */
+@Component
+public class RecipientChunker {
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private int maxRecipients = 1000;
+    private int concurrency = 4;
+
+    public RecipientChunker() {
+    }
+
+    public RecipientChunker(int maxRecipients, int concurrency) {
+        this.maxRecipients = maxRecipients;
+        this.concurrency = concurrency;
+    }
+
+    // Before the server starts, so the first sends are split with the configured limits
+    @PostConstruct
+    public void init() {
+        if (applicationProperties.getProperty("email.chunking.maxRecipients") != null) {
+            this.maxRecipients = Integer.valueOf(applicationProperties.getProperty("email.chunking.maxRecipients"));
+        }
+        if (applicationProperties.getProperty("email.chunking.concurrency") != null) {
+            this.concurrency = Integer.valueOf(applicationProperties.getProperty("email.chunking.concurrency"));
+        }
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Lowest limit of emailHandlers, as a chunk may fail over to any of them
+     * @param emailHandlers
+     * @return maxRecipients of one request
+     */
+    public static int getMaxRecipients(EmailHandler[] emailHandlers) {
+        int maxRecipients = Integer.MAX_VALUE;
+        for (EmailHandler emailHandler : emailHandlers) {
+            if (emailHandler.getMaxRecipients() > 0) {
+                maxRecipients = Math.min(maxRecipients, emailHandler.getMaxRecipients());
+            }
+        }
+        return maxRecipients;
+    }
+
+    /**
+     * Split email so that every chunk fits both maxRecipients and providerLimit
+     * @param email valid email
+     * @param providerLimit see getMaxRecipients
+     * @return chunks in recipient order, or null when the email fits in one request
+     */
+    public List<Chunk> split(Email email, int providerLimit) {
+        int chunkSize = Math.min(maxRecipients, providerLimit);
+        int recipients = email.getTo().size() + email.getCc().size() + email.getBcc().size();
+        if (recipients <= chunkSize) {
+            return null;
+        }
+
+        // One place of each chunk is kept for the sender, in case the chunk has no to recipient
+        int capacity = Math.max(1, chunkSize - 1);
+        int count = (recipients + capacity - 1) / capacity;
+        List<Chunk> chunks = new ArrayList<>(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            int size = recipients / count + (i < recipients % count ? 1 : 0);
+            Email chunk = copy(email, Collections.singletonList(new int[]{offset, offset + size}));
+            chunks.add(new Chunk(i, offset, size, chunk));
+            offset += size;
+        }
+        return chunks;
+    }
+
+    /**
+     * Email to the recipients of the chunks which did not succeed, so only those are sent again
+     * @param email which was split
+     * @param chunkResults of every chunk of email
+     * @return email, or null when every chunk succeeded
+     */
+    public static Email getRemaining(Email email, List<ChunkResult> chunkResults) {
+        List<int[]> ranges = new ArrayList<>();
+        for (ChunkResult chunkResult : chunkResults) {
+            if (!chunkResult.getResult().getType().getHttpStatus().equals(HttpStatus.OK)) {
+                ranges.add(new int[]{chunkResult.getOffset(), chunkResult.getOffset() + chunkResult.getRecipients()});
+            }
+        }
+        return ranges.isEmpty() ? null : copy(email, ranges);
+    }
+
+    /**
+     * @param chunkResults of every chunk, in order
+     * @return SUCCESS when every chunk succeeded, PARTIAL when some did, otherwise the type of the first chunk
+     */
+    static Type getType(List<ChunkResult> chunkResults) {
+        int succeeded = 0;
+        for (ChunkResult chunkResult : chunkResults) {
+            if (chunkResult.getResult().getType().getHttpStatus().equals(HttpStatus.OK)) {
+                succeeded++;
+            }
+        }
+        if (succeeded == chunkResults.size()) {
+            return Type.SUCCESS;
+        }
+        return succeeded > 0 ? Type.PARTIAL : chunkResults.get(0).getResult().getType();
+    }
+
+    /**
+     * Copy email with only some of its recipients
+     * @param email to copy
+     * @param ranges of recipients to keep, each one from inclusive and to exclusive
+     * @return copy
+     */
+    private static Email copy(Email email, List<int[]> ranges) {
+        int toEnd = email.getTo().size();
+        int ccEnd = toEnd + email.getCc().size();
+        int[] counts = new int[3];
+        for (int[] range : ranges) {
+            counts[0] += overlap(range, 0, toEnd);
+            counts[1] += overlap(range, toEnd, ccEnd);
+            counts[2] += overlap(range, ccEnd, ccEnd + email.getBcc().size());
+        }
+        EmailAddress[] to = new EmailAddress[counts[0] == 0 ? 1 : counts[0]];
+        EmailAddress[] cc = new EmailAddress[counts[1]];
+        EmailAddress[] bcc = new EmailAddress[counts[2]];
+        int[] next = new int[3];
+        for (int[] range : ranges) {
+            for (int i = range[0]; i < range[1]; i++) {
+                if (i < toEnd) {
+                    to[next[0]++] = email.getTo().getAddress(i);
+                } else if (i < ccEnd) {
+                    cc[next[1]++] = email.getCc().getAddress(i - toEnd);
+                } else {
+                    bcc[next[2]++] = email.getBcc().getAddress(i - ccEnd);
+                }
+            }
+        }
+        if (counts[0] == 0) {
+            to[0] = email.getFromAddress();
+        }
+
+        Email copy = new Email();
+        copy.setFromAddress(email.getFromAddress());
+        copy.setTo(AddressList.of(to));
+        copy.setCc(AddressList.of(cc));
+        copy.setBcc(AddressList.of(bcc));
+        copy.setSubject(email.getSubject());
+        copy.setContent(email.getContent());
+        copy.setMessageId(email.getMessageId());
+        copy.setTemplateId(email.getTemplateId());
+        copy.setVariables(email.getVariables());
+        copy.setTemplate(email.getTemplate());
+        copy.setAttachments(email.getAttachments());
+        copy.setPriority(email.getPriority());
+        return copy;
+    }
+
+    private static int overlap(int[] range, int from, int to) {
+        return Math.max(0, Math.min(range[1], to) - Math.max(range[0], from));
+    }
+
+    /**
+     * Part of an email sent as its own request
+     */
+    public static class Chunk {
+
+        private final int index;
+        private final int offset;
+        private final int recipients;
+        private final Email email;
+
+        Chunk(int index, int offset, int recipients, Email email) {
+            this.index = index;
+            this.offset = offset;
+            this.recipients = recipients;
+            this.email = email;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getRecipients() {
+            return recipients;
+        }
+
+        public Email getEmail() {
+            return email;
+        }
+    }
+}
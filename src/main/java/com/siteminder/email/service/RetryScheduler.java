@@ -0,0 +1,394 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.DeliveryStatus;
+import com.siteminder.email.model.DeliveryStatus.State;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.EmailHandlerResult.Type;
+import com.siteminder.email.schedule.TimingWheel;
+import com.siteminder.email.type.ErrorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries failed sends on the server, so clients do not retry them right away and add load to failing providers.
+ * Enabled with email.retry.enabled.
+ *
+ * A send which failed, or the failed recipients of a partial one, is retried after an exponential backoff with full
+ * jitter: a random delay up to baseDelay doubled for each retry, capped at maxDelay, so retries of an outage spread
+ * out instead of coming back together. Each send made by a client earns budgetRatio of a TokenBudget and each retry
+ * takes a whole token, so retries stay a share of live traffic; a send which gets no token fails as it did before.
+ * Retries are held in memory in a TimingWheel and their status is kept for retention after the last one.
+ */
+@Component
+public class RetryScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Autowired
+    private EmailService emailService;
+
+    private final Map<String, Retry> retries = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private TimingWheel<Retry> wheel;
+    private List<Retry> due = new ArrayList<>();
+    private TokenBudget budget = new TokenBudget(0.1, 100);
+    private long tick = 100;
+    private int wheelSize = 512;
+    private long baseDelay = 1000;
+    private long maxDelay = 300000;
+    private int maxAttempts = 5;
+    private long retention = 3600000;
+    private Thread timer;
+    private volatile boolean enabled = false;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+
+    public RetryScheduler() {
+    }
+
+    public RetryScheduler(EmailService emailService) {
+        this.emailService = emailService;
+    }
+
+    // Before the server starts, so the sends of the first requests are already retried
+    @PostConstruct
+    public void init() {
+        if (!Boolean.parseBoolean(applicationProperties.getProperty("email.retry.enabled"))) {
+            return;
+        }
+
+        if (applicationProperties.getProperty("email.retry.tick") != null) {
+            this.tick = Long.valueOf(applicationProperties.getProperty("email.retry.tick"));
+        }
+        if (applicationProperties.getProperty("email.retry.wheelSize") != null) {
+            this.wheelSize = Integer.valueOf(applicationProperties.getProperty("email.retry.wheelSize"));
+        }
+        if (applicationProperties.getProperty("email.retry.baseDelay") != null) {
+            this.baseDelay = Long.valueOf(applicationProperties.getProperty("email.retry.baseDelay"));
+        }
+        if (applicationProperties.getProperty("email.retry.maxDelay") != null) {
+            this.maxDelay = Long.valueOf(applicationProperties.getProperty("email.retry.maxDelay"));
+        }
+        if (applicationProperties.getProperty("email.retry.maxAttempts") != null) {
+            this.maxAttempts = Integer.valueOf(applicationProperties.getProperty("email.retry.maxAttempts"));
+        }
+        if (applicationProperties.getProperty("email.retry.retention") != null) {
+            this.retention = Long.valueOf(applicationProperties.getProperty("email.retry.retention"));
+        }
+
+        double budgetRatio = 0.1;
+        int budgetMaxTokens = 100;
+        if (applicationProperties.getProperty("email.retry.budgetRatio") != null) {
+            budgetRatio = Double.valueOf(applicationProperties.getProperty("email.retry.budgetRatio"));
+        }
+        if (applicationProperties.getProperty("email.retry.budgetMaxTokens") != null) {
+            budgetMaxTokens = Integer.valueOf(applicationProperties.getProperty("email.retry.budgetMaxTokens"));
+        }
+        this.budget = new TokenBudget(budgetRatio, budgetMaxTokens);
+        start();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Count a send made by a client and hand it over to be retried when it failed. Emails with attachments are not
+     * retried, as their spooled files are deleted once the request completes.
+     * @param email sent
+     * @param result of the send
+     * @return result, or ACCEPTED with the id to get the status of the email by when it is retried. A PARTIAL result
+     * keeps its type and gets the id.
+     */
+    public EmailHandlerResult onResult(Email email, EmailHandlerResult result) {
+        if (!enabled) {
+            return result;
+        }
+        budget.deposit();
+        Email retried = email.getAttachments().isEmpty() ? getRetried(email, result) : null;
+        if (retried == null) {
+            return result;
+        }
+        if (!budget.tryWithdraw()) {
+            denied.incrementAndGet();
+            return result;
+        }
+
+        Retry retry = new Retry(UUID.randomUUID().toString(), retried, result);
+        if (retried.getMessageId() == null) {
+            retried.setMessageId(EmailService.createMessageId(retried.getFromAddress()));
+        }
+        retries.put(retry.id, retry);
+        scheduled.incrementAndGet();
+        synchronized (retry) {
+            schedule(retry);
+        }
+
+        EmailHandlerResult accepted = result;
+        if (result.getType() != Type.PARTIAL) {
+            accepted = new EmailHandlerResult(Type.ACCEPTED, ErrorType.RETRYING.getMessage());
+        }
+        accepted.setMessageId(retry.id);
+        return accepted;
+    }
+
+    /**
+     * @param id given by onResult
+     * @return status of the retried email, null when unknown or past retention
+     */
+    public DeliveryStatus getStatus(String id) {
+        Retry retry = retries.get(id);
+        if (retry == null) {
+            return null;
+        }
+        synchronized (retry) {
+            return new DeliveryStatus(retry.id, retry.state, retry.attempts,
+                    retry.state == State.RETRYING ? retry.nextAttemptAt : null, retry.result);
+        }
+    }
+
+    /**
+     * @return emails waiting for a retry or in one
+     */
+    public long getPendingCount() {
+        return scheduled.get() - sent.get() - failed.get();
+    }
+
+    /**
+     * @return emails handed over to be retried
+     */
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * @return retried emails which were sent in the end
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return retried emails which failed every retry, were rejected, or ran out of budget
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return failed sends and retries not retried for lack of budget
+     */
+    public long getDenied() {
+        return denied.get();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        timer.interrupt();
+        timer.join(1000);
+    }
+
+    // Settings for tests, to be changed before start
+
+    void setBudget(TokenBudget budget) {
+        this.budget = budget;
+    }
+
+    void setTick(long tick) {
+        this.tick = tick;
+    }
+
+    void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * @param retry 0 for the first retry
+     * @return delay before the retry in milliseconds, a random value up to the backoff of the retry
+     */
+    long getDelay(int retry) {
+        long backoff = baseDelay << Math.min(retry, 30);
+        long cap = backoff <= 0 || backoff > maxDelay ? maxDelay : backoff;
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Start retrying failed sends, which init does when email.retry.enabled
+     */
+    public void start() {
+        this.wheel = new TimingWheel<>(tick, wheelSize, System.currentTimeMillis());
+        this.timer = new Thread(this::run, "retry-timer");
+        this.timer.setDaemon(true);
+        this.enabled = true;
+        this.timer.start();
+    }
+
+    /**
+     * @return what is left to send after result, null when nothing is to be retried
+     */
+    private static Email getRetried(Email email, EmailHandlerResult result) {
+        if (result.getType() == Type.FAIL) {
+            return email;
+        }
+        if (result.getType() == Type.PARTIAL && result.getChunks() != null) {
+            return RecipientChunker.getRemaining(email, result.getChunks());
+        }
+        return null;
+    }
+
+    /**
+     * Hold retry until its next attempt, called with retry locked
+     */
+    private void schedule(Retry retry) {
+        retry.nextAttemptAt = System.currentTimeMillis() + getDelay(retry.attempts);
+        hold(retry.nextAttemptAt, retry);
+    }
+
+    private void hold(long deadline, Retry retry) {
+        synchronized (lock) {
+            if (!wheel.add(deadline, retry)) {
+                due.add(retry);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (enabled) {
+            try {
+                List<Retry> released;
+                synchronized (lock) {
+                    long now = System.currentTimeMillis();
+                    wheel.advance(now, due::add);
+                    if (due.isEmpty()) {
+                        long wait = wheel.getNextExpiration() - now;
+                        if (wait > 0) {
+                            lock.wait(wait);
+                        }
+                        continue;
+                    }
+                    released = due;
+                    due = new ArrayList<>();
+                }
+                for (Retry retry : released) {
+                    // A retry is held once more after its final state, to be forgotten after retention
+                    if (retry.state == State.RETRYING) {
+                        attempt(retry);
+                    } else {
+                        retries.remove(retry.id);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to release retries", e);
+            }
+        }
+    }
+
+    private void attempt(Retry retry) {
+        Email email;
+        synchronized (retry) {
+            retry.attempts++;
+            email = retry.email;
+        }
+        CompletableFuture<EmailHandlerResult> future;
+        try {
+            future = emailService.sendAsync(email);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((result, throwable) -> onAttempt(retry, throwable == null
+                ? result
+                : new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage())));
+    }
+
+    private void onAttempt(Retry retry, EmailHandlerResult result) {
+        synchronized (retry) {
+            retry.result = result;
+            Email remaining = getRetried(retry.email, result);
+            if (remaining == null) {
+                finish(retry, result.getType() == Type.SUCCESS || result.getType() == Type.ACCEPTED
+                        ? State.SENT : State.FAILED);
+            } else if (retry.attempts >= maxAttempts) {
+                finish(retry, State.FAILED);
+            } else if (!budget.tryWithdraw()) {
+                denied.incrementAndGet();
+                finish(retry, State.FAILED);
+            } else {
+                retry.email = remaining;
+                schedule(retry);
+            }
+        }
+    }
+
+    private void finish(Retry retry, State state) {
+        retry.state = state;
+        retry.email = null;
+        if (state == State.SENT) {
+            sent.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+            logger.warn("Retried message {} failed after {} retries: {}", retry.id, retry.attempts,
+                    retry.result.getMessage());
+        }
+        hold(System.currentTimeMillis() + retention, retry);
+    }
+
+    /**
+     * Email being retried, guarded by its own lock
+     */
+    private static class Retry {
+
+        private final String id;
+        private Email email;
+        private EmailHandlerResult result;
+        private volatile State state = State.RETRYING;
+        private int attempts;
+        private long nextAttemptAt;
+
+        Retry(String id, Email email, EmailHandlerResult result) {
+            this.id = id;
+            this.email = email;
+            this.result = result;
+        }
+    }
+}
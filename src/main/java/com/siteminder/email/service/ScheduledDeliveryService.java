@@ -0,0 +1,427 @@
+package com.siteminder.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.EmailHandlerResult.Type;
+import com.siteminder.email.outbox.OutboxEntry;
+import com.siteminder.email.outbox.OutboxJournal;
+import com.siteminder.email.schedule.TimingWheel;
+import com.siteminder.email.service.OutboxService.OutboxMessage;
+import com.siteminder.email.type.ErrorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds emails with a sendAt until it comes and then releases them in batches to EmailService.sendBulk.
+ * Enabled with email.schedule.enabled.
+ *
+ * Emails are appended to a local journal, each record starting with its sendAt. Only emails due within
+ * email.schedule.horizon are held in memory, in a TimingWheel of journal entries without payload, and the journal is
+ * scanned for the next ones every half horizon, so memory does not grow with emails scheduled further ahead. Due
+ * emails are read back from the journal. Failed sends are retried after email.schedule.retryDelay, doubled for each
+ * further attempt up to email.schedule.maxRetryDelay, and dead-lettered after email.schedule.maxAttempts, as
+ * OutboxService does.
+ */
+@Component
+public class ScheduledDeliveryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScheduledDeliveryService.class);
+    private static final int SEND_AT_SIZE = 8;
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Autowired
+    private EmailService emailService;
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private OutboxJournal journal;
+    private TimingWheel<OutboxEntry> wheel;
+    private final Object lock = new Object();
+    private List<OutboxEntry> due = new ArrayList<>();
+    // Pending emails with a sendAt up to loadedUntil are in the wheel, or due
+    private long loadedUntil = Long.MIN_VALUE;
+    private long nextLoad;
+    private long tick = 1000;
+    private int wheelSize = 512;
+    private long horizon = 3600000;
+    private int batchSize = 100;
+    private long retryDelay = 60000;
+    private long maxRetryDelay = 3600000;
+    private int maxAttempts = 10;
+    // Failed attempts of entries waiting for a retry, by entry id
+    private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private Thread timer;
+    private ExecutorService workers;
+    private volatile boolean enabled = false;
+
+    public ScheduledDeliveryService() {
+    }
+
+    public ScheduledDeliveryService(EmailService emailService, OutboxJournal journal, long tick, long horizon,
+                                    int batchSize, long retryDelay, long maxRetryDelay, int maxAttempts) {
+        this.emailService = emailService;
+        this.tick = tick;
+        this.horizon = horizon;
+        this.batchSize = batchSize;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.maxAttempts = maxAttempts;
+        open(journal, 2);
+        start();
+    }
+
+    // Before the server starts, so emails can be scheduled as soon as requests come in. They are only released
+    // once the timer starts.
+    @PostConstruct
+    public void init() throws IOException {
+        if (!Boolean.parseBoolean(applicationProperties.getProperty("email.schedule.enabled"))) {
+            return;
+        }
+
+        String directory = applicationProperties.getProperty("email.schedule.dir");
+        if (directory == null) {
+            directory = Paths.get(System.getProperty("java.io.tmpdir"), "email-schedule").toString();
+        }
+        int segmentSize = 64 * 1024 * 1024;
+        if (applicationProperties.getProperty("email.schedule.segmentSize") != null) {
+            segmentSize = Integer.valueOf(applicationProperties.getProperty("email.schedule.segmentSize"));
+        }
+        if (applicationProperties.getProperty("email.schedule.tick") != null) {
+            this.tick = Long.valueOf(applicationProperties.getProperty("email.schedule.tick"));
+        }
+        if (applicationProperties.getProperty("email.schedule.wheelSize") != null) {
+            this.wheelSize = Integer.valueOf(applicationProperties.getProperty("email.schedule.wheelSize"));
+        }
+        if (applicationProperties.getProperty("email.schedule.horizon") != null) {
+            this.horizon = Long.valueOf(applicationProperties.getProperty("email.schedule.horizon"));
+        }
+        if (applicationProperties.getProperty("email.schedule.batchSize") != null) {
+            this.batchSize = Integer.valueOf(applicationProperties.getProperty("email.schedule.batchSize"));
+        }
+        if (applicationProperties.getProperty("email.schedule.retryDelay") != null) {
+            this.retryDelay = Long.valueOf(applicationProperties.getProperty("email.schedule.retryDelay"));
+        }
+        if (applicationProperties.getProperty("email.schedule.maxRetryDelay") != null) {
+            this.maxRetryDelay = Long.valueOf(applicationProperties.getProperty("email.schedule.maxRetryDelay"));
+        }
+        if (applicationProperties.getProperty("email.schedule.maxAttempts") != null) {
+            this.maxAttempts = Integer.valueOf(applicationProperties.getProperty("email.schedule.maxAttempts"));
+        }
+        int workerCount = 4;
+        if (applicationProperties.getProperty("email.schedule.workers") != null) {
+            workerCount = Integer.valueOf(applicationProperties.getProperty("email.schedule.workers"));
+        }
+
+        open(new OutboxJournal(Paths.get(directory), segmentSize, false), workerCount);
+    }
+
+    // After the server starts, so scheduled emails are not sent while the application may still fail to start
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || timer != null) {
+            return;
+        }
+        this.timer = new Thread(this::run, "schedule-timer");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Validate email and append it to the schedule. Returns once the email is durable.
+     * @param email with a sendAt
+     * @return ACCEPTED with the message id, or ILLEGAL_ARGUMENT
+     */
+    public EmailHandlerResult schedule(Email email) {
+        if (!enabled) {
+            return new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, ErrorType.SCHEDULING_DISABLED.getMessage());
+        }
+        if (!email.getAttachments().isEmpty()) {
+            return new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, ErrorType.SCHEDULED_ATTACHMENTS.getMessage());
+        }
+        try {
+            emailService.validEmail(email);
+        } catch (IllegalArgumentException e) {
+            return new EmailHandlerResult(Type.ILLEGAL_ARGUMENT, e.getMessage());
+        }
+
+        OutboxMessage message = new OutboxMessage(UUID.randomUUID().toString(), email);
+        try {
+            journal.sync(append(email.getSendAt(), message));
+        } catch (IOException e) {
+            logger.error("Failed to append email to schedule", e);
+            return new EmailHandlerResult(Type.FAIL, ErrorType.REQUEST_FAILED.getMessage());
+        }
+
+        EmailHandlerResult result = new EmailHandlerResult(Type.ACCEPTED);
+        result.setMessageId(message.getId());
+        return result;
+    }
+
+    /**
+     * @return number of scheduled emails not sent yet
+     */
+    public int getPendingCount() {
+        return enabled ? journal.getPendingCount() : 0;
+    }
+
+    /**
+     * @return number of scheduled emails held in memory, the others are only on disk
+     */
+    public int getMemoryCount() {
+        if (!enabled) {
+            return 0;
+        }
+        synchronized (lock) {
+            return wheel.size() + due.size();
+        }
+    }
+
+    /**
+     * @return scheduled emails given up on after maxAttempts
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    @PreDestroy
+    public void destroy() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        if (timer != null) {
+            timer.interrupt();
+            timer.join(1000);
+        }
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+        journal.close();
+    }
+
+    private void open(OutboxJournal journal, int workerCount) {
+        this.journal = journal;
+        this.wheel = new TimingWheel<>(tick, wheelSize, System.currentTimeMillis());
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "schedule-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.enabled = true;
+    }
+
+    /**
+     * Append a record of sendAt followed by message, and hold it when it is due within what is loaded
+     */
+    private OutboxEntry append(long sendAt, OutboxMessage message) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(message);
+        byte[] payload = ByteBuffer.allocate(SEND_AT_SIZE + json.length).putLong(sendAt).put(json).array();
+        synchronized (lock) {
+            // Appended and held under the lock, so a concurrent load sees either the entry or the new loadedUntil
+            OutboxEntry entry = journal.append(payload);
+            if (sendAt <= loadedUntil) {
+                hold(sendAt, entry.withoutPayload());
+            }
+            return entry;
+        }
+    }
+
+    private void hold(long deadline, OutboxEntry entry) {
+        if (!wheel.add(deadline, entry)) {
+            due.add(entry);
+        }
+        lock.notifyAll();
+    }
+
+    private void run() {
+        while (enabled) {
+            try {
+                if (System.currentTimeMillis() >= nextLoad) {
+                    load(System.currentTimeMillis());
+                }
+
+                List<OutboxEntry> released;
+                synchronized (lock) {
+                    long now = System.currentTimeMillis();
+                    wheel.advance(now, due::add);
+                    if (due.isEmpty()) {
+                        long wait = Math.min(wheel.getNextExpiration(), nextLoad) - now;
+                        if (wait > 0) {
+                            lock.wait(wait);
+                        }
+                        continue;
+                    }
+                    released = due;
+                    due = new ArrayList<>();
+                }
+                for (int i = 0; i < released.size(); i += batchSize) {
+                    List<OutboxEntry> batch = released.subList(i, Math.min(released.size(), i + batchSize));
+                    workers.execute(() -> deliver(batch));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to release scheduled emails", e);
+            }
+        }
+    }
+
+    /**
+     * Hold pending emails of the journal due by now + horizon which are not held yet
+     */
+    private void load(long now) {
+        long from;
+        long until = now + horizon;
+        long limit;
+        synchronized (lock) {
+            from = loadedUntil;
+            loadedUntil = until;
+            // Entries appended from here on are held by append
+            limit = journal.getNextId();
+            nextLoad = now + Math.max(tick, horizon / 2);
+        }
+
+        List<OutboxEntry> entries = new ArrayList<>();
+        List<Long> sendAts = new ArrayList<>();
+        journal.forEachPending(entry -> {
+            if (entry.getId() >= limit) {
+                return;
+            }
+            long sendAt = ByteBuffer.wrap(journal.read(entry, SEND_AT_SIZE)).getLong();
+            if (sendAt > from && sendAt <= until) {
+                entries.add(entry);
+                sendAts.add(sendAt);
+            }
+        });
+
+        synchronized (lock) {
+            for (int i = 0; i < entries.size(); i++) {
+                hold(sendAts.get(i), entries.get(i));
+            }
+        }
+        if (!entries.isEmpty()) {
+            logger.info("Loaded {} scheduled emails due by {}", entries.size(), until);
+        }
+    }
+
+    private void deliver(List<OutboxEntry> batch) {
+        List<OutboxEntry> entries = new ArrayList<>(batch.size());
+        List<OutboxMessage> messages = new ArrayList<>(batch.size());
+        List<Email> emails = new ArrayList<>(batch.size());
+        for (OutboxEntry entry : batch) {
+            byte[] payload = journal.read(entry);
+            try {
+                OutboxMessage message = objectMapper.readValue(payload, SEND_AT_SIZE, payload.length - SEND_AT_SIZE,
+                        OutboxMessage.class);
+                entries.add(entry);
+                messages.add(message);
+                emails.add(message.getEmail());
+            } catch (IOException e) {
+                logger.error("Dropping unreadable scheduled entry {}", entry.getId(), e);
+                markDelivered(entry);
+            }
+        }
+
+        List<EmailHandlerResult> results;
+        try {
+            results = emailService.sendBulk(emails.iterator());
+        } catch (RuntimeException e) {
+            logger.error("Failed to send {} scheduled emails", emails.size(), e);
+            entries.forEach(this::retryLater);
+            return;
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            OutboxEntry entry = entries.get(i);
+            EmailHandlerResult result = results.get(i);
+            if (result.getType() == Type.FAIL) {
+                retryLater(entry);
+            } else if (result.getType() == Type.PARTIAL) {
+                // Only recipients of the failed chunks are retried, as a new entry replacing this one which keeps
+                // the attempts of the whole email
+                int attempt = attempts.getOrDefault(entry.getId(), 0) + 1;
+                if (attempt >= maxAttempts) {
+                    deadLetter(entry, attempt);
+                    continue;
+                }
+                Email remaining = RecipientChunker.getRemaining(emails.get(i), result.getChunks());
+                try {
+                    OutboxEntry remainingEntry = append(System.currentTimeMillis() + getRetryDelay(attempt),
+                            new OutboxMessage(messages.get(i).getId(), remaining));
+                    attempts.put(remainingEntry.getId(), attempt);
+                    journal.sync(remainingEntry);
+                    markDelivered(entry);
+                } catch (IOException e) {
+                    logger.error("Failed to append remaining recipients of scheduled message {}",
+                            messages.get(i).getId(), e);
+                    retryLater(entry);
+                }
+            } else {
+                if (result.getType() == Type.ILLEGAL_ARGUMENT) {
+                    logger.warn("Scheduled message {} rejected: {}", messages.get(i).getId(), result.getMessage());
+                }
+                markDelivered(entry);
+            }
+        }
+    }
+
+    private void markDelivered(OutboxEntry entry) {
+        attempts.remove(entry.getId());
+        journal.markDelivered(entry);
+    }
+
+    private void deadLetter(OutboxEntry entry, int attempt) {
+        logger.error("Dead-lettering scheduled entry {} after {} attempts", entry.getId(), attempt);
+        deadLettered.incrementAndGet();
+        markDelivered(entry);
+    }
+
+    /**
+     * Count a failed attempt of entry and hold it again until its backoff ends, or dead-letter it after maxAttempts
+     */
+    private void retryLater(OutboxEntry entry) {
+        int attempt = attempts.merge(entry.getId(), 1, Integer::sum);
+        if (attempt >= maxAttempts) {
+            deadLetter(entry, attempt);
+            return;
+        }
+        synchronized (lock) {
+            hold(System.currentTimeMillis() + getRetryDelay(attempt), entry);
+        }
+    }
+
+    /**
+     * @param attempt 1 after the first failed attempt
+     * @return retryDelay doubled for each attempt after the first, up to maxRetryDelay
+     */
+    long getRetryDelay(int attempt) {
+        long delay = retryDelay << Math.min(attempt - 1, 30);
+        return delay <= 0 || delay > maxRetryDelay ? maxRetryDelay : delay;
+    }
+}
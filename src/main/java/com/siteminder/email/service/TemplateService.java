@@ -0,0 +1,147 @@
+package com.siteminder.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.model.Template;
+import com.siteminder.email.template.CompiledTemplate;
+import com.siteminder.email.template.TemplateCache;
+import com.siteminder.email.type.ErrorType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Stored templates referenced by Email.templateId. Templates are kept in memory, and also as one JSON file each in
+ * email.templates.dir when set so that they survive restarts. Compiled templates are kept in a bounded cache of
+ * email.templates.cacheSize entries.
+ */
+@Component
+public class TemplateService {
+
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]{0,127}");
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private TemplateCache templateCache = new TemplateCache(1000);
+    private Path directory;
+
+    public TemplateService() {
+    }
+
+    /**
+     * @param cacheSize maximum number of compiled templates
+     * @param directory where templates are stored, null to keep them in memory only
+     * @throws IOException
+     */
+    public TemplateService(int cacheSize, Path directory) throws IOException {
+        this.templateCache = new TemplateCache(cacheSize);
+        load(directory);
+    }
+
+    // Before the server starts, so stored templates are loaded before the first templated send
+    @PostConstruct
+    public void init() throws IOException {
+        if (applicationProperties.getProperty("email.templates.cacheSize") != null) {
+            this.templateCache = new TemplateCache(
+                    Integer.valueOf(applicationProperties.getProperty("email.templates.cacheSize")));
+        }
+        if (applicationProperties.getProperty("email.templates.dir") != null) {
+            load(Paths.get(applicationProperties.getProperty("email.templates.dir")));
+        }
+    }
+
+    /**
+     * Create or replace a template
+     * @param template with id, subject and content
+     * @throws IllegalArgumentException when id, subject or content is empty or invalid
+     * @throws IOException when the template can not be stored
+     */
+    public synchronized void put(Template template) throws IOException {
+        if (!isValidId(template.getId()) || template.getSubject() == null || template.getSubject().isEmpty()
+                || template.getContent() == null || template.getContent().isEmpty()) {
+            throw new IllegalArgumentException(ErrorType.TEMPLATE_INVALID.getMessage());
+        }
+        Template stored = new Template(template.getId(), template.getSubject(), template.getContent());
+        if (directory != null) {
+            Path temporary = directory.resolve(stored.getId() + ".json.tmp");
+            objectMapper.writeValue(temporary.toFile(), stored);
+            Files.move(temporary, file(stored.getId()), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        templates.put(stored.getId(), stored);
+        templateCache.invalidate(stored.getId());
+    }
+
+    /**
+     * @param id
+     * @return template, null when there is none
+     */
+    public Template get(String id) {
+        return id == null ? null : templates.get(id);
+    }
+
+    /**
+     * @param id
+     * @return true when a template was deleted
+     * @throws IOException when the stored template can not be deleted
+     */
+    public synchronized boolean delete(String id) throws IOException {
+        if (!isValidId(id) || !templates.containsKey(id)) {
+            return false;
+        }
+        if (directory != null) {
+            Files.deleteIfExists(file(id));
+        }
+        templates.remove(id);
+        templateCache.invalidate(id);
+        return true;
+    }
+
+    /**
+     * @param id
+     * @return compiledTemplate of the current version, null when there is no such template
+     */
+    public CompiledTemplate getCompiled(String id) {
+        Template template = get(id);
+        return template == null ? null : templateCache.get(template);
+    }
+
+    public TemplateCache.Snapshot getCacheSnapshot() {
+        return templateCache.snapshot();
+    }
+
+    private void load(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                Template template = objectMapper.readValue(file.toFile(), Template.class);
+                templates.put(template.getId(), template);
+            }
+        }
+        this.directory = directory;
+    }
+
+    private Path file(String id) {
+        return directory.resolve(id + ".json");
+    }
+
+    private static boolean isValidId(String id) {
+        return id != null && ID.matcher(id).matches();
+    }
+}
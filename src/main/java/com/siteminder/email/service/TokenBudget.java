@@ -0,0 +1,58 @@
+package com.siteminder.email.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budget of extra attempts, such as hedged requests or retries, earned by regular calls.
+ *
+ * Each call deposits ratio of a token, up to maxTokens, and each extra attempt withdraws a whole token. Extra attempts
+ * therefore stay below ratio of the calls, plus a burst of maxTokens. The balance is kept in thousandths of a token
+ * and updated by compare-and-set.
+ */
+public class TokenBudget {
+
+    private static final long SCALE = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    /**
+     * @param ratio tokens earned per call, e.g. 0.1 for at most one extra attempt every ten calls
+     * @param maxTokens tokens that can be saved up, the budget starts full
+     */
+    public TokenBudget(double ratio, int maxTokens) {
+        this.deposit = Math.round(ratio * SCALE);
+        this.maxBalance = maxTokens * SCALE;
+        this.balance = new AtomicLong(this.maxBalance);
+    }
+
+    public void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+    }
+
+    /**
+     * Take a token for an extra attempt
+     * @return false when the budget is spent
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    public double getBalance() {
+        return (double) balance.get() / SCALE;
+    }
+}
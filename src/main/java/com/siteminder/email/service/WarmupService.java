@@ -0,0 +1,127 @@
+package com.siteminder.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.config.ApplicationProperties;
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.Email;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gets a new instance ready to serve fast from its first request. Once every component is initialized, a background
+ * thread reads and validates a sample email so the request path is compiled, then has each emailHandler serialize it,
+ * resolve its provider host and open pooled connections. The instance is ready when this is done, whether or not
+ * providers could be reached, as sends fail over between them anyway.
+ */
+@Component
+public class WarmupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmupService.class);
+    private static final String SAMPLE_EMAIL = "{\"from\": \"Warm Up <warmup@example.com>\", "
+            + "\"to\": [\"Jane Doe <jane.doe@example.com>\", \"john.doe@example.com\"], "
+            + "\"cc\": [\"\\\"Doe, Jim\\\" <jim.doe@example.com>\"], \"bcc\": [\"jill.doe@example.org\"], "
+            + "\"subject\": \"Warm up\", \"content\": \"Warm up <b>content</b>\"}";
+
+    @Autowired
+    private ApplicationProperties applicationProperties;
+
+    @Autowired
+    private EmailService emailService = new EmailService();
+
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private boolean enabled = true;
+    private int iterations = 1000;
+    private int connections = 4;
+    private volatile boolean ready;
+    private volatile Map<EmailHandler.Type, String> providers = Collections.emptyMap();
+
+    public WarmupService() {
+    }
+
+    public WarmupService(EmailService emailService, int iterations, int connections) {
+        this.emailService = emailService;
+        this.iterations = iterations;
+        this.connections = connections;
+    }
+
+    // The components it sends through read their properties in @PostConstruct, so before this runs
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        if (applicationProperties.getProperty("email.warmup.enabled") != null) {
+            this.enabled = Boolean.valueOf(applicationProperties.getProperty("email.warmup.enabled"));
+        }
+        if (applicationProperties.getProperty("email.warmup.iterations") != null) {
+            this.iterations = Integer.valueOf(applicationProperties.getProperty("email.warmup.iterations"));
+        }
+        if (applicationProperties.getProperty("email.warmup.connections") != null) {
+            this.connections = Integer.valueOf(applicationProperties.getProperty("email.warmup.connections"));
+        }
+
+        if (!enabled) {
+            this.ready = true;
+            return;
+        }
+        Thread thread = new Thread(this::warmUp, "email-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the warm-up and mark the instance ready, whatever its outcome
+     */
+    public void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            Email email = null;
+            for (int i = 0; i < iterations; i++) {
+                email = objectMapper.readValue(SAMPLE_EMAIL, Email.class);
+                emailService.validEmail(email);
+            }
+            if (email == null) {
+                email = objectMapper.readValue(SAMPLE_EMAIL, Email.class);
+            }
+
+            List<EmailHandler> emailHandlers = emailService.getEmailHandlers();
+            Map<EmailHandler.Type, String> providers = new LinkedHashMap<>();
+            for (EmailHandler emailHandler : emailHandlers) {
+                try {
+                    emailHandler.warmUp(email, iterations, connections);
+                    providers.put(emailHandler.getType(), "OK");
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to warm up {}", emailHandler.getType(), e);
+                    providers.put(emailHandler.getType(), String.valueOf(e));
+                }
+            }
+            this.providers = Collections.unmodifiableMap(providers);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to warm up", e);
+        } finally {
+            this.ready = true;
+            logger.info("Warmed up in {} ms", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return true once the warm-up is done, or at startup when it is disabled
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return outcome of the warm-up of each provider, OK or the error, empty until it is done
+     */
+    public Map<EmailHandler.Type, String> getProviders() {
+        return providers;
+    }
+}
@@ -0,0 +1,171 @@
+package com.siteminder.email.template;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.siteminder.email.model.Template;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Render plan of a template: its subject and content split once into literals and variables, with the literals also
+ * kept JSON escaped so they can be copied into request bodies as they are.
+ */
+public final class CompiledTemplate {
+
+    private final Template source;
+    private final Text subject;
+    private final Text content;
+
+    private CompiledTemplate(Template source) {
+        this.source = source;
+        this.subject = Text.compile(source.getSubject());
+        this.content = Text.compile(source.getContent());
+    }
+
+    /**
+     * @param source template with subject and content
+     * @return compiledTemplate
+     */
+    public static CompiledTemplate compile(Template source) {
+        return new CompiledTemplate(source);
+    }
+
+    /**
+     * @return template this was compiled from, compared by identity to detect updates
+     */
+    public Template getSource() {
+        return source;
+    }
+
+    public Text getSubject() {
+        return subject;
+    }
+
+    public Text getContent() {
+        return content;
+    }
+
+    /**
+     * Compiled string, literals[0] variables[0] literals[1] ... variables[n - 1] literals[n]
+     */
+    public static final class Text {
+
+        private static final char[] QUOTE = {'"'};
+
+        private final String[] literals;
+        private final char[][] jsonLiterals;
+        private final String[] variables;
+        private final int literalLength;
+
+        private Text(List<String> literals, List<String> variables) {
+            this.literals = literals.toArray(new String[0]);
+            this.variables = variables.toArray(new String[0]);
+            this.jsonLiterals = new char[this.literals.length][];
+            int length = 0;
+            for (int i = 0; i < this.literals.length; i++) {
+                jsonLiterals[i] = JsonStringEncoder.getInstance().quoteAsString(this.literals[i]);
+                length += this.literals[i].length();
+            }
+            this.literalLength = length;
+        }
+
+        /**
+         * Split text on {{name}}, where name may be surrounded by spaces. Braces without a closing }} or a valid
+         * name are kept as text.
+         * @param text
+         * @return compiled text
+         */
+        static Text compile(String text) {
+            List<String> literals = new ArrayList<>();
+            List<String> variables = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int position = 0;
+            while (position < text.length()) {
+                int open = text.indexOf("{{", position);
+                int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+                if (close < 0) {
+                    break;
+                }
+                String name = text.substring(open + 2, close).trim();
+                if (!isName(name)) {
+                    literal.append(text, position, open + 2);
+                    position = open + 2;
+                    continue;
+                }
+                literal.append(text, position, open);
+                literals.add(literal.toString());
+                literal.setLength(0);
+                variables.add(name);
+                position = close + 2;
+            }
+            literal.append(text, position, text.length());
+            literals.add(literal.toString());
+            return new Text(literals, variables);
+        }
+
+        /**
+         * @return names of variables in order of appearance, with repeats
+         */
+        public List<String> getVariables() {
+            return Collections.unmodifiableList(Arrays.asList(variables));
+        }
+
+        /**
+         * @param values by variable name, missing variables render as empty
+         * @return rendered text
+         */
+        public String render(Map<String, String> values) {
+            if (variables.length == 0) {
+                return literals[0];
+            }
+            StringBuilder rendered = new StringBuilder(literalLength + 16 * variables.length);
+            for (int i = 0; i < variables.length; i++) {
+                rendered.append(literals[i]);
+                String value = values == null ? null : values.get(variables[i]);
+                if (value != null) {
+                    rendered.append(value);
+                }
+            }
+            return rendered.append(literals[variables.length]).toString();
+        }
+
+        /**
+         * Write the rendered text as a JSON string value without building it first
+         * @param generator positioned where a value is expected
+         * @param values by variable name, missing variables render as empty
+         * @throws IOException
+         */
+        public void writeJson(JsonGenerator generator, Map<String, String> values) throws IOException {
+            generator.writeRawValue(QUOTE, 0, 1);
+            for (int i = 0; i < variables.length; i++) {
+                generator.writeRaw(jsonLiterals[i], 0, jsonLiterals[i].length);
+                String value = values == null ? null : values.get(variables[i]);
+                if (value != null) {
+                    char[] escaped = JsonStringEncoder.getInstance().quoteAsString(value);
+                    generator.writeRaw(escaped, 0, escaped.length);
+                }
+            }
+            char[] last = jsonLiterals[variables.length];
+            generator.writeRaw(last, 0, last.length);
+            generator.writeRaw('"');
+        }
+
+        private static boolean isName(String name) {
+            if (name.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '-') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.siteminder.email.template;
+
+import com.siteminder.email.model.Template;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used compiled templates, bounded to capacity. An entry compiled from another version of a template
+ * than the one asked for is compiled again, so an update racing with a compile can not leave a stale plan behind.
+ */
+public class TemplateCache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, CompiledTemplate> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of compiled templates
+     */
+    public TemplateCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > TemplateCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param source current version of the template
+     * @return compiledTemplate of source, compiled on a miss
+     */
+    public CompiledTemplate get(Template source) {
+        synchronized (entries) {
+            CompiledTemplate compiledTemplate = entries.get(source.getId());
+            if (compiledTemplate != null && compiledTemplate.getSource() == source) {
+                hits.incrementAndGet();
+                return compiledTemplate;
+            }
+        }
+        // Compile outside the lock, a concurrent miss compiles twice at worst
+        misses.incrementAndGet();
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(source);
+        synchronized (entries) {
+            entries.put(source.getId(), compiledTemplate);
+        }
+        return compiledTemplate;
+    }
+
+    /**
+     * @param id of a template updated or deleted
+     */
+    public void invalidate(String id) {
+        synchronized (entries) {
+            entries.remove(id);
+        }
+    }
+
+    public Snapshot snapshot() {
+        synchronized (entries) {
+            return new Snapshot(entries.size(), capacity, hits.get(), misses.get());
+        }
+    }
+
+    public static class Snapshot {
+        private final int size;
+        private final int capacity;
+        private final long hits;
+        private final long misses;
+
+        public Snapshot(int size, int capacity, long hits, long misses) {
+            this.size = size;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+    }
+}
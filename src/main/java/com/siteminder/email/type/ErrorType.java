@@ -8,6 +8,16 @@ public enum ErrorType {
     SUBJECT_EMPTY("Subject is empty or invalid"),
     CONTENT_EMPTY("Content is empty or invalid"),
     REQUEST_FAILED("Request failed. Please try again"),
+    BODY_MALFORMED("Request body is malformed"),
+    PROVIDERS_BUSY("Email services are busy. Please try again"),
+    RATE_LIMITED("Too many requests. Please try again later"),
+    TEMPLATE_NOT_FOUND("Template is not found"),
+    TEMPLATE_INVALID("Template id, subject or content is empty or invalid"),
+    CHUNKS_FAILED("Some recipients failed. See chunks"),
+    SCHEDULING_DISABLED("Scheduled delivery is not enabled"),
+    SCHEDULED_ATTACHMENTS("Emails with attachments can not be scheduled"),
+    RETRYING("Email services failed. The email is retried, see its status"),
+    SCOPE_INVALID("Scope is not tenant or domain"),
     ;
 
     ErrorType(String message) {
@@ -0,0 +1,77 @@
+package com.siteminder.email.attachment;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Base64InputStreamTest {
+
+    private Path file;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        this.file = Files.createTempFile("attachment", ".bin");
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Test
+    void read_ShouldEncodeFileReadThroughSeveralWindows() throws IOException {
+        // Before
+        byte[] content = new byte[9 * 1024 * 1024 + 7];
+        new Random(42).nextBytes(content);
+        Files.write(this.file, content);
+
+        // When
+        byte[] encoded;
+        try (InputStream inputStream = new Base64InputStream(new MappedFileInputStream(this.file))) {
+            encoded = readAll(inputStream);
+        }
+
+        // Verify
+        assertArrayEquals(Base64.getEncoder().encode(content), encoded);
+    }
+
+    @Test
+    void read_ShouldEncodeEmptyAndPaddedFiles() throws IOException {
+        for (String content : new String[]{"", "a", "ab", "abc", "abcd"}) {
+            // Before
+            Files.write(this.file, content.getBytes(StandardCharsets.UTF_8));
+
+            // When
+            String encoded;
+            try (InputStream inputStream = new Base64InputStream(new MappedFileInputStream(this.file))) {
+                encoded = new String(readAll(inputStream), StandardCharsets.US_ASCII);
+            }
+
+            // Verify
+            assertEquals(Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8)), encoded);
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // An odd buffer size, so reads do not line up with blocks or windows
+        byte[] buffer = new byte[1000];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
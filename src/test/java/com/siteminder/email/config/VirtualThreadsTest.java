@@ -0,0 +1,32 @@
+package com.siteminder.email.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VirtualThreadsTest {
+
+    @Test
+    void newThreadPerTaskExecutor_ShouldRunTasksOnVirtualThreadsWhenSupported()
+            throws ExecutionException, InterruptedException {
+        // When
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-");
+
+        // Verify
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+        if (!VirtualThreads.isSupported()) {
+            assertNull(executor);
+            return;
+        }
+        try {
+            assertTrue(executor.submit(() -> VirtualThreads.isVirtual(Thread.currentThread())).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
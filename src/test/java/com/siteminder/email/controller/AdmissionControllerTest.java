@@ -0,0 +1,46 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.RateLimit;
+import com.siteminder.email.service.AdmissionControl;
+import com.siteminder.email.type.ErrorType;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class AdmissionControllerTest {
+
+    private AdmissionControl admissionControl = new AdmissionControl(true, null, null);
+    private AdmissionController admissionController = new AdmissionController(this.admissionControl);
+
+    @Test
+    void setLimit_ShouldSetLimitOfScopeInAnyCase() {
+        // When
+        ResponseEntity<?> response = this.admissionController.setLimit("Domain", "gmail.com", new RateLimit(5, 10));
+
+        // Verify
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        Map<?, ?> limits = (Map<?, ?>) ((Map<?, ?>) response.getBody()).get(AdmissionControl.Scope.DOMAIN);
+        assertEquals(5, ((RateLimit) limits.get("gmail.com")).getRate());
+    }
+
+    @Test
+    void setLimit_ShouldReturnBadRequestWhenScopeIsUnknown() {
+        // When
+        ResponseEntity<?> setResponse = this.admissionController.setLimit("region", "au", new RateLimit(5, 10));
+        ResponseEntity<?> removeResponse = this.admissionController.removeLimit("region", "au");
+
+        // Verify
+        assertEquals(HttpStatus.BAD_REQUEST, setResponse.getStatusCode());
+        assertEquals(HttpStatus.BAD_REQUEST, removeResponse.getStatusCode());
+        EmailHandlerResult result = (EmailHandlerResult) setResponse.getBody();
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, result.getType());
+        assertEquals(ErrorType.SCOPE_INVALID.getMessage(), result.getMessage());
+        this.admissionControl.getLimits().values().forEach(limits -> assertFalse(limits.containsKey("au")));
+    }
+}
@@ -1,10 +1,30 @@
 package com.siteminder.email.controller;
 
+import com.siteminder.email.model.AddressValidationResult;
+import com.siteminder.email.model.DeliveryStatus;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.RateLimit;
+import com.siteminder.email.service.AdmissionControl;
 import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.service.EmailAddressValidator;
 import com.siteminder.email.service.EmailService;
+import com.siteminder.email.service.IdempotencyCache;
+import com.siteminder.email.service.RetryScheduler;
+import com.siteminder.email.type.ErrorType;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
@@ -16,16 +36,198 @@ class EmailControllerTest {
         // Before
         EmailService emailService = mock(EmailService.class);
         EmailHandlerResult emailHandlerResult = new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS, "message");
-        doReturn(emailHandlerResult).when(emailService).send(any());
+        doReturn(CompletableFuture.completedFuture(emailHandlerResult)).when(emailService).sendAsync(any());
         EmailController emailController = new EmailController(emailService);
 
         // When
-        ResponseEntity<EmailHandlerResult> resultResponseEntity = emailController.sendEmail(any());
+        DeferredResult<ResponseEntity<EmailHandlerResult>> deferredResult =
+                emailController.sendEmail(any(), null, null);
+        ResponseEntity<?> resultResponseEntity = (ResponseEntity<?>) deferredResult.getResult();
 
         // Verify
-        verify(emailService).send(any());
+        verify(emailService).sendAsync(any());
 
         assertEquals(emailHandlerResult, resultResponseEntity.getBody());
         assertEquals(HttpStatus.OK.value(), resultResponseEntity.getStatusCodeValue());
     }
-}
\ No newline at end of file
+
+    @Test
+    void sendEmails_ShouldReadJsonArray() throws IOException {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doAnswer(invocation -> countEmails(invocation.getArgument(0))).when(emailService).sendBulk(any());
+        EmailController emailController = new EmailController(emailService);
+        String body = "[{\"from\":\"a@b.com\"},{\"from\":\"c@d.com\"}]";
+
+        // When
+        ResponseEntity<List<EmailHandlerResult>> resultResponseEntity =
+                emailController.sendEmails(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), null);
+
+        // Verify
+        assertEquals(2, resultResponseEntity.getBody().size());
+        assertEquals(HttpStatus.OK.value(), resultResponseEntity.getStatusCodeValue());
+    }
+
+    @Test
+    void sendEmails_ShouldReadNewlineDelimitedJson() throws IOException {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doAnswer(invocation -> countEmails(invocation.getArgument(0))).when(emailService).sendBulk(any());
+        EmailController emailController = new EmailController(emailService);
+        String body = "{\"from\":\"a@b.com\"}\n{\"from\":\"c@d.com\"}\n{\"from\":\"e@f.com\"}\n";
+
+        // When
+        ResponseEntity<List<EmailHandlerResult>> resultResponseEntity =
+                emailController.sendEmails(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), null);
+
+        // Verify
+        assertEquals(3, resultResponseEntity.getBody().size());
+        assertEquals(HttpStatus.OK.value(), resultResponseEntity.getStatusCodeValue());
+    }
+
+    @Test
+    void sendEmails_ShouldReturnBadRequestWhenMalformed() throws IOException {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doAnswer(invocation -> countEmails(invocation.getArgument(0))).when(emailService).sendBulk(any());
+        EmailController emailController = new EmailController(emailService);
+        String body = "[{\"from\":\"a@b.com\"},{\"from\":";
+
+        // When
+        ResponseEntity<List<EmailHandlerResult>> resultResponseEntity =
+                emailController.sendEmails(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), null);
+
+        // Verify
+        assertEquals(HttpStatus.BAD_REQUEST.value(), resultResponseEntity.getStatusCodeValue());
+        assertEquals(ErrorType.BODY_MALFORMED.getMessage(), resultResponseEntity.getBody().get(0).getMessage());
+    }
+
+    @Test
+    void sendEmail_ShouldSendOnceForRepeatedIdempotencyKey() {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        CompletableFuture<EmailHandlerResult> inFlight = new CompletableFuture<>();
+        doReturn(inFlight).when(emailService).sendAsync(any());
+        EmailController emailController = new EmailController(emailService);
+        emailController.setIdempotencyCache(new IdempotencyCache(100, 60000));
+        Email email = new Email();
+
+        // When
+        DeferredResult<ResponseEntity<EmailHandlerResult>> first = emailController.sendEmail(email, "key-1", null);
+        DeferredResult<ResponseEntity<EmailHandlerResult>> duplicate = emailController.sendEmail(email, "key-1", null);
+        inFlight.complete(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS));
+        DeferredResult<ResponseEntity<EmailHandlerResult>> retry = emailController.sendEmail(email, "key-1", null);
+        emailController.sendEmail(email, "key-2", null);
+
+        // Verify
+        verify(emailService, times(2)).sendAsync(any());
+        assertEquals(HttpStatus.OK, ((ResponseEntity<?>) first.getResult()).getStatusCode());
+        assertEquals(HttpStatus.OK, ((ResponseEntity<?>) duplicate.getResult()).getStatusCode());
+        assertEquals(HttpStatus.OK, ((ResponseEntity<?>) retry.getResult()).getStatusCode());
+    }
+
+    @Test
+    void sendEmail_ShouldReturnTooManyRequestsOverTenantLimit() {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(emailService).sendAsync(any());
+        AdmissionControl admissionControl = new AdmissionControl(true, new RateLimit(0.5, 1), null);
+        EmailController emailController = new EmailController(emailService);
+        emailController.setAdmissionControl(admissionControl);
+        Email email = new Email();
+        email.setFrom("user@gmail.com");
+
+        // When
+        DeferredResult<ResponseEntity<EmailHandlerResult>> first = emailController.sendEmail(email, null, "tenant");
+        DeferredResult<ResponseEntity<EmailHandlerResult>> second = emailController.sendEmail(email, null, "tenant");
+
+        // Verify
+        assertEquals(HttpStatus.OK, ((ResponseEntity<?>) first.getResult()).getStatusCode());
+        ResponseEntity<?> rejected = (ResponseEntity<?>) second.getResult();
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+        assertEquals("2", rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        verify(emailService, times(1)).sendAsync(any());
+    }
+
+    @Test
+    void sendEmails_ShouldRejectEmailsOverTenantLimit() throws IOException {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doAnswer(invocation -> countEmails(invocation.getArgument(0))).when(emailService).sendBulk(any());
+        EmailController emailController = new EmailController(emailService);
+        emailController.setAdmissionControl(new AdmissionControl(true, new RateLimit(0.5, 2), null));
+        String body = "[{\"from\":\"a@b.com\"},{\"from\":\"c@d.com\"},{\"from\":\"e@f.com\"}]";
+
+        // When
+        ResponseEntity<List<EmailHandlerResult>> partial = emailController.sendEmails(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), "tenant");
+        ResponseEntity<List<EmailHandlerResult>> rejected = emailController.sendEmails(
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), "tenant");
+
+        // Verify
+        assertEquals(HttpStatus.OK, partial.getStatusCode());
+        assertEquals(EmailHandlerResult.Type.SUCCESS, partial.getBody().get(1).getType());
+        assertEquals(EmailHandlerResult.Type.TOO_MANY_REQUESTS, partial.getBody().get(2).getType());
+        assertEquals("2", partial.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+        assertEquals(3, rejected.getBody().size());
+    }
+
+    @Test
+    void sendEmail_ShouldReturnStatusOfRetriedEmail() throws InterruptedException {
+        // Before
+        EmailService emailService = mock(EmailService.class);
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(emailService).sendAsync(any());
+        RetryScheduler retryScheduler = new RetryScheduler(emailService);
+        retryScheduler.start();
+        EmailController emailController = new EmailController(emailService);
+        emailController.setRetryScheduler(retryScheduler);
+        Email email = new Email();
+        email.setFrom("user@gmail.com");
+
+        // When
+        DeferredResult<ResponseEntity<EmailHandlerResult>> deferredResult =
+                emailController.sendEmail(email, null, null);
+        ResponseEntity<?> accepted = (ResponseEntity<?>) deferredResult.getResult();
+        String id = ((EmailHandlerResult) accepted.getBody()).getMessageId();
+        for (int i = 0; i < 500 && retryScheduler.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // Verify
+        assertEquals(HttpStatus.ACCEPTED, accepted.getStatusCode());
+        ResponseEntity<DeliveryStatus> status = emailController.getStatus(id);
+        assertEquals(HttpStatus.OK, status.getStatusCode());
+        assertEquals(DeliveryStatus.State.SENT, status.getBody().getState());
+        assertEquals(1, status.getBody().getAttempts());
+        assertEquals(HttpStatus.NOT_FOUND, emailController.getStatus("unknown").getStatusCode());
+        retryScheduler.destroy();
+    }
+
+    @Test
+    void validateAddresses_ShouldReturnVerdictPerAddress() {
+        // Before
+        EmailController emailController = new EmailController(mock(EmailService.class));
+
+        // When
+        List<AddressValidationResult> addressValidationResults =
+                emailController.validateAddresses(Arrays.asList("John <john@example.com>", "john@example"));
+
+        // Verify
+        assertEquals(2, addressValidationResults.size());
+        assertEquals(true, addressValidationResults.get(0).isValid());
+        assertEquals(EmailAddressValidator.Reason.INVALID_DOMAIN, addressValidationResults.get(1).getReason());
+    }
+
+    private List<EmailHandlerResult> countEmails(Iterator<Email> emails) {
+        List<EmailHandlerResult> results = new ArrayList<>();
+        while (emails.hasNext()) {
+            emails.next();
+            results.add(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS));
+        }
+        return results;
+    }
+}
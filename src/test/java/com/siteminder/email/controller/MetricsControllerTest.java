@@ -0,0 +1,37 @@
+package com.siteminder.email.controller;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.service.EmailMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsControllerTest {
+
+    @Test
+    void getMetrics_ShouldRenderCumulativeLatencyBuckets() {
+        // Before
+        EmailMetrics emailMetrics = new EmailMetrics();
+        emailMetrics.recordCall(EmailHandler.Type.Mailgun, TimeUnit.MILLISECONDS.toNanos(3),
+                EmailHandlerResult.Type.SUCCESS);
+        emailMetrics.recordCall(EmailHandler.Type.Mailgun, TimeUnit.MILLISECONDS.toNanos(200), null);
+        emailMetrics.recordResult(EmailHandlerResult.Type.TOO_MANY_REQUESTS);
+        MetricsController metricsController = new MetricsController(emailMetrics);
+
+        // When
+        String metrics = metricsController.getMetrics();
+
+        // Verify
+        assertTrue(metrics.contains("# TYPE email_provider_latency_seconds histogram\n"));
+        assertTrue(metrics.contains("email_provider_latency_seconds_bucket{provider=\"Mailgun\",le=\"0.005\"} 1\n"));
+        assertTrue(metrics.contains("email_provider_latency_seconds_bucket{provider=\"Mailgun\",le=\"0.1\"} 1\n"));
+        assertTrue(metrics.contains("email_provider_latency_seconds_bucket{provider=\"Mailgun\",le=\"0.25\"} 2\n"));
+        assertTrue(metrics.contains("email_provider_latency_seconds_bucket{provider=\"Mailgun\",le=\"+Inf\"} 2\n"));
+        assertTrue(metrics.contains("email_provider_latency_seconds_count{provider=\"Mailgun\"} 2\n"));
+        assertTrue(metrics.contains("email_provider_calls_total{provider=\"Mailgun\",result=\"ERROR\"} 1\n"));
+        assertTrue(metrics.contains("email_results_total{result=\"TOO_MANY_REQUESTS\"} 1\n"));
+    }
+}
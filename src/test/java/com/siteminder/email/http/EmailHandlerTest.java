@@ -1,17 +1,31 @@
 package com.siteminder.email.http;
 
+import com.siteminder.email.config.ApplicationProperties;
 import com.siteminder.email.model.EmailHandlerResult;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
@@ -82,4 +96,129 @@ class EmailHandlerTest {
         assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
     }
 
-}
\ No newline at end of file
+    @Test
+    void convertResponseToEmailResult_ShouldReturnFailWhenTooManyRequests() throws IOException {
+
+        // Before
+        StatusLine statusLine = mock(StatusLine.class);
+        doReturn(statusLine).when(this.httpResponse).getStatusLine();
+        doReturn(HttpStatus.TOO_MANY_REQUESTS.value()).when(statusLine).getStatusCode();
+
+        // When
+        EmailHandlerResult emailHandlerResult =
+                this.emailHandler.convertResponseToEmailResult(EmailHandler.Type.Mailgun, httpResponse);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
+        assertEquals(Integer.valueOf(429), emailHandlerResult.getProviderStatus());
+    }
+
+    @Test
+    void convertResponseToEmailResult_ShouldKeepErrorDetailsWhenBadRequest() throws IOException {
+
+        // Before
+        StatusLine statusLine = mock(StatusLine.class);
+        doReturn(statusLine).when(this.httpResponse).getStatusLine();
+        doReturn(HttpStatus.BAD_REQUEST.value()).when(statusLine).getStatusCode();
+        String body = "{\"errors\":[{\"message\":\"Adresse ungültig\",\"field\":\"from\"}]}";
+        doReturn(new StringEntity(body, ContentType.create("application/json", StandardCharsets.ISO_8859_1)))
+                .when(this.httpResponse).getEntity();
+
+        // When
+        EmailHandlerResult emailHandlerResult =
+                this.emailHandler.convertResponseToEmailResult(EmailHandler.Type.SendGrid, httpResponse);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, emailHandlerResult.getType());
+        assertEquals(Integer.valueOf(400), emailHandlerResult.getProviderStatus());
+        assertEquals("Adresse ungültig", emailHandlerResult.getMessage());
+        assertEquals("from", emailHandlerResult.getDetails().path("errors").path(0).path("field").asText());
+    }
+
+    @Test
+    void convertResponseToEmailResult_ShouldCapErrorBodyAndConsumeEntity() throws IOException {
+
+        // Before
+        StatusLine statusLine = mock(StatusLine.class);
+        doReturn(statusLine).when(this.httpResponse).getStatusLine();
+        doReturn(HttpStatus.BAD_GATEWAY.value()).when(statusLine).getStatusCode();
+        byte[] body = new byte[100000];
+        Arrays.fill(body, (byte) 'x');
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(body) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        BasicHttpEntity httpEntity = new BasicHttpEntity();
+        httpEntity.setContent(inputStream);
+        doReturn(httpEntity).when(this.httpResponse).getEntity();
+
+        // When
+        EmailHandlerResult emailHandlerResult =
+                this.emailHandler.convertResponseToEmailResult(EmailHandler.Type.Mailgun, httpResponse);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
+        assertEquals(4096, emailHandlerResult.getMessage().length());
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void executeAsync_ShouldCapErrorBodyAndReuseConnection() throws Exception {
+
+        // Before
+        byte[] body = new byte[100000];
+        Arrays.fill(body, (byte) 'x');
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            int status = exchange.getRequestURI().getPath().equals("/ok") ? 200 : 502;
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        server.start();
+        String serverUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        this.emailHandler.initHttpClient(mock(ApplicationProperties.class));
+
+        try {
+            // When
+            EmailHandlerResult failed =
+                    this.emailHandler.executeAsync(new HttpPost(serverUrl + "/fail")).get(5, TimeUnit.SECONDS);
+            EmailHandlerResult succeeded =
+                    this.emailHandler.executeAsync(new HttpPost(serverUrl + "/ok")).get(5, TimeUnit.SECONDS);
+
+            // Verify
+            assertEquals(EmailHandlerResult.Type.FAIL, failed.getType());
+            assertEquals(Integer.valueOf(502), failed.getProviderStatus());
+            assertEquals(4096, failed.getMessage().length());
+            assertEquals(EmailHandlerResult.Type.SUCCESS, succeeded.getType());
+            assertEquals(0, this.emailHandler.getAsyncPoolStats().getLeased());
+            assertEquals(1, this.emailHandler.getAsyncPoolStats().getAvailable());
+        } finally {
+            this.emailHandler.destroy();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void initHttpClient_ShouldCreatePoolWithConfiguredLimits() throws IOException {
+
+        // Before
+        ApplicationProperties applicationProperties = mock(ApplicationProperties.class);
+        doReturn("50").when(applicationProperties).getProperty("http.client.pool.maxTotal");
+        doReturn("20").when(applicationProperties).getProperty("http.client.pool.maxPerRoute");
+
+        // When
+        this.emailHandler.initHttpClient(applicationProperties);
+
+        // Verify
+        assertEquals(50, this.emailHandler.getPoolStats().getMax());
+        assertEquals(0, this.emailHandler.getPoolStats().getLeased());
+        assertEquals(20, this.emailHandler.connectionManager.getDefaultMaxPerRoute());
+
+        this.emailHandler.destroy();
+    }
+}
@@ -4,10 +4,21 @@ import com.siteminder.email.model.Email;
 import com.siteminder.email.model.EmailHandlerResult;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public class MockEmailHandler extends EmailHandler {
+    @Override
+    public Type getType() {
+        return Type.Mailgun;
+    }
+
     @Override
     public EmailHandlerResult send(Email email) throws IOException {
         return null;
     }
+
+    @Override
+    public CompletableFuture<EmailHandlerResult> sendAsync(Email email) {
+        return null;
+    }
 }
@@ -0,0 +1,72 @@
+package com.siteminder.email.http;
+
+import com.siteminder.email.model.Attachment;
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartStreamEntityTest {
+
+    @Test
+    void writeTo_ShouldWriteFieldsAndFilesWithExactLength() throws IOException {
+        // Before
+        Path first = Files.createTempFile("first", ".attachment");
+        Path second = Files.createTempFile("second", ".attachment");
+        Files.write(first, "first file".getBytes(StandardCharsets.UTF_8));
+        Files.write(second, new byte[0]);
+        List<NameValuePair> fields = Arrays.asList(new BasicNameValuePair("from", "sam@example.com"),
+                new BasicNameValuePair("subject", "Booking"));
+
+        try {
+            // When
+            MultipartStreamEntity entity = new MultipartStreamEntity(fields, "attachment", Arrays.asList(
+                    new Attachment("first.txt", "text/plain", first, 10),
+                    new Attachment("second.txt", "text/plain", second, 0)));
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            entity.writeTo(written);
+            byte[] pulled = EntityUtils.toByteArray(entity);
+
+            // Verify
+            String boundary = entity.getContentType().getValue().split("boundary=")[1];
+            String body = new String(written.toByteArray(), StandardCharsets.UTF_8);
+            assertEquals(entity.getContentLength(), written.size());
+            assertArrayEquals(written.toByteArray(), pulled);
+            assertTrue(body.startsWith("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"from\"\r\n\r\nsam@example.com\r\n"));
+            assertTrue(body.contains("Content-Disposition: form-data; name=\"attachment\"; filename=\"first.txt\"\r\n"
+                    + "Content-Type: text/plain\r\n\r\nfirst file\r\n--" + boundary + "\r\n"));
+            assertTrue(body.endsWith("filename=\"second.txt\"\r\nContent-Type: text/plain\r\n\r\n\r\n--"
+                    + boundary + "--\r\n"));
+        } finally {
+            Files.delete(first);
+            Files.delete(second);
+        }
+    }
+
+    @Test
+    void getContentLength_ShouldCountFieldsWithoutFiles() throws IOException {
+        // When
+        MultipartStreamEntity entity = new MultipartStreamEntity(
+                Collections.singletonList(new BasicNameValuePair("text", "é")), "attachment",
+                Collections.emptyList());
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+
+        // Verify
+        assertEquals(entity.getContentLength(), written.size());
+    }
+}
@@ -0,0 +1,223 @@
+package com.siteminder.email.http;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.model.Attachment;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.Template;
+import com.siteminder.email.template.CompiledTemplate;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class SendGridEmailHandlerTest {
+
+    private SendGridEmailHandler sendGridEmailHandler = new SendGridEmailHandler();
+    private ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void setPostJsonEntity_ShouldWriteCcAndBccSeparately() throws IOException {
+        // Before
+        Email email = new Email();
+        email.setFrom("Sam sam@example.com");
+        email.setTo(Arrays.asList("John Doe <john@example.com>", "jane@example.com"));
+        email.setCc(Collections.singletonList("cc@example.com"));
+        email.setBcc(Collections.singletonList("\"Bcc, Person\" <bcc@example.com>"));
+        email.setSubject("subject");
+        email.setContent("content \"quoted\"");
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+
+        // When
+        this.sendGridEmailHandler.setPostJsonEntity(post, email);
+
+        // Verify
+        JsonNode json = this.objectMapper.readTree(EntityUtils.toString(post.getEntity()));
+        JsonNode to = json.get("personalizations").get(0).get("to");
+        assertEquals("john@example.com", to.get(0).get("email").asText());
+        assertEquals("John Doe", to.get(0).get("name").asText());
+        assertEquals("jane@example.com", to.get(1).get("email").asText());
+        assertFalse(to.get(1).has("name"));
+        assertEquals("sam@example.com", json.get("from").get("email").asText());
+        assertEquals("Sam", json.get("from").get("name").asText());
+        assertEquals("cc@example.com", json.get("cc").get(0).get("email").asText());
+        assertEquals("bcc@example.com", json.get("bcc").get(0).get("email").asText());
+        assertEquals("Bcc, Person", json.get("bcc").get(0).get("name").asText());
+        assertEquals("subject", json.get("subject").asText());
+        assertEquals("content \"quoted\"", json.get("content").get(0).get("value").asText());
+        assertEquals(ContentType.APPLICATION_JSON.toString(), post.getEntity().getContentType().getValue());
+    }
+
+    @Test
+    void setPostJsonEntity_ShouldRenderTemplateIntoBody() throws IOException {
+        // Before
+        Email email = new Email();
+        email.setFrom("sam@example.com");
+        email.setTo(Collections.singletonList("jane@example.com"));
+        email.setTemplate(CompiledTemplate.compile(new Template("booking", "Booking {{number}}",
+                "Dear {{name}},\n\"see you\"")));
+        email.setVariables(Collections.singletonMap("name", "Jane <3"));
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+
+        // When
+        this.sendGridEmailHandler.setPostJsonEntity(post, email);
+
+        // Verify
+        JsonNode json = this.objectMapper.readTree(EntityUtils.toString(post.getEntity()));
+        assertEquals("Booking ", json.get("subject").asText());
+        assertEquals("Dear Jane <3,\n\"see you\"", json.get("content").get(0).get("value").asText());
+    }
+
+    @Test
+    void setPostJsonEntity_ShouldStreamAttachmentsAsBase64() throws IOException {
+        // Before
+        byte[] content = new byte[100000];
+        new Random(7).nextBytes(content);
+        Path file = Files.createTempFile("invoice", ".attachment");
+        Files.write(file, content);
+        Email email = new Email();
+        email.setFrom("sam@example.com");
+        email.setTo(Collections.singletonList("jane@example.com"));
+        email.setSubject("subject");
+        email.setContent("content");
+        email.setAttachments(Collections.singletonList(
+                new Attachment("invoice.pdf", "application/pdf", file, content.length)));
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+
+        try {
+            // When
+            this.sendGridEmailHandler.setPostJsonEntity(post, email);
+            String pulled = EntityUtils.toString(post.getEntity());
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            post.getEntity().writeTo(written);
+
+            // Verify
+            assertEquals(pulled, new String(written.toByteArray(), StandardCharsets.UTF_8));
+            JsonNode attachment = this.objectMapper.readTree(pulled).get("attachments").get(0);
+            assertArrayEquals(content, Base64.getDecoder().decode(attachment.get("content").asText()));
+            assertEquals("application/pdf", attachment.get("type").asText());
+            assertEquals("invoice.pdf", attachment.get("filename").asText());
+            assertEquals("attachment", attachment.get("disposition").asText());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void setPostJsonEntity_ShouldProduceBodyInBoundedWritesForAsyncClient() throws IOException, InterruptedException {
+        // Before
+        byte[] content = new byte[100000];
+        new Random(7).nextBytes(content);
+        Path file = Files.createTempFile("invoice", ".attachment");
+        Files.write(file, content);
+        Email email = new Email();
+        email.setFrom("sam@example.com");
+        email.setTo(Collections.singletonList("jane@example.com"));
+        email.setSubject("subject");
+        email.setContent("content");
+        email.setAttachments(Collections.singletonList(
+                new Attachment("invoice.pdf", "application/pdf", file, content.length)));
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+        ByteArrayOutputStream produced = new ByteArrayOutputStream();
+        int[] largestWrite = new int[1];
+        // Takes at most 1000 bytes a write, as a connection with a full send buffer would
+        ContentEncoder encoder = new ContentEncoder() {
+            private boolean completed;
+
+            @Override
+            public int write(ByteBuffer src) {
+                int length = Math.min(src.remaining(), 1000);
+                largestWrite[0] = Math.max(largestWrite[0], src.remaining());
+                produced.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.position() + length);
+                return length;
+            }
+
+            @Override
+            public void complete() {
+                completed = true;
+            }
+
+            @Override
+            public boolean isCompleted() {
+                return completed;
+            }
+        };
+
+        try {
+            // When
+            this.sendGridEmailHandler.setPostJsonEntity(post, email);
+            HttpAsyncContentProducer producer = (HttpAsyncContentProducer) post.getEntity();
+            // The body is written on another thread, so wait for it as the reactor would for requestOutput
+            for (int i = 0; i < 5000 && !encoder.isCompleted(); i++) {
+                producer.produceContent(encoder, null);
+                Thread.sleep(1);
+            }
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            post.getEntity().writeTo(written);
+
+            // Verify
+            assertTrue(encoder.isCompleted());
+            assertTrue(largestWrite[0] <= 8192);
+            assertArrayEquals(written.toByteArray(), produced.toByteArray());
+            JsonNode attachment = this.objectMapper.readTree(produced.toByteArray()).get("attachments").get(0);
+            assertArrayEquals(content, Base64.getDecoder().decode(attachment.get("content").asText()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void setPostJsonEntity_ShouldFailAsyncBodyWhenAttachmentIsMissing() throws IOException, InterruptedException {
+        // Before
+        Email email = new Email();
+        email.setFrom("sam@example.com");
+        email.setTo(Collections.singletonList("jane@example.com"));
+        email.setSubject("subject");
+        email.setContent("content");
+        email.setAttachments(Collections.singletonList(
+                new Attachment("invoice.pdf", "application/pdf", Paths.get("missing.attachment"), 100)));
+        HttpPost post = new HttpPost("http://localhost/v3/mail/send");
+        ContentEncoder encoder = mock(ContentEncoder.class);
+
+        // When
+        this.sendGridEmailHandler.setPostJsonEntity(post, email);
+        HttpAsyncContentProducer producer = (HttpAsyncContentProducer) post.getEntity();
+        IOException failure = null;
+        for (int i = 0; i < 5000 && failure == null; i++) {
+            try {
+                producer.produceContent(encoder, null);
+            } catch (IOException e) {
+                failure = e;
+            }
+            Thread.sleep(1);
+        }
+
+        // Verify
+        assertNotNull(failure);
+        verify(encoder, never()).complete();
+    }
+}
@@ -0,0 +1,110 @@
+package com.siteminder.email.load;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.http.MailgunEmailHandler;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.service.EmailService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the whole service over HTTP against fake providers
+ */
+class FailoverLoadTest {
+
+    private static final int REQUESTS = 300;
+
+    private FakeProviderServer mailgun;
+    private FakeProviderServer sendGrid;
+    private ConfigurableApplicationContext context;
+    private LoadGenerator loadGenerator;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        // A service per test, so that circuits and latencies seen by the router start afresh
+        mailgun = new FakeProviderServer(EmailHandler.Type.Mailgun).setLatency(5, 0);
+        sendGrid = new FakeProviderServer(EmailHandler.Type.SendGrid).setLatency(5, 0);
+        context = LoadGenerator.startService(mailgun, sendGrid);
+        loadGenerator = new LoadGenerator(LoadGenerator.getServiceUrl(context), 8);
+    }
+
+    @AfterEach
+    void afterEach() {
+        context.close();
+        mailgun.close();
+        sendGrid.close();
+    }
+
+    @Test
+    void startService_ShouldOpenConnectionsBeforeReady() {
+        // When
+        // startService waits for the service to be ready
+
+        // Verify
+        for (EmailHandler emailHandler : context.getBean(EmailService.class).getEmailHandlers()) {
+            assertEquals(4, emailHandler.getPoolStats().getAvailable(), emailHandler.getType().toString());
+            assertEquals(4, emailHandler.getAsyncPoolStats().getAvailable(), emailHandler.getType().toString());
+        }
+        assertEquals(0, mailgun.getRequests());
+        assertEquals(0, sendGrid.getRequests());
+    }
+
+    @Test
+    void send_ShouldReuseWarmedUpConnectionAfterInactivity() throws Exception {
+        // Before
+        // Idle connections are checked for staleness after 2 seconds
+        Thread.sleep(2100);
+        Email email = new Email();
+        email.setFrom("user@example.com");
+        email.setTo(Collections.singletonList("user@example.com"));
+        email.setSubject("subject");
+        email.setContent("content");
+
+        // When
+        EmailHandlerResult emailHandlerResult = context.getBean(MailgunEmailHandler.class).send(email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertEquals(1, mailgun.getAccepted());
+    }
+
+    @Test
+    void sendEmail_ShouldFailOverToSendGridWhenMailgunFails() throws InterruptedException {
+        // Before
+        mailgun.setErrorRate(1);
+
+        // When
+        LoadGenerator.Report report = loadGenerator.run(REQUESTS, 60000);
+
+        // Verify
+        assertEquals(REQUESTS, report.getStatus(200), report.toString());
+        assertEquals(0, mailgun.getAccepted());
+        assertTrue(mailgun.getRequests() < REQUESTS, mailgun.toString());
+        assertEquals(REQUESTS, sendGrid.getAccepted());
+    }
+
+    @Test
+    void sendEmail_ShouldDeliverEveryEmailOnceWhenConnectionsReset() throws InterruptedException {
+        // Before
+        // Few enough resets and a slower SendGrid keep Mailgun ranked first
+        mailgun.setResetRate(0.05).setLatency(5, 0.5);
+        sendGrid.setLatency(20, 0);
+
+        // When
+        LoadGenerator.Report report = loadGenerator.run(REQUESTS, 60000);
+
+        // Verify
+        assertEquals(REQUESTS, report.getStatus(200), report.toString());
+        assertEquals(REQUESTS, mailgun.getAccepted() + sendGrid.getAccepted());
+        assertTrue(mailgun.getResets() > 0, mailgun.toString());
+    }
+}
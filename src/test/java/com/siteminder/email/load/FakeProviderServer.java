@@ -0,0 +1,227 @@
+package com.siteminder.email.load;
+
+import com.siteminder.email.http.EmailHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Mailgun form API (POST /{domain}/messages) or the SendGrid JSON API (POST /v3/mail/send).
+ *
+ * Latency follows a log-normal distribution around a median, and a share of requests can be answered with 500, with
+ * 429 or by closing the connection without a response. Behaviour can be changed while the server is running. Delayed
+ * responses are scheduled rather than slept, so a few threads serve any number of concurrent requests.
+ */
+public class FakeProviderServer implements AutoCloseable {
+
+    private static final byte[] MAILGUN_ACCEPTED =
+            "{\"id\":\"<fake@localhost>\",\"message\":\"Queued. Thank you.\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MAILGUN_ERROR =
+            "{\"message\":\"Internal server error\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SENDGRID_ERROR =
+            "{\"errors\":[{\"message\":\"Internal server error\"}]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOO_MANY_REQUESTS =
+            "{\"message\":\"Too many requests\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final EmailHandler.Type type;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long medianLatency;
+    private volatile double latencySigma;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile double resetRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+
+    /**
+     * Start a server on an ephemeral port of the loopback interface
+     * @param type API to speak
+     * @throws IOException
+     */
+    public FakeProviderServer(EmailHandler.Type type) throws IOException {
+        this.type = type;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newFixedThreadPool(4, daemon("fake-" + type + "-http"));
+        this.scheduler = Executors.newScheduledThreadPool(2, daemon("fake-" + type + "-delay"));
+        this.server.createContext(type == EmailHandler.Type.Mailgun ? "/" : "/v3/mail/send", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String getServerUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param medianLatency in milliseconds
+     * @param latencySigma standard deviation of the log of latency, 0 for a fixed latency
+     * @return this
+     */
+    public FakeProviderServer setLatency(long medianLatency, double latencySigma) {
+        this.medianLatency = medianLatency;
+        this.latencySigma = latencySigma;
+        return this;
+    }
+
+    /**
+     * @param errorRate share of requests answered with 500
+     * @return this
+     */
+    public FakeProviderServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * @param throttleRate share of requests answered with 429
+     * @return this
+     */
+    public FakeProviderServer setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    /**
+     * @param resetRate share of requests whose connection is closed without a response
+     * @return this
+     */
+    public FakeProviderServer setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return type + " requests=" + requests + " accepted=" + accepted + " errors=" + errors + " throttled="
+                + throttled + " resets=" + resets;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        requests.incrementAndGet();
+        if (!"POST".equals(exchange.getRequestMethod()) || !isApiPath(exchange.getRequestURI().getPath())) {
+            respond(exchange, 404, new byte[0]);
+            return;
+        }
+
+        long latency = nextLatency();
+        if (latency <= 0) {
+            complete(exchange);
+        } else {
+            scheduler.schedule(() -> complete(exchange), latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void complete(HttpExchange exchange) {
+        double draw = ThreadLocalRandom.current().nextDouble();
+        try {
+            if (draw < resetRate) {
+                resets.incrementAndGet();
+                // Closing before the response headers are sent drops the connection
+                exchange.close();
+            } else if (draw < resetRate + throttleRate) {
+                throttled.incrementAndGet();
+                respond(exchange, 429, TOO_MANY_REQUESTS);
+            } else if (draw < resetRate + throttleRate + errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 500, type == EmailHandler.Type.Mailgun ? MAILGUN_ERROR : SENDGRID_ERROR);
+            } else {
+                accepted.incrementAndGet();
+                if (type == EmailHandler.Type.Mailgun) {
+                    respond(exchange, 200, MAILGUN_ACCEPTED);
+                } else {
+                    respond(exchange, 202, new byte[0]);
+                }
+            }
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private boolean isApiPath(String path) {
+        if (type == EmailHandler.Type.SendGrid) {
+            return path.equals("/v3/mail/send");
+        }
+        int slash = path.indexOf('/', 1);
+        return slash > 1 && path.substring(slash).equals("/messages");
+    }
+
+    private long nextLatency() {
+        double sigma = latencySigma;
+        if (sigma <= 0) {
+            return medianLatency;
+        }
+        return Math.round(medianLatency * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body.length > 0) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (inputStream.read(buffer) != -1) {
+            // Requests are only counted
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
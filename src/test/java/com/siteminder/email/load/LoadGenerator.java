@@ -0,0 +1,229 @@
+package com.siteminder.email.load;
+
+import com.siteminder.email.EmailApplication;
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.service.LatencyHistogram;
+import com.siteminder.email.service.WarmupService;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator for POST /email. Each client sends its next email as soon as the previous one is
+ * answered, so throughput is bounded by the service and the latency percentiles are those seen by clients.
+ *
+ * Run against the service wired to fake providers with
+ * mvn -Pload test-compile exec:exec -Dload.args="--load.duration=30000 --email.hedging.enabled=true"
+ * Arguments starting with --load. configure the generator and the fakes, the others are passed to the service.
+ */
+public class LoadGenerator {
+
+    private static final String EMAIL = "{\"from\":\"load@example.com\",\"to\":[\"user@example.com\"],"
+            + "\"subject\":\"Load test\",\"content\":\"Sent by the load generator\"}";
+
+    private final String url;
+    private final int concurrency;
+
+    /**
+     * @param serviceUrl base url of the email service
+     * @param concurrency number of clients
+     */
+    public LoadGenerator(String serviceUrl, int concurrency) {
+        this.url = serviceUrl + "/email";
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Send until requests have been sent or duration has passed, whichever comes first
+     * @param requests maximum number of requests
+     * @param duration maximum duration in milliseconds
+     * @return report
+     * @throws InterruptedException
+     */
+    public Report run(long requests, long duration) throws InterruptedException {
+        Report report = new Report();
+        AtomicLong remaining = new AtomicLong(requests);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(duration);
+
+        try (CloseableHttpClient httpClient = HttpClients.custom()
+                .setMaxConnTotal(concurrency)
+                .setMaxConnPerRoute(concurrency)
+                .build()) {
+            List<Thread> clients = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                Thread client = new Thread(() -> {
+                    while (remaining.getAndDecrement() > 0 && System.nanoTime() < deadline) {
+                        send(httpClient, report);
+                    }
+                }, "load-client-" + i);
+                client.start();
+                clients.add(client);
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+        } catch (IOException e) {
+            // Closing the client
+        }
+        report.elapsed = System.nanoTime() - start;
+        return report;
+    }
+
+    private void send(CloseableHttpClient httpClient, Report report) {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(EMAIL, ContentType.APPLICATION_JSON));
+        long start = System.nanoTime();
+        int status;
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            EntityUtils.consume(response.getEntity());
+            status = response.getStatusLine().getStatusCode();
+        } catch (IOException e) {
+            status = 0;
+        }
+        report.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        report.statuses.computeIfAbsent(status, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    public static class Report {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        // 0 counts requests that got no response
+        private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+        private long elapsed;
+
+        public long getRequests() {
+            return latencies.getCount();
+        }
+
+        /**
+         * @param status http status, 0 for requests that got no response
+         * @return number of responses with status
+         */
+        public long getStatus(int status) {
+            AtomicLong count = statuses.get(status);
+            return count == null ? 0 : count.get();
+        }
+
+        public double getThroughput() {
+            return latencies.getCount() / (elapsed / 1e9);
+        }
+
+        /**
+         * @param percentile between 0 and 1
+         * @return latency in milliseconds
+         */
+        public double getLatency(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            Map<Integer, Long> statusCounts = new TreeMap<>();
+            statuses.forEach((status, count) -> statusCounts.put(status, count.get()));
+            return String.format("requests=%d elapsed=%.1fs throughput=%.1f/s statuses=%s%n"
+                            + "latency ms p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f mean=%.1f",
+                    getRequests(), elapsed / 1e9, getThroughput(), statusCounts,
+                    getLatency(0.5), getLatency(0.9), getLatency(0.99), getLatency(0.999),
+                    latencies.getCount() == 0 ? 0 : latencies.getSum() / 1000.0 / latencies.getCount());
+        }
+    }
+
+    /**
+     * Start the email service on an ephemeral port, sending to the given fakes
+     * @param mailgun fake Mailgun
+     * @param sendGrid fake SendGrid
+     * @param args extra service arguments such as --email.hedging.enabled=true
+     * @return application context, local.server.port holds the port
+     */
+    public static ConfigurableApplicationContext startService(FakeProviderServer mailgun,
+                                                              FakeProviderServer sendGrid, String... args) {
+        List<String> serviceArgs = new ArrayList<>(Arrays.asList(
+                "--server.port=0",
+                "--mailgun.serverUrl=" + mailgun.getServerUrl(),
+                "--sendgrid.serverUrl=" + sendGrid.getServerUrl(),
+                "--sendgrid.key=fake"));
+        // A single tenant and sender domain would otherwise be rate limited
+        if (Arrays.stream(args).noneMatch(arg -> arg.startsWith("--email.admission.enabled="))) {
+            serviceArgs.add("--email.admission.enabled=false");
+        }
+        serviceArgs.addAll(Arrays.asList(args));
+        ConfigurableApplicationContext context =
+                SpringApplication.run(EmailApplication.class, serviceArgs.toArray(new String[0]));
+
+        // As a rolling deploy would, send nothing until the service reports ready
+        WarmupService warmupService = context.getBean(WarmupService.class);
+        long deadline = System.currentTimeMillis() + 60000;
+        while (!warmupService.isReady() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return context;
+    }
+
+    public static String getServiceUrl(ConfigurableApplicationContext context) {
+        return "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> serviceArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--load.") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                serviceArgs.add(arg);
+            }
+        }
+
+        try (FakeProviderServer mailgun = configure(new FakeProviderServer(EmailHandler.Type.Mailgun), options,
+                "load.mailgun.");
+             FakeProviderServer sendGrid = configure(new FakeProviderServer(EmailHandler.Type.SendGrid), options,
+                     "load.sendgrid.");
+             ConfigurableApplicationContext context = startService(mailgun, sendGrid,
+                     serviceArgs.toArray(new String[0]))) {
+            LoadGenerator loadGenerator = new LoadGenerator(getServiceUrl(context),
+                    Integer.parseInt(options.getOrDefault("load.concurrency", "32")));
+
+            long warmup = Long.parseLong(options.getOrDefault("load.warmup", "5000"));
+            if (warmup > 0) {
+                System.out.println("warmup " + loadGenerator.run(Long.MAX_VALUE, warmup));
+            }
+            Report report = loadGenerator.run(Long.parseLong(options.getOrDefault("load.requests",
+                    String.valueOf(Long.MAX_VALUE))), Long.parseLong(options.getOrDefault("load.duration", "30000")));
+            System.out.println(report);
+            System.out.println(mailgun);
+            System.out.println(sendGrid);
+        }
+    }
+
+    private static FakeProviderServer configure(FakeProviderServer fake, Map<String, String> options, String prefix) {
+        return fake
+                .setLatency(Long.parseLong(options.getOrDefault(prefix + "latency", "50")),
+                        Double.parseDouble(options.getOrDefault(prefix + "latencySigma", "0.5")))
+                .setErrorRate(Double.parseDouble(options.getOrDefault(prefix + "errorRate", "0")))
+                .setThrottleRate(Double.parseDouble(options.getOrDefault(prefix + "throttleRate", "0")))
+                .setResetRate(Double.parseDouble(options.getOrDefault(prefix + "resetRate", "0")));
+    }
+}
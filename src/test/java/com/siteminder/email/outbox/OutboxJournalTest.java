@@ -0,0 +1,109 @@
+package com.siteminder.email.outbox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxJournalTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    private Path directory;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        this.directory = Files.createTempDirectory("outbox-journal-test");
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void recover_ShouldReturnEntriesNotDelivered() throws IOException {
+        // Before
+        OutboxJournal journal = new OutboxJournal(this.directory, SEGMENT_SIZE);
+        OutboxEntry first = journal.append(bytes("first"));
+        OutboxEntry second = journal.append(bytes("second"));
+        journal.sync(second);
+        journal.markDelivered(first);
+        journal.close();
+
+        // When
+        OutboxJournal reopenedJournal = new OutboxJournal(this.directory, SEGMENT_SIZE);
+
+        // Verify
+        List<OutboxEntry> entries = reopenedJournal.getRecoveredEntries();
+        assertEquals(1, entries.size());
+        assertEquals(second.getId(), entries.get(0).getId());
+        assertEquals("second", new String(entries.get(0).getPayload(), StandardCharsets.UTF_8));
+
+        OutboxEntry third = reopenedJournal.append(bytes("third"));
+        assertTrue(third.getId() > second.getId());
+        reopenedJournal.close();
+    }
+
+    @Test
+    void markDelivered_ShouldDeleteFullyDeliveredSegment() throws IOException {
+        // Before
+        OutboxJournal journal = new OutboxJournal(this.directory, SEGMENT_SIZE);
+        byte[] payload = new byte[400];
+        OutboxEntry first = journal.append(payload);
+        OutboxEntry second = journal.append(payload);
+        OutboxEntry third = journal.append(payload);
+        assertEquals(2, journal.getSegmentCount());
+
+        // When
+        journal.markDelivered(first);
+        journal.markDelivered(second);
+
+        // Verify
+        assertEquals(1, journal.getSegmentCount());
+
+        journal.markDelivered(third);
+        journal.close();
+        assertEquals(0, new OutboxJournal(this.directory, SEGMENT_SIZE).getRecoveredEntries().size());
+    }
+
+    @Test
+    void recover_ShouldIgnoreTornRecord() throws IOException {
+        // Before
+        OutboxJournal journal = new OutboxJournal(this.directory, SEGMENT_SIZE);
+        OutboxEntry entry = journal.append(bytes("complete"));
+        journal.sync(entry);
+        journal.close();
+
+        Path segment;
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            segment = paths.findFirst().get();
+        }
+        byte[] content = Files.readAllBytes(segment);
+        content[OutboxSegment.HEADER_SIZE] ^= 0xFF;
+        Files.write(segment, content);
+
+        // When
+        OutboxJournal reopenedJournal = new OutboxJournal(this.directory, SEGMENT_SIZE);
+
+        // Verify
+        assertEquals(0, reopenedJournal.getRecoveredEntries().size());
+        reopenedJournal.close();
+    }
+
+    private byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package com.siteminder.email.schedule;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    @Test
+    void advance_ShouldReleaseItemsOfEveryWheelOnlyOnceDue() {
+        // Before
+        TimingWheel<Long> wheel = new TimingWheel<>(10, 8, 1000);
+        List<Long> deadlines = Arrays.asList(1015L, 1085L, 1700L, 1005L + 8 * 8 * 8 * 10, 50000L, 1015L);
+        for (Long deadline : deadlines) {
+            assertTrue(wheel.add(deadline, deadline));
+        }
+        boolean addedDue = wheel.add(1009, 1009L);
+
+        // When
+        List<Long> released = new ArrayList<>();
+        List<Long> early = new ArrayList<>();
+        for (long now = 1000; now <= 60000; now += 7) {
+            long time = now;
+            wheel.advance(now, deadline -> {
+                released.add(deadline);
+                // Deadlines are rounded down to the tick
+                if (deadline - deadline % 10 > time) {
+                    early.add(deadline);
+                }
+            });
+        }
+
+        // Verify
+        List<Long> sorted = new ArrayList<>(deadlines);
+        Collections.sort(sorted);
+        assertFalse(addedDue);
+        assertEquals(sorted, released);
+        assertEquals(Collections.emptyList(), early);
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiration());
+    }
+
+    @Test
+    void advance_ShouldReleaseItemsAddedLongAfterTheLastAdvance() {
+        // Before
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 0);
+        wheel.add(100000, "later");
+        wheel.advance(50000, item -> {
+        });
+
+        // When
+        boolean added = wheel.add(50025, "soon");
+        List<String> released = new ArrayList<>();
+        wheel.advance(50030, released::add);
+
+        // Verify
+        assertTrue(added);
+        assertEquals(Collections.singletonList("soon"), released);
+        assertEquals(1, wheel.size());
+    }
+}
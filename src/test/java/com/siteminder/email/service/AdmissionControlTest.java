@@ -0,0 +1,65 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.RateLimit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControlTest {
+
+    @Test
+    void tryAcquire_ShouldAdmitBurstThenReject() {
+        // Before
+        AdmissionControl admissionControl = new AdmissionControl(true, new RateLimit(1, 3), null);
+
+        // When Verify
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, admissionControl.tryAcquire("tenant", "gmail.com"));
+        }
+        long retryAfter = admissionControl.tryAcquire("tenant", "gmail.com");
+        assertTrue(retryAfter > 0 && retryAfter <= 1000, String.valueOf(retryAfter));
+        assertEquals(0, admissionControl.tryAcquire("other", "gmail.com"));
+    }
+
+    @Test
+    void tryAcquire_ShouldRefundTenantWhenDomainRejects() {
+        // Before
+        AdmissionControl admissionControl = new AdmissionControl(true, new RateLimit(1, 1), new RateLimit(1, 1));
+        assertEquals(0, admissionControl.tryAcquire("tenant", "gmail.com"));
+
+        // When
+        assertTrue(admissionControl.tryAcquire("other", "gmail.com") > 0);
+
+        // Verify
+        assertEquals(0, admissionControl.tryAcquire("other", "yahoo.com"));
+    }
+
+    @Test
+    void setLimit_ShouldApplyToExistingLimiters() {
+        // Before
+        AdmissionControl admissionControl = new AdmissionControl(true, null, new RateLimit(1, 1));
+        assertEquals(0, admissionControl.tryAcquire(null, "gmail.com"));
+        assertTrue(admissionControl.tryAcquire(null, "gmail.com") > 0);
+
+        // When
+        admissionControl.setLimit(AdmissionControl.Scope.DOMAIN, "gmail.com", new RateLimit(1000, 100));
+
+        // Verify
+        assertEquals(0, admissionControl.tryAcquire(null, "gmail.com"));
+        assertTrue(admissionControl.tryAcquire(null, "yahoo.com") == 0);
+        assertTrue(admissionControl.tryAcquire(null, "yahoo.com") > 0);
+        assertEquals(1000, admissionControl.getLimits().get(AdmissionControl.Scope.DOMAIN).get("gmail.com").getRate());
+    }
+
+    @Test
+    void tryAcquire_ShouldAdmitEverythingWhenDisabled() {
+        // Before
+        AdmissionControl admissionControl = new AdmissionControl(false, new RateLimit(1, 1), new RateLimit(1, 1));
+
+        // When Verify
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, admissionControl.tryAcquire("tenant", "gmail.com"));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.Attachment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AttachmentServiceTest {
+
+    private Path directory;
+    private AttachmentService attachmentService;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        this.directory = Files.createTempDirectory("attachment-service-test");
+        this.attachmentService = new AttachmentService(this.directory, 60000);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void spool_ShouldWriteUploadToDiskUntilReleased() throws IOException {
+        // Before
+        MockMultipartFile file = new MockMultipartFile("attachments", "C:\\invoices\\invoice\".pdf",
+                "application/pdf", "pdf".getBytes(StandardCharsets.UTF_8));
+
+        // When
+        Attachment attachment = this.attachmentService.spool(file);
+
+        // Verify
+        assertEquals("invoice_.pdf", attachment.getFilename());
+        assertEquals("application/pdf", attachment.getContentType());
+        assertEquals(3, attachment.getSize());
+        assertEquals("pdf", new String(Files.readAllBytes(attachment.getPath()), StandardCharsets.UTF_8));
+        assertEquals(this.directory, attachment.getPath().getParent());
+
+        // When
+        this.attachmentService.release(Collections.singletonList(attachment));
+
+        // Verify
+        assertFalse(Files.exists(attachment.getPath()));
+    }
+
+    @Test
+    void spool_ShouldDefaultFilenameAndContentType() throws IOException {
+        // Before
+        MockMultipartFile file = new MockMultipartFile("attachments", null, null, new byte[0]);
+
+        // When
+        Attachment attachment = this.attachmentService.spool(file);
+
+        // Verify
+        assertEquals("attachment", attachment.getFilename());
+        assertEquals("application/octet-stream", attachment.getContentType());
+    }
+
+    @Test
+    void sweep_ShouldDeleteOnlyOldSpooledFiles() throws IOException {
+        // Before
+        Path old = Files.createFile(this.directory.resolve("old.attachment"));
+        Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - 120000));
+        Path recent = Files.createFile(this.directory.resolve("recent.attachment"));
+        Path other = Files.createFile(this.directory.resolve("other.txt"));
+        Files.setLastModifiedTime(other, FileTime.fromMillis(System.currentTimeMillis() - 120000));
+
+        // When
+        int deleted = this.attachmentService.sweep(60000);
+
+        // Verify
+        assertEquals(1, deleted);
+        assertFalse(Files.exists(old));
+        assertTrue(Files.exists(recent));
+        assertTrue(Files.exists(other));
+    }
+}
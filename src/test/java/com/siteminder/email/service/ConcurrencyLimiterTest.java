@@ -0,0 +1,73 @@
+package com.siteminder.email.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+
+    @Test
+    void tryAcquire_ShouldRejectOverLimit() {
+        // Before
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test", 2, 1, 10, 0.5, 1000);
+
+        // When Verify
+        assertTrue(concurrencyLimiter.tryAcquire());
+        assertTrue(concurrencyLimiter.tryAcquire());
+        assertFalse(concurrencyLimiter.tryAcquire());
+        assertEquals(2, concurrencyLimiter.snapshot().getInFlight());
+        assertEquals(1, concurrencyLimiter.snapshot().getRejected());
+    }
+
+    @Test
+    void release_ShouldIncreaseLimitWhenBusyAndFast() {
+        // Before
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test", 2, 1, 3, 0.5, 1000);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            concurrencyLimiter.tryAcquire();
+            concurrencyLimiter.tryAcquire();
+            concurrencyLimiter.release(10, true);
+            concurrencyLimiter.release(10, true);
+        }
+
+        // Verify
+        assertEquals(3, concurrencyLimiter.snapshot().getLimit());
+        assertEquals(0, concurrencyLimiter.snapshot().getInFlight());
+    }
+
+    @Test
+    void release_ShouldDecreaseLimitWhenSlowOrFailed() {
+        // Before
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test", 8, 1, 10, 0.5, 1000);
+
+        // When
+        concurrencyLimiter.tryAcquire();
+        concurrencyLimiter.release(5000, true);
+        concurrencyLimiter.tryAcquire();
+        concurrencyLimiter.release(10, false);
+        concurrencyLimiter.tryAcquire();
+        concurrencyLimiter.release(10, false);
+        concurrencyLimiter.tryAcquire();
+        concurrencyLimiter.release(10, false);
+
+        // Verify
+        assertEquals(1, concurrencyLimiter.snapshot().getLimit());
+    }
+
+    @Test
+    void release_ShouldKeepLimitWhenMostlyIdle() {
+        // Before
+        ConcurrencyLimiter concurrencyLimiter = new ConcurrencyLimiter("test", 8, 1, 10, 0.5, 1000);
+
+        // When
+        concurrencyLimiter.tryAcquire();
+        concurrencyLimiter.release(10, true);
+
+        // Verify
+        assertEquals(8, concurrencyLimiter.snapshot().getLimit());
+    }
+}
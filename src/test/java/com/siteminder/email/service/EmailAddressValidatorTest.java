@@ -0,0 +1,105 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.AddressList;
+import com.siteminder.email.model.EmailAddress;
+import com.siteminder.email.service.EmailAddressValidator.Reason;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmailAddressValidatorTest {
+
+    private EmailAddressValidator emailAddressValidator;
+
+    @BeforeEach
+    void beforeEach() {
+        this.emailAddressValidator = new EmailAddressValidator(16);
+    }
+
+    @Test
+    void check_ShouldAcceptValidAddresses() {
+        for (String value : Arrays.asList(
+                "user@gmail.com",
+                "first.last+tag@mail.example.co.uk",
+                "o'brien@example.com",
+                "\"john doe\"@example.com",
+                "John john@example.com",
+                "John Doe <john@example.com>",
+                "\"Doe, John\" <john@example.com>",
+                "user@bücher.de",
+                "用户@例子.广告")) {
+            assertEquals(Reason.VALID, this.emailAddressValidator.check(value), value);
+        }
+    }
+
+    @Test
+    void check_ShouldRejectInvalidAddresses() {
+        assertEquals(Reason.EMPTY, this.emailAddressValidator.check(null));
+        assertEquals(Reason.EMPTY, this.emailAddressValidator.check("  "));
+        assertEquals(Reason.MISSING_AT, this.emailAddressValidator.check("user.gmail.com"));
+        assertEquals(Reason.INVALID_LOCAL_PART, this.emailAddressValidator.check("@gmail.com"));
+        assertEquals(Reason.INVALID_LOCAL_PART, this.emailAddressValidator.check("first..last@gmail.com"));
+        assertEquals(Reason.INVALID_LOCAL_PART, this.emailAddressValidator.check(".user@gmail.com"));
+        assertEquals(Reason.INVALID_DOMAIN, this.emailAddressValidator.check("user@localhost"));
+        assertEquals(Reason.INVALID_DOMAIN, this.emailAddressValidator.check("user@-gmail.com"));
+        assertEquals(Reason.INVALID_DOMAIN, this.emailAddressValidator.check("user@gmail..com"));
+        assertEquals(Reason.INVALID_DOMAIN, this.emailAddressValidator.check("user@1.2.3.4"));
+        assertEquals(Reason.INVALID_DISPLAY_NAME, this.emailAddressValidator.check("Doe, John <john@example.com>"));
+        assertEquals(Reason.TOO_LONG, this.emailAddressValidator.check(repeat('a', 250) + "@gmail.com"));
+    }
+
+    @Test
+    void check_ShouldReuseCachedDomainVerdictIgnoringCase() {
+        // Before
+        assertTrue(this.emailAddressValidator.isValid("a@Example.COM"));
+        assertFalse(this.emailAddressValidator.isValid("a@bad_domain.com"));
+
+        // When Verify
+        assertTrue(this.emailAddressValidator.isValid("b@example.com"));
+        assertFalse(this.emailAddressValidator.isValid("b@BAD_DOMAIN.com"));
+    }
+
+    @Test
+    void check_ShouldStayCorrectWhenCacheSlotsAreEvicted() {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(this.emailAddressValidator.isValid("user@domain" + i + ".com"));
+            assertFalse(this.emailAddressValidator.isValid("user@domain" + i + ".123"));
+        }
+    }
+
+    @Test
+    void parse_ShouldFindNameAddressAndSharedDomain() {
+        // When
+        AddressList addresses = AddressList.parse(Arrays.asList(
+                " \"Doe, John\" <John@Example.COM> ", "Sam sam@example.com", "jane@example.com"));
+        EmailAddress quoted = addresses.getAddress(0);
+        EmailAddress named = addresses.getAddress(1);
+        EmailAddress plain = addresses.getAddress(2);
+
+        // Verify
+        assertEquals(" \"Doe, John\" <John@Example.COM> ", addresses.get(0));
+        assertEquals("Doe, John", quoted.getName());
+        assertEquals("John@Example.COM", quoted.getAddress());
+        assertEquals("Sam", named.getName());
+        assertEquals("sam@example.com", named.getAddress());
+        assertNull(plain.getName());
+        assertSame(plain.getValue(), plain.getAddress());
+        assertEquals("example.com", quoted.getDomain());
+        assertSame(quoted.getDomain(), named.getDomain());
+        assertSame(named.getDomain(), plain.getDomain());
+        assertEquals(Reason.VALID, this.emailAddressValidator.checkParsed(quoted));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
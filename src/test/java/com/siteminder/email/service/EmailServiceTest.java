@@ -3,18 +3,33 @@ package com.siteminder.email.service;
 import com.siteminder.email.http.EmailHandler;
 import com.siteminder.email.model.Email;
 import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.model.Template;
 import com.siteminder.email.type.ErrorType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -25,8 +40,12 @@ class EmailServiceTest {
     private EmailHandler emailHandler2;
     private Email email;
 
+    @Captor
+    private ArgumentCaptor<List<Email>> batchCaptor;
+
     @BeforeEach
     void beforeEach() {
+        MockitoAnnotations.initMocks(this);
         this.emailHandler1 = mock(EmailHandler.class);
         this.emailHandler2 = mock(EmailHandler.class);
         Queue<EmailHandler> emailHandlerQueue = new LinkedList<>();
@@ -114,6 +133,175 @@ class EmailServiceTest {
         verify(this.emailHandler2, times(2)).send(any());
     }
 
+    @Test
+    void send_ShouldSkipEmailHandlerWithOpenCircuit() throws IOException {
+        // Before
+        doThrow(new IOException("timeout")).when(this.emailHandler1).send(any());
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler2).send(any());
+        for (int i = 0; i < 10; i++) {
+            this.emailService.send(this.email);
+        }
+        int emailHandler1Calls = mockingDetails(this.emailHandler1).getInvocations().size();
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertEquals(emailHandler1Calls, mockingDetails(this.emailHandler1).getInvocations().size());
+    }
+
+    @Test
+    void send_ShouldSkipEmailHandlerAtConcurrencyLimit() throws IOException {
+        // Before
+        ProviderLimiter providerLimiter = new ProviderLimiter(1, 1, 1, 0.9, 2000);
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setProviderLimiter(providerLimiter);
+        providerLimiter.getLimiter(this.emailHandler1).tryAcquire();
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler2).send(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        verify(this.emailHandler1, never()).send(any());
+        assertEquals(1, providerLimiter.getLimiter(this.emailHandler1).snapshot().getRejected());
+        assertEquals(0, providerLimiter.getLimiter(this.emailHandler2).snapshot().getInFlight());
+    }
+
+    @Test
+    void send_ShouldReleaseProbeOfEmailHandlerAtConcurrencyLimit() throws Exception {
+        // Before
+        ProviderRouter providerRouter = new ProviderRouter(10, 60000, 3, 0.5, 50);
+        for (int i = 0; i < 3; i++) {
+            providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        ProviderLimiter providerLimiter = new ProviderLimiter(1, 1, 1, 0.9, 2000);
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setProviderRouter(providerRouter);
+        this.emailService.setProviderLimiter(providerLimiter);
+        providerLimiter.getLimiter(this.emailHandler1).tryAcquire();
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler2).send(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        verify(this.emailHandler1, never()).send(any());
+        assertEquals(ProviderHealth.State.OPEN, providerRouter.getHealth(this.emailHandler1).getState());
+        assertEquals(this.emailHandler1,
+                providerRouter.route(Arrays.asList(this.emailHandler1, this.emailHandler2)).get(0));
+    }
+
+    @Test
+    void sendAsync_ShouldReturnBusyWhenAllEmailHandlersAtConcurrencyLimit() {
+        // Before
+        ProviderLimiter providerLimiter = new ProviderLimiter(1, 1, 1, 0.9, 2000);
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setProviderLimiter(providerLimiter);
+        providerLimiter.getLimiter(this.emailHandler1).tryAcquire();
+        providerLimiter.getLimiter(this.emailHandler2).tryAcquire();
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
+        assertEquals(ErrorType.PROVIDERS_BUSY.getMessage(), emailHandlerResult.getMessage());
+        verify(this.emailHandler1, never()).sendAsync(any());
+        verify(this.emailHandler2, never()).sendAsync(any());
+    }
+
+    @Test
+    void sendAsync_ShouldWaitForSlotOfItsLane() {
+        // Before
+        PriorityLanes priorityLanes = new PriorityLanes(1, 0, 10);
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setPriorityLanes(priorityLanes);
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler1).sendAsync(any());
+        priorityLanes.acquire(Email.Priority.LOW).join();
+        this.email.setPriority(Email.Priority.HIGH);
+
+        // When
+        CompletableFuture<EmailHandlerResult> future = this.emailService.sendAsync(this.email);
+
+        // Verify
+        assertFalse(future.isDone());
+        verify(this.emailHandler1, never()).sendAsync(any());
+        priorityLanes.release(Email.Priority.LOW);
+        assertEquals(EmailHandlerResult.Type.SUCCESS, future.join().getType());
+        assertEquals(0, priorityLanes.snapshot(Email.Priority.HIGH).getInFlight());
+    }
+
+    @Test
+    void send_ShouldRotateOnceWhenPreferredEmailHandlerFailsConcurrently() throws Exception {
+        // Before
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)).when(this.emailHandler1).send(any());
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler2).send(any());
+        int threads = 16;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<EmailHandlerResult>> futures = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < threads; i++) {
+            futures.add(executorService.submit(() -> {
+                startLatch.await();
+                return this.emailService.send(this.email);
+            }));
+        }
+        startLatch.countDown();
+
+        // Verify
+        for (Future<EmailHandlerResult> future : futures) {
+            assertEquals(EmailHandlerResult.Type.SUCCESS, future.get(10, TimeUnit.SECONDS).getType());
+        }
+        assertEquals(Arrays.asList(this.emailHandler2, this.emailHandler1), this.emailService.getEmailHandlers());
+        executorService.shutdown();
+    }
+
+    @Test
+    void send_ShouldAlwaysSelectEmailHandlerUnderContention() throws Exception {
+        // Before
+        doAnswer(invocation -> new EmailHandlerResult(ThreadLocalRandom.current().nextBoolean()
+                ? EmailHandlerResult.Type.SUCCESS : EmailHandlerResult.Type.FAIL))
+                .when(this.emailHandler1).send(any());
+        doAnswer(invocation -> {
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                throw new IOException("timeout");
+            }
+            return new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS);
+        }).when(this.emailHandler2).send(any());
+        int threads = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < threads; i++) {
+            futures.add(executorService.submit(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+                    assertNotNull(emailHandlerResult);
+                    assertNotNull(emailHandlerResult.getType());
+                }
+            }));
+        }
+
+        // Verify
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        List<EmailHandler> emailHandlers = this.emailService.getEmailHandlers();
+        assertEquals(2, emailHandlers.size());
+        assertTrue(emailHandlers.contains(this.emailHandler1));
+        assertTrue(emailHandlers.contains(this.emailHandler2));
+        executorService.shutdown();
+    }
+
     @Test
     void send_ShouldReturnIllegalArgumentWhenNoFrom() throws IOException {
         // Before
@@ -217,4 +405,312 @@ class EmailServiceTest {
         assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, emailHandlerResult.getType());
         assertEquals(ErrorType.CONTENT_EMPTY.getMessage(), emailHandlerResult.getMessage());
     }
-}
\ No newline at end of file
+
+    @Test
+    void sendAsync_ShouldCallSecondEmailHandlerWhenFirstFailed() {
+        // Before
+        CompletableFuture<EmailHandlerResult> failedFuture = new CompletableFuture<>();
+        failedFuture.completeExceptionally(new IOException("timeout"));
+        doReturn(failedFuture).when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+
+        verify(this.emailHandler1, times(1)).sendAsync(any());
+        verify(this.emailHandler2, times(1)).sendAsync(any());
+    }
+
+    @Test
+    void sendAsync_ShouldHedgeToSecondEmailHandlerWhenFirstIsSlow() throws Exception {
+        // Before
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(true, 0.95, 10, 20, new TokenBudget(0.1, 1));
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setHedgingPolicy(hedgingPolicy);
+        CompletableFuture<EmailHandlerResult> slowFuture = new CompletableFuture<>();
+        doReturn(slowFuture).when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertTrue(slowFuture.isCancelled());
+        assertNotNull(this.email.getMessageId());
+        assertEquals(1, hedgingPolicy.getHedges());
+        assertEquals(1, hedgingPolicy.getHedgeWins());
+
+        ArgumentCaptor<Email> emailCaptor = ArgumentCaptor.forClass(Email.class);
+        verify(this.emailHandler2).sendAsync(emailCaptor.capture());
+        assertEquals(this.email.getMessageId(), emailCaptor.getValue().getMessageId());
+    }
+
+    @Test
+    void sendAsync_ShouldReleaseProbeWhenHedgeWins() throws Exception {
+        // Before
+        ProviderRouter providerRouter = new ProviderRouter(10, 60000, 3, 0.5, 50);
+        for (int i = 0; i < 3; i++) {
+            providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setProviderRouter(providerRouter);
+        this.emailService.setHedgingPolicy(new HedgingPolicy(true, 0.95, 10, 20, new TokenBudget(0.1, 1)));
+        CompletableFuture<EmailHandlerResult> slowFuture = new CompletableFuture<>();
+        doReturn(slowFuture).when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertTrue(slowFuture.isCancelled());
+        assertEquals(ProviderHealth.State.OPEN, providerRouter.getHealth(this.emailHandler1).getState());
+        assertEquals(this.emailHandler1,
+                providerRouter.route(Arrays.asList(this.emailHandler1, this.emailHandler2)).get(0));
+        assertEquals(ProviderHealth.State.HALF_OPEN, providerRouter.getHealth(this.emailHandler1).getState());
+    }
+
+    @Test
+    void sendAsync_ShouldNotHedgeWhenBudgetIsSpent() throws Exception {
+        // Before
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(true, 0.95, 10, 20, new TokenBudget(0, 0));
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setHedgingPolicy(hedgingPolicy);
+        CompletableFuture<EmailHandlerResult> slowFuture = new CompletableFuture<>();
+        doReturn(slowFuture).when(this.emailHandler1).sendAsync(any());
+
+        // When
+        CompletableFuture<EmailHandlerResult> future = this.emailService.sendAsync(this.email);
+        Thread.sleep(100);
+        slowFuture.complete(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS));
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, future.get(5, TimeUnit.SECONDS).getType());
+        assertEquals(1, hedgingPolicy.getHedgesDenied());
+        verify(this.emailHandler2, never()).sendAsync(any());
+    }
+
+    @Test
+    void sendAsync_ShouldFailOverWithoutWaitingWhenHedging() throws Exception {
+        // Before
+        HedgingPolicy hedgingPolicy = new HedgingPolicy(true, 0.95, 10, 60000, new TokenBudget(0.1, 1));
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setHedgingPolicy(hedgingPolicy);
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
+        assertEquals(0, hedgingPolicy.getHedges());
+        verify(this.emailHandler2, times(1)).sendAsync(any());
+    }
+
+    @Test
+    void sendAsync_ShouldReturnWhenAllEmailHandlerFailed() {
+        // Before
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.FAIL, emailHandlerResult.getType());
+        assertEquals(ErrorType.REQUEST_FAILED.getMessage(), emailHandlerResult.getMessage());
+
+        verify(this.emailHandler1, times(1)).sendAsync(any());
+        verify(this.emailHandler2, times(1)).sendAsync(any());
+    }
+
+    @Test
+    void sendAsync_ShouldReturnIllegalArgumentWhenNoFrom() {
+        // Before
+        this.email.setFrom(null);
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, emailHandlerResult.getType());
+        verify(this.emailHandler1, times(0)).sendAsync(any());
+    }
+
+    @Test
+    void sendBulk_ShouldGroupEmailsWithSameContent() {
+        // Before
+        Email other = new Email();
+        other.setFrom("user@gmail.com");
+        other.setTo(Arrays.asList("other@gmail.com"));
+        other.setSubject("subject");
+        other.setContent("content");
+        doAnswer(invocation -> Collections.nCopies(((List<?>) invocation.getArgument(0)).size(),
+                new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler1).sendBatch(any());
+
+        // When
+        List<EmailHandlerResult> emailHandlerResults =
+                this.emailService.sendBulk(Arrays.asList(this.email, other).iterator());
+
+        // Verify
+        assertEquals(2, emailHandlerResults.size());
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResults.get(0).getType());
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResults.get(1).getType());
+
+        verify(this.emailHandler1, times(1)).sendBatch(this.batchCaptor.capture());
+        assertEquals(Arrays.asList(this.email, other), this.batchCaptor.getValue());
+        verify(this.emailHandler2, times(0)).sendBatch(any());
+    }
+
+    @Test
+    void sendBulk_ShouldReturnIllegalArgumentForInvalidEmailOnly() {
+        // Before
+        Email invalid = new Email();
+        invalid.setFrom("user@gmail.com");
+        doAnswer(invocation -> Collections.nCopies(((List<?>) invocation.getArgument(0)).size(),
+                new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler1).sendBatch(any());
+
+        // When
+        List<EmailHandlerResult> emailHandlerResults =
+                this.emailService.sendBulk(Arrays.asList(invalid, this.email).iterator());
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, emailHandlerResults.get(0).getType());
+        assertEquals(ErrorType.TO_EMPTY_OR_INVALID.getMessage(), emailHandlerResults.get(0).getMessage());
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResults.get(1).getType());
+        verify(this.emailHandler1, times(1)).sendBatch(Collections.singletonList(this.email));
+    }
+
+    @Test
+    void sendBulk_ShouldSendFailedEmailsToSecondEmailHandler() {
+        // Before
+        Email other = new Email();
+        other.setFrom("user@gmail.com");
+        other.setTo(Arrays.asList("other@gmail.com"));
+        other.setSubject("subject");
+        other.setContent("content");
+        doReturn(Arrays.asList(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS),
+                new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler1).sendBatch(any());
+        doReturn(Collections.singletonList(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)))
+                .when(this.emailHandler2).sendBatch(any());
+
+        // When
+        List<EmailHandlerResult> emailHandlerResults =
+                this.emailService.sendBulk(Arrays.asList(this.email, other).iterator());
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResults.get(0).getType());
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResults.get(1).getType());
+        verify(this.emailHandler2, times(1)).sendBatch(Collections.singletonList(other));
+    }
+
+    @Test
+    void send_ShouldRecordMetricsOfCallsAndFailovers() throws IOException {
+        // Before
+        EmailMetrics emailMetrics = new EmailMetrics();
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setEmailMetrics(emailMetrics);
+        doReturn(EmailHandler.Type.Mailgun).when(this.emailHandler1).getType();
+        doReturn(EmailHandler.Type.SendGrid).when(this.emailHandler2).getType();
+        doThrow(new IOException()).when(this.emailHandler1).send(any());
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler2).send(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+        this.email.setSubject(null);
+        EmailHandlerResult invalidResult = this.emailService.send(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, invalidResult.getType());
+        assertEquals(1, emailMetrics.getCalls(EmailHandler.Type.Mailgun, null));
+        assertEquals(1, emailMetrics.getCalls(EmailHandler.Type.SendGrid, EmailHandlerResult.Type.SUCCESS));
+        assertEquals(1, emailMetrics.getLatencies(EmailHandler.Type.SendGrid).getCount());
+        assertEquals(0, emailMetrics.getFailovers(EmailHandler.Type.Mailgun));
+        assertEquals(1, emailMetrics.getFailovers(EmailHandler.Type.SendGrid));
+        assertEquals(1, emailMetrics.getValidationRejections(ErrorType.SUBJECT_EMPTY));
+    }
+
+    @Test
+    void send_ShouldRenderTemplateOfEmail() throws IOException {
+        // Before
+        TemplateService templateService = new TemplateService(10, null);
+        templateService.put(new Template("booking", "Booking {{number}}", "See you"));
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setTemplateService(templateService);
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailHandler1).send(any());
+        this.email.setSubject(null);
+        this.email.setContent(null);
+        this.email.setTemplateId("booking");
+        this.email.setVariables(Collections.singletonMap("number", "48213"));
+        Email unknown = new Email();
+        unknown.setFrom("user@gmail.com");
+        unknown.setTo(Collections.singletonList("user@gmail.com"));
+        unknown.setTemplateId("unknown");
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.send(this.email);
+        EmailHandlerResult unknownResult = this.emailService.send(unknown);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        ArgumentCaptor<Email> argument = ArgumentCaptor.forClass(Email.class);
+        verify(this.emailHandler1, times(1)).send(argument.capture());
+        assertEquals("Booking 48213", argument.getValue().getRenderedSubject());
+        assertEquals("See you", argument.getValue().getRenderedContent());
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, unknownResult.getType());
+        assertEquals(ErrorType.TEMPLATE_NOT_FOUND.getMessage(), unknownResult.getMessage());
+    }
+
+    @Test
+    void sendAsync_ShouldFailOverOnlyFailedChunk() {
+        // Before
+        this.emailService = new EmailService(Arrays.asList(this.emailHandler1, this.emailHandler2));
+        this.emailService.setRecipientChunker(new RecipientChunker(3, 2));
+        this.email.setTo(Arrays.asList("a@gmail.com", "b@gmail.com", "c@gmail.com", "fail@gmail.com", "e@gmail.com"));
+        this.email.setBcc(Arrays.asList("f@gmail.com", "g@gmail.com"));
+        doAnswer(invocation -> {
+            Email chunk = invocation.getArgument(0);
+            EmailHandlerResult.Type type = chunk.getTo().contains("fail@gmail.com")
+                    ? EmailHandlerResult.Type.FAIL
+                    : EmailHandlerResult.Type.SUCCESS;
+            return CompletableFuture.completedFuture(new EmailHandlerResult(type));
+        }).when(this.emailHandler1).sendAsync(any());
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailHandler2).sendAsync(any());
+
+        // When
+        EmailHandlerResult emailHandlerResult = this.emailService.sendAsync(this.email).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.PARTIAL, emailHandlerResult.getType());
+        assertEquals(ErrorType.CHUNKS_FAILED.getMessage(), emailHandlerResult.getMessage());
+        assertEquals(4, emailHandlerResult.getChunks().size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i == 1 ? EmailHandlerResult.Type.FAIL : EmailHandlerResult.Type.SUCCESS,
+                    emailHandlerResult.getChunks().get(i).getResult().getType());
+        }
+        verify(this.emailHandler1, times(1)).sendAsync(argThat(chunk -> chunk.getTo().contains("fail@gmail.com")));
+        verify(this.emailHandler2, times(1)).sendAsync(argThat(chunk -> chunk.getTo().contains("fail@gmail.com")));
+        Email remaining = RecipientChunker.getRemaining(this.email, emailHandlerResult.getChunks());
+        assertEquals(Arrays.asList("c@gmail.com", "fail@gmail.com"), remaining.getTo());
+        assertTrue(remaining.getBcc().isEmpty());
+    }
+}
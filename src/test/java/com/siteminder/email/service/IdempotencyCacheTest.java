@@ -0,0 +1,112 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.EmailHandlerResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class IdempotencyCacheTest {
+
+    private AtomicInteger sends = new AtomicInteger();
+
+    @Test
+    void execute_ShouldCoalesceInFlightDuplicates() {
+        // Before
+        IdempotencyCache idempotencyCache = new IdempotencyCache(100, 60000);
+        CompletableFuture<EmailHandlerResult> inFlight = new CompletableFuture<>();
+
+        // When
+        CompletableFuture<EmailHandlerResult> first =
+                idempotencyCache.execute("tenant", "key", () -> count(inFlight));
+        CompletableFuture<EmailHandlerResult> duplicate =
+                idempotencyCache.execute("tenant", "key", () -> count(inFlight));
+        EmailHandlerResult emailHandlerResult = new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS);
+        inFlight.complete(emailHandlerResult);
+
+        // Verify
+        assertEquals(1, this.sends.get());
+        assertSame(emailHandlerResult, first.join());
+        assertSame(emailHandlerResult, duplicate.join());
+        assertSame(emailHandlerResult, idempotencyCache.execute("tenant", "key", () -> count(inFlight)).join());
+        assertEquals(1, this.sends.get());
+    }
+
+    @Test
+    void execute_ShouldKeepKeysOfTenantsApart() {
+        // Before
+        IdempotencyCache idempotencyCache = new IdempotencyCache(100, 60000);
+        idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+
+        // When
+        idempotencyCache.execute("other", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        idempotencyCache.execute(null, "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        idempotencyCache.execute("tenan", "tkey", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+
+        // Verify
+        assertEquals(4, this.sends.get());
+        assertEquals(4, idempotencyCache.getSize());
+    }
+
+    @Test
+    void execute_ShouldSendAgainWhenFirstSendFailed() {
+        // Before
+        IdempotencyCache idempotencyCache = new IdempotencyCache(100, 60000);
+        idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.FAIL))).join();
+
+        // When
+        EmailHandlerResult emailHandlerResult =
+                idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.SUCCESS, emailHandlerResult.getType());
+        assertEquals(2, this.sends.get());
+        assertEquals(1, idempotencyCache.getSize());
+    }
+
+    @Test
+    void execute_ShouldForgetKeysAfterTtl() throws InterruptedException {
+        // Before
+        IdempotencyCache idempotencyCache = new IdempotencyCache(100, 20);
+        idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        Thread.sleep(40);
+
+        // When
+        idempotencyCache.execute("tenant", "key", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+
+        // Verify
+        assertEquals(2, this.sends.get());
+    }
+
+    @Test
+    void execute_ShouldEvictOldestKeysWhenFull() {
+        // Before
+        IdempotencyCache idempotencyCache = new IdempotencyCache(16 * 4, 60000);
+
+        // When
+        for (int i = 0; i < 10000; i++) {
+            idempotencyCache.execute("tenant", "key-" + i,
+                    () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        }
+
+        // Verify
+        assertEquals(16 * 4, idempotencyCache.getSize());
+        idempotencyCache.execute("tenant", "key-9999", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        assertEquals(10000, this.sends.get());
+        idempotencyCache.execute("tenant", "key-0", () -> count(result(EmailHandlerResult.Type.SUCCESS))).join();
+        assertEquals(10001, this.sends.get());
+    }
+
+    private CompletableFuture<EmailHandlerResult> count(CompletableFuture<EmailHandlerResult> future) {
+        this.sends.incrementAndGet();
+        return future;
+    }
+
+    private static CompletableFuture<EmailHandlerResult> result(EmailHandlerResult.Type type) {
+        return CompletableFuture.completedFuture(new EmailHandlerResult(type));
+    }
+}
@@ -0,0 +1,56 @@
+package com.siteminder.email.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void getValueAtPercentile_ShouldBeWithinBucketPrecision() {
+        // Before
+        LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+        // When
+        for (long micros = 1; micros <= 100000; micros++) {
+            latencyHistogram.record(micros);
+        }
+
+        // Verify
+        assertEquals(100000, latencyHistogram.getCount());
+        assertEquals(100000L * 100001 / 2, latencyHistogram.getSum());
+        long p50 = latencyHistogram.getValueAtPercentile(0.5);
+        long p99 = latencyHistogram.getValueAtPercentile(0.99);
+        assertTrue(p50 >= 50000 && p50 <= 50000 + 50000 / 16, "p50 " + p50);
+        assertTrue(p99 >= 99000 && p99 <= 99000 + 99000 / 16, "p99 " + p99);
+        assertEquals(100000, latencyHistogram.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    void getCountAtOrBelow_ShouldCountWholeBucketsOnly() {
+        // Before
+        LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+        // When
+        latencyHistogram.record(3);
+        latencyHistogram.record(5000);
+        latencyHistogram.record(-1);
+        latencyHistogram.record(Long.MAX_VALUE);
+
+        // Verify
+        assertEquals(2, latencyHistogram.getCountAtOrBelow(3));
+        assertEquals(2, latencyHistogram.getCountAtOrBelow(4999));
+        assertEquals(3, latencyHistogram.getCountAtOrBelow(5000 + 5000 / 16));
+        assertEquals(4, latencyHistogram.getCount());
+    }
+
+    @Test
+    void index_ShouldMapEveryValueIntoItsBucket() {
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.highestValue(index), "value " + value);
+            assertTrue(index == 0 || value > LatencyHistogram.highestValue(index - 1), "value " + value);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.ChunkResult;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.outbox.OutboxJournal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class OutboxServiceTest {
+
+    private Path directory;
+    private EmailService emailService;
+    private Email email;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        this.directory = Files.createTempDirectory("outbox-service-test");
+        this.emailService = mock(EmailService.class);
+
+        this.email = new Email();
+        this.email.setFrom("user@gmail.com");
+        this.email.setTo(Arrays.asList("user@gmail.com"));
+        this.email.setSubject("subject");
+        this.email.setContent("content");
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void submit_ShouldAcceptAndDeliverInBackground() throws Exception {
+        // Before
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(this.emailService).send(any());
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                2, 10, 3600000, 10);
+
+        // When
+        EmailHandlerResult emailHandlerResult = outboxService.submit(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ACCEPTED, emailHandlerResult.getType());
+        assertNotNull(emailHandlerResult.getMessageId());
+        verify(this.emailService, timeout(5000)).send(any());
+
+        outboxService.destroy();
+    }
+
+    @Test
+    void submit_ShouldRetryFailedSendUntilDelivered() throws Exception {
+        // Before
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.FAIL))
+                .doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS))
+                .when(this.emailService).send(any());
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                1, 10, 3600000, 10);
+
+        // When
+        outboxService.submit(this.email);
+
+        // Verify
+        verify(this.emailService, timeout(5000).times(2)).send(any());
+
+        outboxService.destroy();
+    }
+
+    @Test
+    void init_ShouldReplayUndeliveredEmails() throws Exception {
+        // Before
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)).when(this.emailService).send(any());
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                1, 60000, 3600000, 10);
+        outboxService.submit(this.email);
+        verify(this.emailService, timeout(5000)).send(any());
+        outboxService.destroy();
+
+        EmailService restartedEmailService = mock(EmailService.class);
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)).when(restartedEmailService).send(any());
+
+        // When
+        OutboxService restartedOutboxService =
+                new OutboxService(restartedEmailService, new OutboxJournal(this.directory, 4096), 1, 10, 3600000, 10);
+
+        // Verify
+        verify(restartedEmailService, timeout(5000)).send(any());
+
+        restartedOutboxService.destroy();
+    }
+
+    @Test
+    void submit_ShouldRetryOnlyRecipientsOfFailedChunks() throws Exception {
+        // Before
+        this.email.setTo(Arrays.asList("first@gmail.com", "second@gmail.com"));
+        EmailHandlerResult partial = new EmailHandlerResult(EmailHandlerResult.Type.PARTIAL);
+        partial.setChunks(Arrays.asList(
+                new ChunkResult(0, 0, 1, new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)),
+                new ChunkResult(1, 1, 1, new EmailHandlerResult(EmailHandlerResult.Type.FAIL))));
+        doReturn(partial)
+                .doReturn(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS))
+                .when(this.emailService).send(any());
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                1, 10, 3600000, 10);
+
+        // When
+        outboxService.submit(this.email);
+
+        // Verify
+        ArgumentCaptor<Email> argument = ArgumentCaptor.forClass(Email.class);
+        verify(this.emailService, timeout(5000).times(2)).send(argument.capture());
+        List<Email> sent = argument.getAllValues();
+        assertEquals(Arrays.asList("first@gmail.com", "second@gmail.com"), sent.get(0).getTo());
+        assertEquals(Arrays.asList("second@gmail.com"), sent.get(1).getTo());
+
+        outboxService.destroy();
+    }
+
+    @Test
+    void submit_ShouldReturnIllegalArgumentWhenInvalid() throws Exception {
+        // Before
+        doThrow(new IllegalArgumentException("invalid")).when(this.emailService).validEmail(any());
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                1, 10, 3600000, 10);
+
+        // When
+        EmailHandlerResult emailHandlerResult = outboxService.submit(this.email);
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, emailHandlerResult.getType());
+        verify(this.emailService, after(100).never()).send(any());
+
+        outboxService.destroy();
+    }
+
+    @Test
+    void submit_ShouldDeadLetterEmailAfterMaxAttempts() throws Exception {
+        // Before
+        doReturn(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)).when(this.emailService).send(any());
+        OutboxJournal journal = new OutboxJournal(this.directory, 4096);
+        OutboxService outboxService = new OutboxService(this.emailService, journal, 1, 10, 3600000, 3);
+
+        // When
+        outboxService.submit(this.email);
+
+        // Verify
+        verify(this.emailService, timeout(5000).times(3)).send(any());
+        verify(this.emailService, after(200).times(3)).send(any());
+        assertEquals(1, outboxService.getDeadLettered());
+        assertEquals(0, journal.getPendingCount());
+
+        outboxService.destroy();
+    }
+
+    @Test
+    void getRetryDelay_ShouldDoubleUpToMaxRetryDelay() throws Exception {
+        // Before
+        OutboxService outboxService = new OutboxService(this.emailService, new OutboxJournal(this.directory, 4096),
+                1, 1000, 5000, 10);
+
+        // When
+        List<Long> delays = Arrays.asList(outboxService.getRetryDelay(1), outboxService.getRetryDelay(2),
+                outboxService.getRetryDelay(3), outboxService.getRetryDelay(4), outboxService.getRetryDelay(40));
+
+        // Verify
+        assertEquals(Arrays.asList(1000L, 2000L, 4000L, 5000L, 5000L), delays);
+
+        outboxService.destroy();
+    }
+}
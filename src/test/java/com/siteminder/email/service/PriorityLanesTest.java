@@ -0,0 +1,79 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.Email.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriorityLanesTest {
+
+    @Test
+    void acquire_ShouldGrantHighFromReserveWhenLowerLanesAreFull() {
+        // Before
+        PriorityLanes priorityLanes = new PriorityLanes(5, 0.2, 10);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(priorityLanes.acquire(Priority.LOW).join());
+        }
+
+        // When
+        CompletableFuture<Boolean> normal = priorityLanes.acquire(Priority.NORMAL);
+        CompletableFuture<Boolean> high = priorityLanes.acquire(Priority.HIGH);
+
+        // Verify
+        assertFalse(normal.isDone());
+        assertTrue(high.join());
+        assertEquals(1, priorityLanes.snapshot(Priority.NORMAL).getQueued());
+
+        priorityLanes.release(Priority.HIGH);
+        assertFalse(normal.isDone());
+        priorityLanes.release(Priority.LOW);
+        assertTrue(normal.join());
+        assertEquals(0, priorityLanes.snapshot(Priority.NORMAL).getQueued());
+        assertEquals(1, priorityLanes.getWaits(Priority.NORMAL).getCount());
+    }
+
+    @Test
+    void release_ShouldDispatchQueuedLanesByWeight() {
+        // Before
+        PriorityLanes priorityLanes = new PriorityLanes(1, 0, 100);
+        assertTrue(priorityLanes.acquire(Priority.NORMAL).join());
+        List<Priority> granted = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            priorityLanes.acquire(Priority.LOW).thenRun(() -> granted.add(Priority.LOW));
+            priorityLanes.acquire(Priority.NORMAL).thenRun(() -> granted.add(Priority.NORMAL));
+        }
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            priorityLanes.release(granted.isEmpty() ? Priority.NORMAL : granted.get(granted.size() - 1));
+        }
+
+        // Verify
+        assertEquals(10, granted.size());
+        assertEquals(8, Collections.frequency(granted, Priority.NORMAL));
+        assertEquals(2, Collections.frequency(granted, Priority.LOW));
+    }
+
+    @Test
+    void acquire_ShouldRejectWhenLaneQueueIsFull() {
+        // Before
+        PriorityLanes priorityLanes = new PriorityLanes(1, 0, 1);
+        assertTrue(priorityLanes.acquire(Priority.LOW).join());
+        priorityLanes.acquire(Priority.LOW);
+
+        // When
+        CompletableFuture<Boolean> rejected = priorityLanes.acquire(Priority.LOW);
+
+        // Verify
+        assertFalse(rejected.join());
+        assertEquals(1, priorityLanes.snapshot(Priority.LOW).getRejected());
+        assertFalse(priorityLanes.acquire(Priority.HIGH).isDone());
+    }
+}
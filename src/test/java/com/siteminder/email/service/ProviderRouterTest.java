@@ -0,0 +1,182 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.http.EmailHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class ProviderRouterTest {
+
+    private ProviderRouter providerRouter;
+    private EmailHandler emailHandler1;
+    private EmailHandler emailHandler2;
+    private List<EmailHandler> emailHandlers;
+
+    @BeforeEach
+    void beforeEach() {
+        this.providerRouter = new ProviderRouter(10, 60000, 3, 0.5, 50);
+        this.emailHandler1 = mock(EmailHandler.class);
+        this.emailHandler2 = mock(EmailHandler.class);
+        this.emailHandlers = Arrays.asList(this.emailHandler1, this.emailHandler2);
+    }
+
+    @Test
+    void route_ShouldKeepOrderWhenEquallyHealthy() {
+        // When
+        List<EmailHandler> routes = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(this.emailHandlers, routes);
+    }
+
+    @Test
+    void route_ShouldPreferHealthierEmailHandler() {
+        // Before
+        this.providerRouter.record(this.emailHandler1, 10, true);
+        this.providerRouter.record(this.emailHandler1, 10, false);
+        this.providerRouter.record(this.emailHandler2, 10, true);
+
+        // When
+        List<EmailHandler> routes = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(Arrays.asList(this.emailHandler2, this.emailHandler1), routes);
+    }
+
+    @Test
+    void route_ShouldPreferFasterEmailHandler() {
+        // Before
+        this.providerRouter.record(this.emailHandler1, 2000, true);
+        this.providerRouter.record(this.emailHandler2, 100, true);
+
+        // When
+        List<EmailHandler> routes = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(Arrays.asList(this.emailHandler2, this.emailHandler1), routes);
+    }
+
+    @Test
+    void route_ShouldSkipOpenCircuitUntilProbeIsDue() throws InterruptedException {
+        // Before
+        for (int i = 0; i < 3; i++) {
+            this.providerRouter.record(this.emailHandler1, 10, false);
+        }
+
+        // When
+        List<EmailHandler> routes = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(Collections.singletonList(this.emailHandler2), routes);
+        assertEquals(ProviderHealth.State.OPEN, this.providerRouter.getHealth(this.emailHandler1).getState());
+
+        // When
+        Thread.sleep(60);
+        routes = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(Arrays.asList(this.emailHandler1, this.emailHandler2), routes);
+        assertEquals(ProviderHealth.State.HALF_OPEN, this.providerRouter.getHealth(this.emailHandler1).getState());
+        assertEquals(Collections.singletonList(this.emailHandler2), this.providerRouter.route(this.emailHandlers));
+    }
+
+    @Test
+    void record_ShouldCloseCircuitWhenProbeSucceeded() throws InterruptedException {
+        // Before
+        for (int i = 0; i < 3; i++) {
+            this.providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        this.providerRouter.route(this.emailHandlers);
+
+        // When
+        this.providerRouter.record(this.emailHandler1, 10, true);
+
+        // Verify
+        assertEquals(ProviderHealth.State.CLOSED, this.providerRouter.getHealth(this.emailHandler1).getState());
+        assertEquals(3, this.providerRouter.getEvents().size());
+        assertEquals("HALF_OPEN", this.providerRouter.getEvents().get(2).getFrom());
+        assertEquals("CLOSED", this.providerRouter.getEvents().get(2).getTo());
+    }
+
+    @Test
+    void record_ShouldCountOnlyCallsAfterProbeOnceClosed() throws InterruptedException {
+        // Before
+        for (int i = 0; i < 3; i++) {
+            this.providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        this.providerRouter.route(this.emailHandlers);
+        this.providerRouter.record(this.emailHandler1, 10, true);
+
+        // When
+        this.providerRouter.record(this.emailHandler1, 20, true);
+        this.providerRouter.record(this.emailHandler1, 30, true);
+
+        // Verify
+        ProviderHealth health = this.providerRouter.getHealth(this.emailHandler1);
+        ProviderHealth.Snapshot snapshot = health.snapshot(System.currentTimeMillis());
+        assertEquals(ProviderHealth.State.CLOSED, health.getState());
+        assertEquals(3, snapshot.getCalls());
+        assertEquals(0, snapshot.getFailures());
+        assertEquals(20, snapshot.getMeanLatency());
+        assertEquals(30, health.latencyPercentile(1, System.currentTimeMillis()));
+    }
+
+    @Test
+    void route_ShouldGiveProbeAgainWhenProbeDidNotReport() throws InterruptedException {
+        // Before
+        for (int i = 0; i < 3; i++) {
+            this.providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        this.providerRouter.route(this.emailHandlers);
+
+        // When
+        List<EmailHandler> whileProbing = this.providerRouter.route(this.emailHandlers);
+        Thread.sleep(60);
+        List<EmailHandler> afterTimeout = this.providerRouter.route(this.emailHandlers);
+
+        // Verify
+        assertEquals(Collections.singletonList(this.emailHandler2), whileProbing);
+        assertEquals(this.emailHandlers, afterTimeout);
+        assertEquals(ProviderHealth.State.HALF_OPEN, this.providerRouter.getHealth(this.emailHandler1).getState());
+    }
+
+    @Test
+    void record_ShouldReopenCircuitWhenProbeFailed() throws InterruptedException {
+        // Before
+        for (int i = 0; i < 3; i++) {
+            this.providerRouter.record(this.emailHandler1, 10, false);
+        }
+        Thread.sleep(60);
+        this.providerRouter.route(this.emailHandlers);
+
+        // When
+        this.providerRouter.record(this.emailHandler1, 10, false);
+
+        // Verify
+        assertEquals(ProviderHealth.State.OPEN, this.providerRouter.getHealth(this.emailHandler1).getState());
+        assertEquals(Collections.singletonList(this.emailHandler2), this.providerRouter.route(this.emailHandlers));
+    }
+
+    @Test
+    void getLatencyPercentile_ShouldUseSuccessfulCallsOnly() {
+        // Before
+        for (int i = 1; i <= 9; i++) {
+            this.providerRouter.record(this.emailHandler1, i * 10, true);
+        }
+        this.providerRouter.record(this.emailHandler1, 10000, false);
+
+        // When Verify
+        assertEquals(50, this.providerRouter.getLatencyPercentile(this.emailHandler1, 0.5));
+        assertEquals(90, this.providerRouter.getLatencyPercentile(this.emailHandler1, 0.99));
+        assertEquals(-1, this.providerRouter.getLatencyPercentile(this.emailHandler2, 0.9));
+    }
+}
@@ -0,0 +1,48 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.RateLimit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    void refund_ShouldGiveBackAtMostFullBucket() {
+        // Before
+        RateLimiter rateLimiter = new RateLimiter(new RateLimit(1, 2));
+        long now = System.nanoTime();
+        assertEquals(0, rateLimiter.tryAcquire(now));
+
+        // When
+        rateLimiter.refund(now);
+        rateLimiter.refund(now);
+        rateLimiter.refund(now);
+
+        // Verify
+        assertEquals(0, rateLimiter.tryAcquire(now));
+        assertEquals(0, rateLimiter.tryAcquire(now));
+        assertTrue(rateLimiter.tryAcquire(now) > 0);
+    }
+
+    @Test
+    void refund_ShouldNotWrapAfterLimitChanged() {
+        // Before
+        RateLimiter rateLimiter = new RateLimiter(new RateLimit(1, 1));
+        long now = System.nanoTime();
+        assertEquals(0, rateLimiter.tryAcquire(now));
+        rateLimiter.setRateLimit(new RateLimit(1, 1));
+
+        // When
+        rateLimiter.refund(now);
+
+        // Verify
+        assertTrue(rateLimiter.isIdle(now));
+        assertEquals(0, rateLimiter.tryAcquire(now));
+        long wait = rateLimiter.tryAcquire(now);
+        assertTrue(wait > 0 && wait <= SECOND, String.valueOf(wait));
+    }
+}
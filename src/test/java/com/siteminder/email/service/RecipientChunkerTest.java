@@ -0,0 +1,82 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.ChunkResult;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RecipientChunkerTest {
+
+    @Test
+    void split_ShouldSplitOnlyEmailsOverProviderLimit() {
+        // Before
+        RecipientChunker recipientChunker = new RecipientChunker(1000, 2);
+        Email email = email(Arrays.asList("a@b.com", "c@d.com"), Collections.singletonList("e@f.com"));
+
+        // When
+        List<RecipientChunker.Chunk> fitting = recipientChunker.split(email, 3);
+        List<RecipientChunker.Chunk> chunks = recipientChunker.split(email, 2);
+
+        // Verify
+        assertNull(fitting);
+        assertEquals(3, chunks.size());
+        assertEquals(Collections.singletonList("a@b.com"), chunks.get(0).getEmail().getTo());
+        assertEquals(Collections.singletonList("sender@example.com"), chunks.get(2).getEmail().getTo());
+    }
+
+    @Test
+    void split_ShouldAddressChunkWithoutToToSender() {
+        // Before
+        RecipientChunker recipientChunker = new RecipientChunker(4, 2);
+        Email email = email(Arrays.asList("a@b.com", "c@d.com"),
+                Arrays.asList("e@f.com", "g@h.com", "i@j.com", "k@l.com", "m@n.com"));
+
+        // When
+        List<RecipientChunker.Chunk> chunks = recipientChunker.split(email, Integer.MAX_VALUE);
+
+        // Verify
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("a@b.com", "c@d.com"), chunks.get(0).getEmail().getTo());
+        assertEquals(Collections.singletonList("e@f.com"), chunks.get(0).getEmail().getBcc());
+        assertEquals(3, chunks.get(1).getOffset());
+        assertEquals(Collections.singletonList("sender@example.com"), chunks.get(1).getEmail().getTo());
+        assertEquals(Arrays.asList("g@h.com", "i@j.com"), chunks.get(1).getEmail().getBcc());
+        assertEquals(Arrays.asList("k@l.com", "m@n.com"), chunks.get(2).getEmail().getBcc());
+        assertEquals("subject", chunks.get(2).getEmail().getSubject());
+    }
+
+    @Test
+    void getRemaining_ShouldKeepRecipientsOfFailedChunksOnly() {
+        // Before
+        Email email = email(Arrays.asList("a@b.com", "c@d.com"), Arrays.asList("e@f.com", "g@h.com"));
+        List<ChunkResult> chunkResults = Arrays.asList(
+                new ChunkResult(0, 0, 2, new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS)),
+                new ChunkResult(1, 2, 1, new EmailHandlerResult(EmailHandlerResult.Type.FAIL)),
+                new ChunkResult(2, 3, 1, new EmailHandlerResult(EmailHandlerResult.Type.FAIL)));
+
+        // When
+        Email remaining = RecipientChunker.getRemaining(email, chunkResults);
+
+        // Verify
+        assertEquals(Collections.singletonList("sender@example.com"), remaining.getTo());
+        assertEquals(Arrays.asList("e@f.com", "g@h.com"), remaining.getBcc());
+        assertNull(RecipientChunker.getRemaining(email, chunkResults.subList(0, 1)));
+    }
+
+    private static Email email(List<String> to, List<String> bcc) {
+        Email email = new Email();
+        email.setFrom("sender@example.com");
+        email.setTo(to);
+        email.setBcc(bcc);
+        email.setSubject("subject");
+        email.setContent("content");
+        return email;
+    }
+}
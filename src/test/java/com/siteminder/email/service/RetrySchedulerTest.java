@@ -0,0 +1,115 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.DeliveryStatus;
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class RetrySchedulerTest {
+
+    private EmailService emailService;
+    private Email email;
+
+    @BeforeEach
+    void beforeEach() {
+        this.emailService = mock(EmailService.class);
+        this.email = new Email();
+        this.email.setFrom("user@gmail.com");
+        this.email.setTo(Arrays.asList("user@gmail.com"));
+    }
+
+    @Test
+    void onResult_ShouldFailAfterMaxAttempts() throws InterruptedException {
+        // Before
+        doReturn(CompletableFuture.completedFuture(new EmailHandlerResult(EmailHandlerResult.Type.FAIL)))
+                .when(this.emailService).sendAsync(any());
+        RetryScheduler retryScheduler = new RetryScheduler(this.emailService);
+        retryScheduler.setBudget(new TokenBudget(0.1, 10));
+        retryScheduler.setTick(10);
+        retryScheduler.setBaseDelay(10);
+        retryScheduler.setMaxDelay(50);
+        retryScheduler.setMaxAttempts(3);
+        retryScheduler.setRetention(60000);
+        retryScheduler.start();
+
+        // When
+        EmailHandlerResult result = retryScheduler.onResult(this.email,
+                new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+        for (int i = 0; i < 500 && retryScheduler.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ACCEPTED, result.getType());
+        DeliveryStatus deliveryStatus = retryScheduler.getStatus(result.getMessageId());
+        assertEquals(DeliveryStatus.State.FAILED, deliveryStatus.getState());
+        assertEquals(3, deliveryStatus.getAttempts());
+        verify(this.emailService, times(3)).sendAsync(any());
+        assertNotNull(this.email.getMessageId());
+        assertEquals(1, retryScheduler.getFailed());
+        retryScheduler.destroy();
+    }
+
+    @Test
+    void onResult_ShouldNotRetryWhenBudgetIsSpent() throws InterruptedException {
+        // Before
+        RetryScheduler retryScheduler = new RetryScheduler(this.emailService);
+        retryScheduler.setBudget(new TokenBudget(0, 1));
+        retryScheduler.setTick(10);
+        retryScheduler.setBaseDelay(60000);
+        retryScheduler.setMaxDelay(60000);
+        retryScheduler.setMaxAttempts(3);
+        retryScheduler.setRetention(60000);
+        retryScheduler.start();
+
+        // When
+        EmailHandlerResult first = retryScheduler.onResult(this.email,
+                new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+        EmailHandlerResult second = retryScheduler.onResult(this.email,
+                new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+        EmailHandlerResult rejected = retryScheduler.onResult(this.email,
+                new EmailHandlerResult(EmailHandlerResult.Type.ILLEGAL_ARGUMENT));
+
+        // Verify
+        assertEquals(EmailHandlerResult.Type.ACCEPTED, first.getType());
+        assertEquals(EmailHandlerResult.Type.FAIL, second.getType());
+        assertEquals(EmailHandlerResult.Type.ILLEGAL_ARGUMENT, rejected.getType());
+        assertEquals(1, retryScheduler.getScheduled());
+        assertEquals(1, retryScheduler.getDenied());
+        retryScheduler.destroy();
+    }
+
+    @Test
+    void getDelay_ShouldStayWithinExponentialBackoff() throws InterruptedException {
+        // Before
+        RetryScheduler retryScheduler = new RetryScheduler(this.emailService);
+        retryScheduler.setBudget(new TokenBudget(0.1, 10));
+        retryScheduler.setTick(10);
+        retryScheduler.setBaseDelay(100);
+        retryScheduler.setMaxDelay(1000);
+        retryScheduler.setMaxAttempts(3);
+        retryScheduler.setRetention(60000);
+        retryScheduler.start();
+
+        // When Verify
+        for (int i = 0; i < 1000; i++) {
+            long delay = retryScheduler.getDelay(0);
+            assertTrue(delay >= 0 && delay <= 100);
+            delay = retryScheduler.getDelay(2);
+            assertTrue(delay >= 0 && delay <= 400);
+            delay = retryScheduler.getDelay(40);
+            assertTrue(delay >= 0 && delay <= 1000);
+        }
+        retryScheduler.destroy();
+    }
+}
@@ -0,0 +1,163 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.Email;
+import com.siteminder.email.model.EmailHandlerResult;
+import com.siteminder.email.outbox.OutboxJournal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ScheduledDeliveryServiceTest {
+
+    private Path directory;
+    private EmailService emailService;
+    private List<List<Email>> batches;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        this.directory = Files.createTempDirectory("scheduled-delivery-service-test");
+        this.emailService = mock(EmailService.class);
+        this.batches = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            Iterator<Email> emails = invocation.getArgument(0);
+            List<Email> batch = new ArrayList<>();
+            List<EmailHandlerResult> results = new ArrayList<>();
+            while (emails.hasNext()) {
+                batch.add(emails.next());
+                results.add(new EmailHandlerResult(EmailHandlerResult.Type.SUCCESS));
+            }
+            batches.add(batch);
+            return results;
+        }).when(this.emailService).sendBulk(any());
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void schedule_ShouldReleaseDueEmailsInOneBatch() throws Exception {
+        // Before
+        ScheduledDeliveryService scheduledDeliveryService = new ScheduledDeliveryService(this.emailService,
+                new OutboxJournal(this.directory, 4096, false), 10, 60000, 10, 10, 3600000, 10);
+        long sendAt = System.currentTimeMillis() + 300;
+
+        // When
+        List<EmailHandlerResult> results = new ArrayList<>();
+        for (String to : Arrays.asList("a@example.com", "b@example.com", "c@example.com")) {
+            results.add(scheduledDeliveryService.schedule(email(to, sendAt)));
+        }
+        int sentBeforeSendAt = this.batches.size();
+
+        // Verify
+        verify(this.emailService, timeout(5000)).sendBulk(any());
+        assertEquals(EmailHandlerResult.Type.ACCEPTED, results.get(0).getType());
+        assertEquals(0, sentBeforeSendAt);
+        assertTrue(System.currentTimeMillis() >= sendAt - 10);
+        assertEquals(3, this.batches.get(0).size());
+        assertEquals("c@example.com", this.batches.get(0).get(2).getTo().get(0));
+
+        scheduledDeliveryService.destroy();
+    }
+
+    @Test
+    void schedule_ShouldKeepEmailsBeyondHorizonOnDiskUntilLoaded() throws Exception {
+        // Before
+        ScheduledDeliveryService scheduledDeliveryService = new ScheduledDeliveryService(this.emailService,
+                new OutboxJournal(this.directory, 4096, false), 10, 200, 10, 10, 3600000, 10);
+
+        // When
+        scheduledDeliveryService.schedule(email("a@example.com", System.currentTimeMillis() + 600));
+        int memoryCount = scheduledDeliveryService.getMemoryCount();
+        int pendingCount = scheduledDeliveryService.getPendingCount();
+
+        // Verify
+        assertEquals(0, memoryCount);
+        assertEquals(1, pendingCount);
+        verify(this.emailService, timeout(5000)).sendBulk(any());
+        assertEquals(1, this.batches.size());
+
+        scheduledDeliveryService.destroy();
+    }
+
+    @Test
+    void schedule_ShouldSendEmailsScheduledBeforeRestart() throws Exception {
+        // Before
+        ScheduledDeliveryService scheduledDeliveryService = new ScheduledDeliveryService(this.emailService,
+                new OutboxJournal(this.directory, 4096, false), 10, 60000, 10, 10, 3600000, 10);
+        scheduledDeliveryService.schedule(email("a@example.com", System.currentTimeMillis() + 60000));
+        scheduledDeliveryService.schedule(email("b@example.com", System.currentTimeMillis() + 300));
+        scheduledDeliveryService.destroy();
+
+        // When
+        ScheduledDeliveryService restarted = new ScheduledDeliveryService(this.emailService,
+                new OutboxJournal(this.directory, 4096, false), 10, 60000, 10, 10, 3600000, 10);
+
+        // Verify
+        verify(this.emailService, timeout(5000)).sendBulk(any());
+        assertEquals("b@example.com", this.batches.get(0).get(0).getTo().get(0));
+        assertEquals(1, restarted.getPendingCount());
+        assertEquals(1, restarted.getMemoryCount());
+
+        restarted.destroy();
+    }
+
+    @Test
+    void schedule_ShouldDeadLetterEmailAfterMaxAttempts() throws Exception {
+        // Before
+        doAnswer(invocation -> {
+            Iterator<Email> emails = invocation.getArgument(0);
+            List<EmailHandlerResult> results = new ArrayList<>();
+            while (emails.hasNext()) {
+                emails.next();
+                results.add(new EmailHandlerResult(EmailHandlerResult.Type.FAIL));
+            }
+            return results;
+        }).when(this.emailService).sendBulk(any());
+        ScheduledDeliveryService scheduledDeliveryService = new ScheduledDeliveryService(this.emailService,
+                new OutboxJournal(this.directory, 4096, false), 10, 60000, 10, 10, 3600000, 3);
+
+        // When
+        scheduledDeliveryService.schedule(email("a@example.com", System.currentTimeMillis()));
+
+        // Verify
+        verify(this.emailService, timeout(5000).times(3)).sendBulk(any());
+        verify(this.emailService, after(200).times(3)).sendBulk(any());
+        assertEquals(1, scheduledDeliveryService.getDeadLettered());
+        assertEquals(0, scheduledDeliveryService.getPendingCount());
+        assertEquals(Arrays.asList(10L, 20L, 40L),
+                Arrays.asList(scheduledDeliveryService.getRetryDelay(1), scheduledDeliveryService.getRetryDelay(2),
+                        scheduledDeliveryService.getRetryDelay(3)));
+
+        scheduledDeliveryService.destroy();
+    }
+
+    private static Email email(String to, long sendAt) {
+        Email email = new Email();
+        email.setFrom("user@gmail.com");
+        email.setTo(Collections.singletonList(to));
+        email.setSubject("subject");
+        email.setContent("content");
+        email.setSendAt(sendAt);
+        return email;
+    }
+}
@@ -0,0 +1,89 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.model.Template;
+import com.siteminder.email.template.CompiledTemplate;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TemplateServiceTest {
+
+    @Test
+    void getCompiled_ShouldCompileOnceAndAgainAfterUpdate() throws IOException {
+        // Before
+        TemplateService templateService = new TemplateService(10, null);
+        templateService.put(new Template("welcome", "Hi {{name}}", "Welcome"));
+
+        // When
+        CompiledTemplate first = templateService.getCompiled("welcome");
+        CompiledTemplate second = templateService.getCompiled("welcome");
+        templateService.put(new Template("welcome", "Hello {{name}}", "Welcome"));
+        CompiledTemplate updated = templateService.getCompiled("welcome");
+
+        // Verify
+        assertSame(first, second);
+        assertEquals("Hello Jane", updated.getSubject().render(Collections.singletonMap("name", "Jane")));
+        assertEquals(1, templateService.getCacheSnapshot().getHits());
+        assertEquals(2, templateService.getCacheSnapshot().getMisses());
+        assertNull(templateService.getCompiled("unknown"));
+    }
+
+    @Test
+    void getCompiled_ShouldKeepCacheWithinCapacity() throws IOException {
+        // Before
+        TemplateService templateService = new TemplateService(2, null);
+        for (int i = 0; i < 5; i++) {
+            templateService.put(new Template("t" + i, "subject", "content"));
+        }
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            templateService.getCompiled("t" + i);
+        }
+        templateService.getCompiled("t4");
+
+        // Verify
+        assertEquals(2, templateService.getCacheSnapshot().getSize());
+        assertEquals(1, templateService.getCacheSnapshot().getHits());
+    }
+
+    @Test
+    void put_ShouldRejectInvalidIdAndEmptyContent() throws IOException {
+        // Before
+        TemplateService templateService = new TemplateService(10, null);
+
+        // When Verify
+        assertThrows(IllegalArgumentException.class,
+                () -> templateService.put(new Template("../etc", "subject", "content")));
+        assertThrows(IllegalArgumentException.class,
+                () -> templateService.put(new Template("valid", "subject", "")));
+        assertFalse(templateService.delete("valid"));
+    }
+
+    @Test
+    void put_ShouldStoreTemplatesAcrossRestarts() throws IOException {
+        // Before
+        Path directory = Files.createTempDirectory("templates");
+        TemplateService templateService = new TemplateService(10, directory);
+        templateService.put(new Template("kept", "subject", "content"));
+        templateService.put(new Template("deleted", "subject", "content"));
+
+        // When
+        assertTrue(templateService.delete("deleted"));
+        TemplateService restarted = new TemplateService(10, directory);
+
+        // Verify
+        assertEquals("content", restarted.get("kept").getContent());
+        assertNull(restarted.get("deleted"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.siteminder.email.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBudgetTest {
+
+    @Test
+    void tryWithdraw_ShouldAllowRatioOfDepositsAfterBurst() {
+        // Before
+        TokenBudget tokenBudget = new TokenBudget(0.25, 2);
+
+        // When Verify
+        assertTrue(tokenBudget.tryWithdraw());
+        assertTrue(tokenBudget.tryWithdraw());
+        assertFalse(tokenBudget.tryWithdraw());
+
+        int withdrawn = 0;
+        for (int i = 0; i < 100; i++) {
+            tokenBudget.deposit();
+            if (tokenBudget.tryWithdraw()) {
+                withdrawn++;
+            }
+        }
+        assertEquals(25, withdrawn);
+    }
+
+    @Test
+    void deposit_ShouldNotExceedMaxTokens() {
+        // Before
+        TokenBudget tokenBudget = new TokenBudget(1, 3);
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            tokenBudget.deposit();
+        }
+
+        // Verify
+        assertEquals(3.0, tokenBudget.getBalance());
+    }
+}
@@ -0,0 +1,47 @@
+package com.siteminder.email.service;
+
+import com.siteminder.email.http.EmailHandler;
+import com.siteminder.email.model.Email;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class WarmupServiceTest {
+
+    @Test
+    void warmUp_ShouldBeReadyWhenAProviderCanNotBeReached() throws IOException {
+        // Before
+        EmailHandler mailgun = mock(EmailHandler.class);
+        EmailHandler sendGrid = mock(EmailHandler.class);
+        doReturn(EmailHandler.Type.Mailgun).when(mailgun).getType();
+        doReturn(EmailHandler.Type.SendGrid).when(sendGrid).getType();
+        doThrow(new IOException("unreachable")).when(mailgun).warmUp(any(), anyInt(), anyInt());
+        WarmupService warmupService = new WarmupService(new EmailService(Arrays.asList(mailgun, sendGrid)), 10, 2);
+        boolean readyBefore = warmupService.isReady();
+
+        // When
+        warmupService.warmUp();
+
+        // Verify
+        ArgumentCaptor<Email> email = ArgumentCaptor.forClass(Email.class);
+        verify(sendGrid).warmUp(email.capture(), eq(10), eq(2));
+        assertEquals("example.com", email.getValue().getFromAddress().getDomain());
+        assertFalse(readyBefore);
+        assertTrue(warmupService.isReady());
+        assertEquals("OK", warmupService.getProviders().get(EmailHandler.Type.SendGrid));
+        assertTrue(warmupService.getProviders().get(EmailHandler.Type.Mailgun).contains("unreachable"));
+    }
+}
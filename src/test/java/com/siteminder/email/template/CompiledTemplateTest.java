@@ -0,0 +1,57 @@
+package com.siteminder.email.template;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.siteminder.email.model.Template;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompiledTemplateTest {
+
+    @Test
+    void render_ShouldReplaceVariablesAndKeepOtherBraces() {
+        // Before
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(new Template("booking",
+                "Booking {{ number }}", "Dear {{name}}, {{name}} {not} {{ }} {{a b}} {{unknown}}end {{open"));
+        Map<String, String> variables = new HashMap<>();
+        variables.put("number", "48213");
+        variables.put("name", "Jane");
+
+        // When Verify
+        assertEquals("Booking 48213", compiledTemplate.getSubject().render(variables));
+        assertEquals("Dear Jane, Jane {not} {{ }} {{a b}} end {{open",
+                compiledTemplate.getContent().render(variables));
+        assertEquals(Arrays.asList("name", "name", "unknown"), compiledTemplate.getContent().getVariables());
+    }
+
+    @Test
+    void writeJson_ShouldWriteEscapedRenderedString() throws IOException {
+        // Before
+        CompiledTemplate.Text text = CompiledTemplate.Text.compile("\"Hi\" {{name}}\né");
+        Map<String, String> variables = new HashMap<>();
+        variables.put("name", "Ja\"ne\\");
+        StringWriter writer = new StringWriter();
+
+        // When
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeFieldName("value");
+            text.writeJson(generator, variables);
+            generator.writeNumberField("next", 1);
+            generator.writeEndObject();
+        }
+
+        // Verify
+        Map<?, ?> json = new ObjectMapper().readValue(writer.toString(), Map.class);
+        assertEquals("\"Hi\" Ja\"ne\\\né", json.get("value"));
+        assertEquals(1, json.get("next"));
+    }
+}